@@ -0,0 +1,125 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.agent.RecordingConfig.LockIdentity;
+import com.enea.jcarder.common.Lock;
+import com.enea.jcarder.common.contexts.ContextWriterIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This class is responsible for generating IDs for locks that are told apart
+ * by the field that they are read from, or by their class, instead of by the
+ * lock object itself.
+ *
+ * Such a lock is described once in the context file, with its field or class
+ * name and the object ID AGGREGATE_OBJECT_ID, no matter how many lock objects
+ * it stands for. The lock objects themselves are not remembered, so short-
+ * lived lock objects do not cost any memory once they are garbage collected.
+ *
+ * A thread that nests two lock objects of the same aggregate lock gives rise
+ * to a lock event from the aggregate lock to itself. Such nestings may
+ * deadlock if the objects are nested in both orders, which the aggregate
+ * lock cannot tell, so the Analyzer reports them apart from the cycles.
+ *
+ * Instances of JDK classes, such as Object, String and ReentrantLock, are not
+ * told apart by class, since unrelated locks in the program are commonly of
+ * those classes and would otherwise collapse into one lock.
+ */
+@ThreadSafe
+final class AggregateLockIds {
+    static final int NOT_AGGREGATED = -1;
+    static final int AGGREGATE_OBJECT_ID = 0;
+    private final LockIdentity mIdentity;
+    private final ConcurrentHashMap<String, Integer> mIds;
+    private final ContextWriterIfc mContextWriter;
+    private final Logger mLogger;
+
+    AggregateLockIds(Logger logger,
+                     ContextWriterIfc writer,
+                     LockIdentity identity) {
+        mLogger = logger;
+        mContextWriter = writer;
+        mIdentity = identity;
+        mIds = new ConcurrentHashMap<String, Integer>();
+    }
+
+    /**
+     * Return the ID of the lock that a lock object that is entered at a call
+     * site is part of.
+     *
+     * @return The ID, or NOT_AGGREGATED if the lock object is a lock of its
+     *         own.
+     */
+    int acquireLockId(Object monitor, int callSiteId) throws IOException {
+        final String name = getAggregateName(monitor, callSiteId);
+        if (name == null) {
+            return NOT_AGGREGATED;
+        }
+        final Integer existingId = mIds.get(name);
+        if (existingId != null) {
+            return existingId;
+        }
+        synchronized (mIds) {
+            Integer id = mIds.get(name);
+            if (id == null) {
+                id = mContextWriter.writeLock(new Lock(name,
+                                                       AGGREGATE_OBJECT_ID));
+                mIds.put(name, id);
+                mLogger.finest("Created new aggregate lock ID: " + id
+                               + " for " + name);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the number of aggregate locks that have an ID.
+     */
+    int size() {
+        return mIds.size();
+    }
+
+    private String getAggregateName(Object monitor, int callSiteId) {
+        if (mIdentity == LockIdentity.INSTANCE) {
+            return null;
+        }
+        final String field =
+            CallSiteRegistry.getSite(callSiteId).getLockedField();
+        if (field != null) {
+            return field;
+        }
+        if (mIdentity == LockIdentity.CLASS && !(monitor instanceof Class)) {
+            final String className = monitor.getClass().getName();
+            if (!isJdkClass(className)) {
+                return className;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isJdkClass(String className) {
+        return className.startsWith("java.")
+               || className.startsWith("javax.")
+               || className.startsWith("sun.");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.agent.instrument.ClassTransformer;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * An Attachment is a recording in a JVM that the agent was attached to after
+ * it was started. Classes that were loaded before the attachment are
+ * retransformed when it starts and retransformed back to their original
+ * bytecode when it is detached, so that a detached JVM runs as if the agent
+ * had never been there. Only the classes that may have monitors are
+ * retransformed when it starts, and only the classes that it has
+ * instrumented when it is detached.
+ */
+@ThreadSafe
+final class Attachment {
+    /**
+     * All classes in a retransformation are rejected if one of them is, so
+     * classes are retransformed in batches of this size and one at a time if
+     * a batch fails.
+     */
+    private static final int RETRANSFORM_BATCH_SIZE = 64;
+
+    private final Logger mLogger;
+    private final Instrumentation mInstrumentation;
+    private final ClassTransformer mTransformer;
+    private final RecordingControl mControl;
+    private final Runnable mDetachCallback;
+    @GuardedBy("this")
+    private boolean mDetached = false;
+
+    /**
+     * @param control
+     *            Controls the recording, which may have been rotated when
+     *            the attachment is detached.
+     * @param detachCallback
+     *            Run after the attachment has been detached.
+     */
+    Attachment(Logger logger,
+               Instrumentation instrumentation,
+               ClassTransformer transformer,
+               RecordingControl control,
+               Runnable detachCallback) {
+        mLogger = logger;
+        mInstrumentation = instrumentation;
+        mTransformer = transformer;
+        mControl = control;
+        mDetachCallback = detachCallback;
+    }
+
+    /**
+     * Instrument the classes that are already loaded. Monitors that are held
+     * by code that has not yet been replaced when the recording starts are
+     * not seen.
+     */
+    synchronized void start() {
+        mInstrumentation.addTransformer(mTransformer, true);
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> clazz : mInstrumentation.getAllLoadedClasses()) {
+            if (mInstrumentation.isModifiableClass(clazz)
+                && !clazz.isArray()
+                && mTransformer.mayInstrument(clazz)
+                && ClassTransformer.mayHaveMonitors(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        mLogger.info("Retransforming " + classes.size()
+                     + " loaded classes that may have monitors");
+        retransform(classes);
+    }
+
+    /**
+     * Detach when a number of seconds have passed, unless detach has been
+     * called before that.
+     */
+    void detachAfter(final long seconds) {
+        final Thread thread = new Thread("JCarder detach timer") {
+            public void run() {
+                try {
+                    Thread.sleep(seconds * 1000);
+                    detach();
+                } catch (InterruptedException e) {
+                    // Stay attached.
+                } catch (IOException e) {
+                    mLogger.severe("Failed to close the recording: "
+                                   + e.getMessage());
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop recording, close the recording files and give the instrumented
+     * classes their original bytecode back. Later calls do nothing.
+     */
+    synchronized void detach() throws IOException {
+        if (mDetached) {
+            return;
+        }
+        mDetached = true;
+        mLogger.info("Detaching JCarder agent");
+        StaticEventListener.setListener(null);
+        mTransformer.setEnabled(false);
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> clazz : mInstrumentation.getAllLoadedClasses()) {
+            if (mTransformer.hasInstrumented(clazz)
+                && mInstrumentation.isModifiableClass(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        retransform(classes);
+        mInstrumentation.removeTransformer(mTransformer);
+        try {
+            mControl.close();
+        } finally {
+            // The callback closes the log file.
+            mLogger.info("JCarder agent detached\n");
+            mDetachCallback.run();
+        }
+    }
+
+    private void retransform(List<Class<?>> classes) {
+        for (int i = 0; i < classes.size(); i += RETRANSFORM_BATCH_SIZE) {
+            final List<Class<?>> batch =
+                classes.subList(i, Math.min(classes.size(),
+                                            i + RETRANSFORM_BATCH_SIZE));
+            try {
+                mInstrumentation.retransformClasses(
+                    batch.toArray(new Class<?>[batch.size()]));
+            } catch (Throwable t) {
+                for (Class<?> clazz : batch) {
+                    retransform(clazz);
+                }
+            }
+        }
+    }
+
+    private void retransform(Class<?> clazz) {
+        try {
+            mInstrumentation.retransformClasses(clazz);
+        } catch (Throwable t) {
+            mLogger.warning("Failed to retransform " + clazz.getName()
+                            + ": " + t);
+        }
+    }
+}
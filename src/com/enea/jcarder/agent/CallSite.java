@@ -0,0 +1,117 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An instance of this class represents a place in the instrumented code where
+ * a monitor is entered.
+ */
+@ThreadSafe
+public final class CallSite {
+    /**
+     * The line number of a call site in a class without line number
+     * information.
+     */
+    public static final int UNKNOWN_LINE = -1;
+
+    /**
+     * A textual description of how the lock object was addressed. For example:
+     * "this", "com.enea.jcarder.Foo.mBar" or "com.enea.jcarder.Foo.getLock()".
+     */
+    private final String mLockReference;
+
+    /**
+     * The method that acquired the lock, on the format
+     * "com.enea.jcarder.Foo.bar()".
+     */
+    private final String mMethodWithClass;
+
+    private final int mLineNumber;
+
+    /**
+     * The field that the lock object was read from, on the format
+     * "com.enea.jcarder.Foo.mBar", or null if it was not read from a field.
+     */
+    private final String mLockedField;
+
+    public CallSite(String lockReference,
+                    String methodWithClass,
+                    int lineNumber) {
+        this(lockReference, methodWithClass, lineNumber, null);
+    }
+
+    /**
+     * @param lockedField
+     *            The field that the lock object was read from, as seen by
+     *            the instrumentation, or null if it was not read from a
+     *            field.
+     */
+    public CallSite(String lockReference,
+                    String methodWithClass,
+                    int lineNumber,
+                    String lockedField) {
+        assert lockReference != null;
+        assert methodWithClass != null;
+        mLockReference = lockReference;
+        mMethodWithClass = methodWithClass;
+        mLineNumber = lineNumber;
+        mLockedField = lockedField;
+    }
+
+    public String getLockReference() {
+        return mLockReference;
+    }
+
+    public String getMethodWithClass() {
+        return mMethodWithClass;
+    }
+
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    public String getLockedField() {
+        return mLockedField;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof CallSite)) {
+            return false;
+        }
+        final CallSite otherSite = (CallSite) other;
+        return mLineNumber == otherSite.mLineNumber
+               && mLockReference.equals(otherSite.mLockReference)
+               && mMethodWithClass.equals(otherSite.mMethodWithClass)
+               && (mLockedField == null
+                   ? otherSite.mLockedField == null
+                   : mLockedField.equals(otherSite.mLockedField));
+    }
+
+    public int hashCode() {
+        return mLockReference.hashCode()
+               + mMethodWithClass.hashCode()
+               + mLineNumber;
+    }
+
+    public String toString() {
+        return "LockRef: " + mLockReference
+               + " Method: " + mMethodWithClass
+               + " Line: " + mLineNumber;
+    }
+}
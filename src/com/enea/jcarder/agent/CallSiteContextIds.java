@@ -0,0 +1,112 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * This class maps call site IDs to locking context IDs for all threads.
+ *
+ * Since a locking context only depends on the call site, the ID can be shared
+ * by all threads; a thread that enters a monitor at a known call site does
+ * not need any state of its own for it, which matters when there are many
+ * short-lived threads.
+ *
+ * Lookups do not take any lock. The array is replaced, never modified in
+ * place, when it grows, and IDs are set while holding the lock of this.
+ *
+ * The call sites that map to each context ID are remembered as well, so that
+ * when a bounded LockingContextIdCache evicts a context, only the call sites
+ * that map to it are cleared and get their IDs from the cache again. A
+ * thread that has read an ID just before it is cleared may still use it,
+ * which is harmless since the context record with that ID has been written.
+ */
+@ThreadSafe
+final class CallSiteContextIds {
+    static final int NO_CONTEXT_ID = -1;
+    private static final int INITIAL_CAPACITY = 256;
+    private volatile int[] mContextIds = new int[0];
+    @GuardedBy("this")
+    private final HashMap<Integer, List<Integer>> mCallSitesByContextId =
+        new HashMap<Integer, List<Integer>>();
+
+    /**
+     * @return The locking context ID of a call site, or NO_CONTEXT_ID if it
+     *         has not been set.
+     */
+    int get(int callSiteId) {
+        final int[] contextIds = mContextIds;
+        if (callSiteId < contextIds.length) {
+            return contextIds[callSiteId];
+        }
+        return NO_CONTEXT_ID;
+    }
+
+    synchronized void set(int callSiteId, int contextId) {
+        int[] contextIds = mContextIds;
+        if (callSiteId >= contextIds.length) {
+            contextIds = grow(callSiteId);
+        }
+        if (contextIds[callSiteId] == contextId) {
+            return;
+        }
+        contextIds[callSiteId] = contextId;
+        List<Integer> callSites = mCallSitesByContextId.get(contextId);
+        if (callSites == null) {
+            callSites = new ArrayList<Integer>(1);
+            mCallSitesByContextId.put(contextId, callSites);
+        }
+        callSites.add(callSiteId);
+    }
+
+    /**
+     * Forget the call sites that map to a locking context ID.
+     */
+    synchronized void clear(int contextId) {
+        final List<Integer> callSites =
+            mCallSitesByContextId.remove(contextId);
+        if (callSites == null) {
+            return;
+        }
+        final int[] contextIds = mContextIds;
+        for (int callSiteId : callSites) {
+            if (contextIds[callSiteId] == contextId) {
+                contextIds[callSiteId] = NO_CONTEXT_ID;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private int[] grow(int callSiteId) {
+        final int[] contextIds = mContextIds;
+        int capacity = Math.max(INITIAL_CAPACITY, contextIds.length);
+        while (capacity <= callSiteId) {
+            capacity *= 2;
+        }
+        final int[] grown = new int[capacity];
+        System.arraycopy(contextIds, 0, grown, 0, contextIds.length);
+        Arrays.fill(grown, contextIds.length, capacity, NO_CONTEXT_ID);
+        mContextIds = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * This class assigns IDs to the call sites that are found when classes are
+ * instrumented. The instrumented code passes the ID of a call site as a
+ * constant to the StaticEventListener, so nothing that describes the call
+ * site needs to be created when a monitor is entered.
+ *
+ * The IDs are small consecutive integers starting at zero and are valid for
+ * the lifetime of the JVM. A call site that is registered more than once, for
+ * example when the same class is loaded by several class loaders, gets the
+ * same ID each time.
+ */
+@ThreadSafe
+public final class CallSiteRegistry {
+    /**
+     * The call site that is returned for an ID that has not been registered,
+     * for example an ID in a class that was instrumented by another JVM.
+     */
+    public static final CallSite UNKNOWN_SITE =
+        new CallSite("???", "???", CallSite.UNKNOWN_LINE);
+    private static final int INITIAL_CAPACITY = 256;
+    private static final HashMap<CallSite, Integer> smIds =
+        new HashMap<CallSite, Integer>();
+    private static volatile AtomicReferenceArray<CallSite> smSites =
+        new AtomicReferenceArray<CallSite>(INITIAL_CAPACITY);
+
+    private CallSiteRegistry() { }
+
+    /**
+     * Register a call site and return its ID.
+     */
+    public static synchronized int register(CallSite site) {
+        final Integer existingId = smIds.get(site);
+        if (existingId != null) {
+            return existingId;
+        }
+        final int id = smIds.size();
+        AtomicReferenceArray<CallSite> sites = smSites;
+        if (id == sites.length()) {
+            final AtomicReferenceArray<CallSite> newSites =
+                new AtomicReferenceArray<CallSite>(2 * sites.length());
+            for (int i = 0; i < id; i++) {
+                newSites.set(i, sites.get(i));
+            }
+            sites = newSites;
+            smSites = newSites;
+        }
+        sites.set(id, site);
+        smIds.put(site, id);
+        return id;
+    }
+
+    /**
+     * Get a call site by its ID. Call sites that are already visible to the
+     * calling thread are returned without taking any lock.
+     *
+     * @return The call site, or UNKNOWN_SITE if no call site has been
+     *         registered with the ID.
+     */
+    public static CallSite getSite(int id) {
+        if (id < 0) {
+            return UNKNOWN_SITE;
+        }
+        final AtomicReferenceArray<CallSite> sites = smSites;
+        if (id < sites.length()) {
+            final CallSite site = sites.get(id);
+            if (site != null) {
+                return site;
+            }
+        }
+        synchronized (CallSiteRegistry.class) {
+            if (id < smIds.size()) {
+                return smSites.get(id);
+            }
+            return UNKNOWN_SITE;
+        }
+    }
+
+    /**
+     * Get the number of registered call sites.
+     */
+    public static synchronized int size() {
+        return smIds.size();
+    }
+}
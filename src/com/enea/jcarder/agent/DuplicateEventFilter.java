@@ -0,0 +1,277 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.Striping;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This class passes only the first occurrence of each lock event on to an
+ * underlying LockEventListenerIfc. Later occurrences of the same event are
+ * counted, and the counts are passed on with onDuplicateLockEvents when the
+ * filter is closed or when the thread that counted them has terminated.
+ *
+ * Each thread remembers the events that it has passed on in a set of its own,
+ * so the threads never wait for each other. The set is bounded; when it is
+ * full, new events are passed on without being remembered.
+ */
+@ThreadSafe
+final class DuplicateEventFilter
+implements LockEventListenerIfc, Flushable {
+    private static final int MAX_EVENTS_PER_THREAD = 4096;
+    private final LockEventListenerIfc mTarget;
+    private final Logger mLogger;
+    private final ConcurrentLinkedQueue<EventSet> mSets;
+    private final ThreadLocal<EventSet> mThreadLocalSet;
+
+    public DuplicateEventFilter(Logger logger, LockEventListenerIfc target) {
+        mLogger = logger;
+        mTarget = target;
+        mSets = new ConcurrentLinkedQueue<EventSet>();
+        mThreadLocalSet = new ThreadLocal<EventSet>() {
+            protected EventSet initialValue() {
+                flushTerminatedThreads();
+                EventSet set = new EventSet(Thread.currentThread());
+                mSets.add(set);
+                return set;
+            }
+        };
+    }
+
+    public void onLockEvent(int lockId,
+                            int lockingContextId,
+                            int lastTakenLockId,
+                            int lastTakenLockingContextId,
+                            int threadId) throws IOException {
+        if (mThreadLocalSet.get().addOrCount(lockId,
+                                             lockingContextId,
+                                             lastTakenLockId,
+                                             lastTakenLockingContextId,
+                                             threadId)) {
+            mTarget.onLockEvent(lockId,
+                                lockingContextId,
+                                lastTakenLockId,
+                                lastTakenLockingContextId,
+                                threadId);
+        }
+    }
+
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContextId,
+                                      int threadId,
+                                      long count) throws IOException {
+        mTarget.onDuplicateLockEvents(lockId,
+                                      lockingContextId,
+                                      lastTakenLockId,
+                                      lastTakenLockingContextId,
+                                      threadId,
+                                      count);
+    }
+
+    /**
+     * Pass all counted duplicates on to the underlying listener. Events that
+     * occur after this method has been called are still filtered, and their
+     * duplicates are passed on by the next call.
+     */
+    public void flush() throws IOException {
+        for (EventSet set : mSets) {
+            set.flushTo(mTarget);
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void flushTerminatedThreads() {
+        Iterator<EventSet> iter = mSets.iterator();
+        while (iter.hasNext()) {
+            EventSet set = iter.next();
+            if (set.isOwnerTerminated()) {
+                try {
+                    set.flushTo(mTarget);
+                } catch (IOException e) {
+                    mLogger.severe("Failed to write duplicate lock events: "
+                                   + e.getMessage());
+                }
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * An open-addressing hash set of lock events with a count of suppressed
+     * duplicates for each event. It is only modified by the thread that owns
+     * it, which does so without taking any lock, while other threads flush
+     * it.
+     *
+     * The counts only grow. The owner writes each count with lazySet after
+     * the event that it counts, so a thread that reads the count also sees
+     * the event, and the flushing thread remembers how much of each count it
+     * has passed on. The set is only locked while it grows, so that the
+     * flushed counts move along with the events, and while it is flushed.
+     */
+    private static final class EventSet {
+        private static final int INTS_PER_EVENT = 5;
+        private static final int INITIAL_CAPACITY = 64;
+        private static final long EMPTY = -1;
+        private final WeakReference<Thread> mOwner;
+        @GuardedBy("this")
+        private int[] mEvents;
+        @GuardedBy("this")
+        private AtomicLongArray mDuplicates;
+        @GuardedBy("this")
+        private long[] mFlushedDuplicates;
+        private int mSize = 0;
+
+        EventSet(Thread owner) {
+            mOwner = new WeakReference<Thread>(owner);
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            mEvents = new int[capacity * INTS_PER_EVENT];
+            final long[] duplicates = new long[capacity];
+            Arrays.fill(duplicates, EMPTY);
+            mDuplicates = new AtomicLongArray(duplicates);
+            mFlushedDuplicates = new long[capacity];
+        }
+
+        /**
+         * Must only be called by the thread that owns the set. The fields
+         * that are guarded by the lock are only written by that thread, so
+         * it may read them without the lock.
+         *
+         * @return true if the event is new and shall be passed on.
+         */
+        boolean addOrCount(int lockId,
+                           int lockingContextId,
+                           int lastTakenLockId,
+                           int lastTakenLockingContextId,
+                           int threadId) {
+            final int[] events = mEvents;
+            final AtomicLongArray duplicates = mDuplicates;
+            final int mask = duplicates.length() - 1;
+            int hash = lockId;
+            hash = 31 * hash + lockingContextId;
+            hash = 31 * hash + lastTakenLockId;
+            hash = 31 * hash + lastTakenLockingContextId;
+            hash = 31 * hash + threadId;
+            int slot = Striping.spread(hash) & mask;
+            long count;
+            while ((count = duplicates.get(slot)) != EMPTY) {
+                final int i = slot * INTS_PER_EVENT;
+                if (events[i] == lockId
+                    && events[i + 1] == lockingContextId
+                    && events[i + 2] == lastTakenLockId
+                    && events[i + 3] == lastTakenLockingContextId
+                    && events[i + 4] == threadId) {
+                    duplicates.lazySet(slot, count + 1);
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (mSize >= MAX_EVENTS_PER_THREAD) {
+                return true;
+            }
+            final int i = slot * INTS_PER_EVENT;
+            events[i] = lockId;
+            events[i + 1] = lockingContextId;
+            events[i + 2] = lastTakenLockId;
+            events[i + 3] = lastTakenLockingContextId;
+            events[i + 4] = threadId;
+            duplicates.lazySet(slot, 0); // Publishes the event.
+            mSize++;
+            if (2 * mSize > duplicates.length()) {
+                grow();
+            }
+            return true;
+        }
+
+        private synchronized void grow() {
+            final int[] oldEvents = mEvents;
+            final AtomicLongArray oldDuplicates = mDuplicates;
+            final long[] oldFlushedDuplicates = mFlushedDuplicates;
+            allocate(2 * oldDuplicates.length());
+            final int mask = mDuplicates.length() - 1;
+            for (int oldSlot = 0;
+                 oldSlot < oldDuplicates.length();
+                 oldSlot++) {
+                final long duplicates = oldDuplicates.get(oldSlot);
+                if (duplicates == EMPTY) {
+                    continue;
+                }
+                final int j = oldSlot * INTS_PER_EVENT;
+                int hash = oldEvents[j];
+                for (int k = 1; k < INTS_PER_EVENT; k++) {
+                    hash = 31 * hash + oldEvents[j + k];
+                }
+                int slot = Striping.spread(hash) & mask;
+                while (mDuplicates.get(slot) != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(oldEvents, j,
+                                 mEvents, slot * INTS_PER_EVENT,
+                                 INTS_PER_EVENT);
+                mFlushedDuplicates[slot] = oldFlushedDuplicates[oldSlot];
+                mDuplicates.set(slot, duplicates);
+            }
+        }
+
+        /**
+         * Pass on the duplicates that have been counted since the last flush.
+         * The events are still remembered.
+         */
+        synchronized void flushTo(LockEventListenerIfc target)
+        throws IOException {
+            final AtomicLongArray duplicates = mDuplicates;
+            for (int slot = 0; slot < duplicates.length(); slot++) {
+                final long count = duplicates.get(slot);
+                final long unflushed = count - mFlushedDuplicates[slot];
+                if (count != EMPTY && unflushed > 0) {
+                    final int i = slot * INTS_PER_EVENT;
+                    target.onDuplicateLockEvents(mEvents[i],
+                                                 mEvents[i + 1],
+                                                 mEvents[i + 2],
+                                                 mEvents[i + 3],
+                                                 mEvents[i + 4],
+                                                 unflushed);
+                    mFlushedDuplicates[slot] = count;
+                }
+            }
+        }
+
+        boolean isOwnerTerminated() {
+            final Thread owner = mOwner.get();
+            return owner == null || !owner.isAlive();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Each instance of this class is a stack of the monitors that a thread holds,
+ * with the most recently entered monitor on top.
+ *
+ * The stack is backed by parallel arrays of monitors, lock IDs and locking
+ * context IDs that are reused between acquisitions, so pushing and popping
+ * does not allocate any objects once the arrays are large enough. The arrays
+ * hold strong references to the monitors, but only for as long as they are
+ * held by the thread; the slot of a monitor is cleared when it is exited.
+ *
+ * A monitor that is entered again by a thread that already holds it is pushed
+ * as a reentry, which is needed to match the inner monitor exit but never
+ * gives rise to any lock event. A monitor that is filtered out is pushed the
+ * same way.
+ *
+ * A monitor that is not sampled is pushed as unresolved, without lock and
+ * locking context IDs. Its context ID slot holds the call site ID instead,
+ * so that the IDs can be resolved later if needed. The call site ID of a
+ * lock that was acquired in shared mode is stored as its complement.
+ */
+@NotThreadSafe
+final class EnteredMonitorStack {
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int REENTRY = -1; // Also used for ignored monitors.
+    private static final int UNRESOLVED = -2;
+    private Object[] mMonitors;
+    private int[] mLockIds;
+    private int[] mLockingContextIds;
+    private int mSize = 0;
+
+    EnteredMonitorStack() {
+        mMonitors = new Object[INITIAL_CAPACITY];
+        mLockIds = new int[INITIAL_CAPACITY];
+        mLockingContextIds = new int[INITIAL_CAPACITY];
+    }
+
+    boolean contains(Object monitor) {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mMonitors[i] == monitor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void push(Object monitor, int lockId, int lockingContextId) {
+        assert lockId != REENTRY && lockId != UNRESOLVED;
+        if (mSize == mMonitors.length) {
+            grow();
+        }
+        mMonitors[mSize] = monitor;
+        mLockIds[mSize] = lockId;
+        mLockingContextIds[mSize] = lockingContextId;
+        mSize++;
+    }
+
+    void pushReentry(Object monitor) {
+        if (mSize == mMonitors.length) {
+            grow();
+        }
+        mMonitors[mSize] = monitor;
+        mLockIds[mSize] = REENTRY;
+        mLockingContextIds[mSize] = REENTRY;
+        mSize++;
+    }
+
+    /**
+     * Push a monitor that shall neither give rise to lock events nor be the
+     * last taken monitor of any lock event.
+     */
+    void pushIgnored(Object monitor) {
+        pushReentry(monitor);
+    }
+
+    void pushUnresolved(Object monitor, int callSiteId) {
+        pushUnresolved(monitor, callSiteId, false);
+    }
+
+    void pushUnresolved(Object monitor, int callSiteId, boolean shared) {
+        assert callSiteId >= 0;
+        if (mSize == mMonitors.length) {
+            grow();
+        }
+        mMonitors[mSize] = monitor;
+        mLockIds[mSize] = UNRESOLVED;
+        mLockingContextIds[mSize] = shared ? ~callSiteId : callSiteId;
+        mSize++;
+    }
+
+    boolean isResolved(int index) {
+        return mLockIds[index] != UNRESOLVED;
+    }
+
+    /**
+     * @return The call site ID of an unresolved monitor.
+     */
+    int getCallSiteId(int index) {
+        assert !isResolved(index);
+        final int callSiteId = mLockingContextIds[index];
+        return callSiteId < 0 ? ~callSiteId : callSiteId;
+    }
+
+    /**
+     * @return Whether an unresolved lock was acquired in shared mode.
+     */
+    boolean isShared(int index) {
+        assert !isResolved(index);
+        return mLockingContextIds[index] < 0;
+    }
+
+    void resolve(int index, int lockId, int lockingContextId) {
+        assert !isResolved(index);
+        mLockIds[index] = lockId;
+        mLockingContextIds[index] = lockingContextId;
+    }
+
+    /**
+     * Get the position of the most recently entered monitor that is not a
+     * reentry.
+     *
+     * @return The position or -1 if no monitor is held.
+     */
+    int getLastTakenIndex() {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mLockIds[i] != REENTRY) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    Object getMonitor(int index) {
+        return mMonitors[index];
+    }
+
+    int getLockId(int index) {
+        return mLockIds[index];
+    }
+
+    int getLockingContextId(int index) {
+        return mLockingContextIds[index];
+    }
+
+    /**
+     * Remove the most recently entered instance of a monitor. Normally that
+     * is the top of the stack, since monitors are exited in the reverse
+     * order of how they were entered. Monitors that are not on the stack,
+     * for example monitors entered before the agent started to record, are
+     * ignored.
+     */
+    void remove(Object monitor) {
+        final int top = mSize - 1;
+        if (top >= 0 && mMonitors[top] == monitor) {
+            mMonitors[top] = null;
+            mSize = top;
+            return;
+        }
+        for (int i = top - 1; i >= 0; i--) {
+            if (mMonitors[i] == monitor) {
+                final int moved = top - i;
+                System.arraycopy(mMonitors, i + 1, mMonitors, i, moved);
+                System.arraycopy(mLockIds, i + 1, mLockIds, i, moved);
+                System.arraycopy(mLockingContextIds, i + 1,
+                                 mLockingContextIds, i, moved);
+                mMonitors[top] = null;
+                mSize = top;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget all monitors.
+     */
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mMonitors[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void grow() {
+        final int newCapacity = 2 * mMonitors.length;
+        Object[] monitors = new Object[newCapacity];
+        int[] lockIds = new int[newCapacity];
+        int[] lockingContextIds = new int[newCapacity];
+        System.arraycopy(mMonitors, 0, monitors, 0, mSize);
+        System.arraycopy(mLockIds, 0, lockIds, 0, mSize);
+        System.arraycopy(mLockingContextIds, 0, lockingContextIds, 0, mSize);
+        mMonitors = monitors;
+        mLockIds = lockIds;
+        mLockingContextIds = lockingContextIds;
+    }
+}
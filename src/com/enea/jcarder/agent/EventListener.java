@@ -16,87 +16,484 @@
 
 package com.enea.jcarder.agent;
 
-import static com.enea.jcarder.common.contexts.ContextFileReader.EVENT_DB_FILENAME;
-import static com.enea.jcarder.common.contexts.ContextFileReader.CONTEXTS_DB_FILENAME;
-
-import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jcip.annotations.ThreadSafe;
 
+import com.enea.jcarder.agent.RecordingConfig.LockIdentity;
 import com.enea.jcarder.common.LockingContext;
-import com.enea.jcarder.common.contexts.ContextFileWriter;
+import com.enea.jcarder.common.LockingThread;
 import com.enea.jcarder.common.contexts.ContextWriterIfc;
-import com.enea.jcarder.common.events.EventFileWriter;
 import com.enea.jcarder.common.events.LockEventListenerIfc;
-import com.enea.jcarder.util.Counter;
+import com.enea.jcarder.util.ConcurrentCounter;
 import com.enea.jcarder.util.logging.Logger;
 
 @ThreadSafe
 final class EventListener implements EventListenerIfc {
-    private final ThreadLocalEnteredMonitors mEnteredMonitors;
+    static final String UNNAMED_POOL_NAME = "unnamed-thread-*";
+    static final String OVERFLOW_POOL_NAME = "other-thread-*";
+    private static final AtomicInteger smLockIdCacheGenerations =
+        new AtomicInteger(0);
+    private final ThreadLocalState mThreadState;
     private final LockEventListenerIfc mLockEventListener;
     private final LockIdGenerator mLockIdGenerator;
+    private final AggregateLockIds mAggregateLockIds;
+    private final int mLockIdCacheGeneration;
     private final LockingContextIdCache mContextCache;
+    private final CallSiteContextIds mCallSiteContextIds;
+    private final CallSiteContextIds mSharedCallSiteContextIds;
+    private final Object mContextIdLock = new Object();
+    private final ContextWriterIfc mContextWriter;
+    private final ThreadNameNormalizer mThreadNameNormalizer;
+    private final SamplingPolicy mSamplingPolicy;
+    private final OverheadGovernor mGovernor;
+    private volatile RecordingFilter mFilter;
+    private final ConcurrentHashMap<String, Integer> mPooledThreadIds;
+    private final AtomicInteger mNumberOfThreadRecords;
+    private final int mMaxThreadRecords;
     private final Logger mLogger;
-    private final Counter mNumberOfEnteredMonitors;
+    private final ConcurrentCounter mNumberOfEnteredMonitors;
+    private final ConcurrentCounter mNumberOfSkippedMonitors;
 
-    public static EventListener create(Logger logger, File outputdir)
-    throws IOException {
-        EventFileWriter eventWriter =
-            new EventFileWriter(logger,
-                                new File(outputdir, EVENT_DB_FILENAME));
-        ContextFileWriter contextWriter =
-            new ContextFileWriter(logger,
-                                  new File(outputdir, CONTEXTS_DB_FILENAME));
-        return new EventListener(logger, eventWriter, contextWriter);
+    public EventListener(Logger logger,
+                         LockEventListenerIfc lockEventListener,
+                         ContextWriterIfc contextWriter) {
+        this(logger, lockEventListener, contextWriter, new RecordingConfig());
     }
 
     public EventListener(Logger logger,
                          LockEventListenerIfc lockEventListener,
-                         ContextWriterIfc contextWriter) {
+                         ContextWriterIfc contextWriter,
+                         RecordingConfig config) {
         mLogger = logger;
-        mEnteredMonitors = new ThreadLocalEnteredMonitors();
+        mThreadState = new ThreadLocalState();
         mLockEventListener = lockEventListener;
-        mLockIdGenerator = new LockIdGenerator(mLogger, contextWriter);
-        mContextCache = new LockingContextIdCache(mLogger, contextWriter);
+        mLockIdGenerator = new LockIdGenerator(mLogger,
+                                               contextWriter,
+                                               config.getMaxCachedLocks());
+        if (config.getLockIdentity() == LockIdentity.INSTANCE) {
+            mAggregateLockIds = null;
+        } else {
+            mAggregateLockIds = new AggregateLockIds(mLogger,
+                                                     contextWriter,
+                                                     config.getLockIdentity());
+        }
+        /*
+         * Lock IDs that are cached in the monitors themselves would outlive
+         * their eviction from a bounded LockIdGenerator, so they are only
+         * cached if it is unbounded.
+         */
+        if (config.getMaxCachedLocks() == 0) {
+            mLockIdCacheGeneration =
+                smLockIdCacheGenerations.incrementAndGet();
+        } else {
+            mLockIdCacheGeneration = 0;
+        }
+        mCallSiteContextIds = new CallSiteContextIds();
+        mSharedCallSiteContextIds = new CallSiteContextIds();
+        mContextCache =
+            new LockingContextIdCache(
+                mLogger,
+                contextWriter,
+                config.getMaxCachedContexts(),
+                new LockingContextIdCache.EvictionListener() {
+                    public void contextEvicted(int contextId) {
+                        mCallSiteContextIds.clear(contextId);
+                        mSharedCallSiteContextIds.clear(contextId);
+                    }
+                });
+        mContextWriter = contextWriter;
+        mThreadNameNormalizer = config.getThreadNameNormalizer();
+        mSamplingPolicy = config.getSamplingPolicy();
+        mFilter = config.getRecordingFilter();
+        if (config.getOverheadBudget() > 0) {
+            mGovernor = new OverheadGovernor(mLogger,
+                                             config.getOverheadBudget());
+        } else {
+            mGovernor = null;
+        }
+        mPooledThreadIds = new ConcurrentHashMap<String, Integer>();
+        mNumberOfThreadRecords = new AtomicInteger(0);
+        mMaxThreadRecords = config.getMaxThreadRecords();
         mNumberOfEnteredMonitors =
-            new Counter("Entered Monitors", mLogger, 100000);
+            new ConcurrentCounter("Entered Monitors", mLogger, 100000);
+        mNumberOfSkippedMonitors =
+            new ConcurrentCounter("Skipped Monitors", mLogger, 100000);
+    }
+
+    public void beforeMonitorEnter(Object monitor, int callSiteId)
+    throws Exception {
+        beforeMonitorEnter(monitor, NO_CACHED_LOCK_ID, callSiteId);
     }
 
-    public void beforeMonitorEnter(Object monitor, LockingContext context)
+    public long beforeMonitorEnter(Object monitor,
+                                   long cachedLockId,
+                                   int callSiteId)
     throws Exception {
         mLogger.finest("EventListener.beforeMonitorEnter");
-        Iterator<EnteredMonitor> iter = mEnteredMonitors.getIterator();
-        while (iter.hasNext()) {
-            Object previousEnteredMonitor = iter.next().getMonitorIfStillHeld();
-            if (previousEnteredMonitor == null) {
-                iter.remove();
-            } else if (previousEnteredMonitor == monitor) {
-                return; // Monitor already entered.
+        return beforeEnter(monitor, cachedLockId, callSiteId, false);
+    }
+
+    public void beforeLockAcquire(Object lock,
+                                  boolean shared,
+                                  int callSiteId)
+    throws Exception {
+        mLogger.finest("EventListener.beforeLockAcquire");
+        beforeEnter(lock, NO_CACHED_LOCK_ID, callSiteId, shared);
+    }
+
+    /**
+     * A lock that was acquired without waiting for it can not take part in a
+     * deadlock by being acquired, so it is only pushed in order to be known
+     * to be held, like an outermost monitor.
+     */
+    public void afterLockAcquired(Object lock,
+                                  boolean shared,
+                                  int callSiteId) {
+        mLogger.finest("EventListener.afterLockAcquired");
+        if (lock == null) {
+            return;
+        }
+        final ThreadState state = getThreadState(true);
+        final EnteredMonitorStack stack = state.getEnteredMonitors();
+        if (stack.size() > 0 && stack.contains(lock)) {
+            stack.pushReentry(lock);
+        } else if (!isAccepted(state, lock, callSiteId)) {
+            stack.pushIgnored(lock);
+        } else {
+            enteringOutermostMonitor(state, lock, callSiteId, shared);
+        }
+    }
+
+    public void beforeLockRelease(Object lock) {
+        mLogger.finest("EventListener.beforeLockRelease");
+        beforeMonitorExit(lock);
+    }
+
+    private long beforeEnter(Object monitor,
+                             long cachedLockId,
+                             int callSiteId,
+                             boolean shared)
+    throws Exception {
+        if (monitor == null) {
+            return cachedLockId; // The monitor enter will fail.
+        }
+        final ThreadState state = getThreadState(true);
+        final EnteredMonitorStack stack = state.getEnteredMonitors();
+        if (stack.size() > 0 && stack.contains(monitor)) {
+            // Monitor already entered. The reentry is pushed anyway in order
+            // to match the corresponding monitor exit.
+            stack.pushReentry(monitor);
+        } else if (!isAccepted(state, monitor, callSiteId)) {
+            stack.pushIgnored(monitor);
+        } else if (stack.getLastTakenIndex() < 0) {
+            enteringOutermostMonitor(state, monitor, callSiteId, shared);
+        } else if (!mSamplingPolicy.isSampled(state, callSiteId)) {
+            skippingNewMonitor(state, monitor, callSiteId, shared);
+        } else if (mGovernor == null) {
+            return enteringNewMonitor(state,
+                                      monitor,
+                                      cachedLockId,
+                                      callSiteId,
+                                      shared);
+        } else if (mGovernor.admit(state, callSiteId)) {
+            final long startNanos = System.nanoTime();
+            final long newCachedLockId = enteringNewMonitor(state,
+                                                            monitor,
+                                                            cachedLockId,
+                                                            callSiteId,
+                                                            shared);
+            mGovernor.recorded(state, callSiteId, startNanos);
+            return newCachedLockId;
+        } else {
+            skippingNewMonitor(state, monitor, callSiteId, shared);
+        }
+        return cachedLockId;
+    }
+
+    public void beforeMonitorExit(Object monitor) {
+        mLogger.finest("EventListener.beforeMonitorExit");
+        if (monitor != null) {
+            final ThreadState state = getThreadState(false);
+            if (state != null) {
+                state.getEnteredMonitors().remove(monitor);
             }
         }
-        enteringNewMonitor(monitor, context);
     }
 
-    private synchronized void enteringNewMonitor(Object monitor,
-                                                 LockingContext context)
+    /**
+     * Change which monitor enters are recorded. Monitors that threads hold
+     * when the filter is changed keep the decision of the previous filter.
+     */
+    public void setFilter(RecordingFilter filter) {
+        mFilter = filter;
+    }
+
+    public RecordingFilter getFilter() {
+        return mFilter;
+    }
+
+    public long getNumberOfEnteredMonitors() {
+        return mNumberOfEnteredMonitors.getValue();
+    }
+
+    public long getNumberOfSkippedMonitors() {
+        return mNumberOfSkippedMonitors.getValue();
+    }
+
+    public int getNumberOfKnownLocks() {
+        if (mAggregateLockIds != null) {
+            return mLockIdGenerator.size() + mAggregateLockIds.size();
+        }
+        return mLockIdGenerator.size();
+    }
+
+    public int getNumberOfKnownContexts() {
+        return mContextCache.size();
+    }
+
+    public long getNumberOfEvictedLocks() {
+        return mLockIdGenerator.getEvictions();
+    }
+
+    public long getNumberOfEvictedContexts() {
+        return mContextCache.getEvictions();
+    }
+
+    /**
+     * Get the state of the current thread. If recording has been paused
+     * since the thread last entered or exited a monitor, the monitors that it
+     * entered before the pause are forgotten, since their exits may not have
+     * been reported.
+     *
+     * @param create
+     *            Whether to create the state if the thread has none yet.
+     * @return The state, or null if the thread has none and create is false.
+     */
+    private ThreadState getThreadState(boolean create) {
+        ThreadState state = mThreadState.get();
+        if (state == null) {
+            if (!create) {
+                return null;
+            }
+            state = new ThreadState();
+            mThreadState.set(state);
+        }
+        final int epoch = StaticEventListener.getEpoch();
+        if (state.getEpoch() != epoch) {
+            state.getEnteredMonitors().clear();
+            state.setEpoch(epoch);
+        }
+        return state;
+    }
+
+    private boolean isAccepted(ThreadState state,
+                               Object monitor,
+                               int callSiteId) {
+        final RecordingFilter filter = mFilter;
+        if (filter == RecordingFilter.ACCEPT_ALL) {
+            return true;
+        }
+        return state.isAcceptedBy(filter)
+               && (!filter.filtersMonitors()
+                   || filter.acceptsMonitor(monitor, callSiteId));
+    }
+
+    private void skippingNewMonitor(ThreadState state,
+                                    Object monitor,
+                                    int callSiteId,
+                                    boolean shared) {
+        // The monitor is pushed anyway so that it is known to be held, but
+        // its IDs are only resolved if it is needed as the last taken
+        // monitor of a recorded lock event.
+        mNumberOfSkippedMonitors.increment();
+        state.getEnteredMonitors().pushUnresolved(monitor, callSiteId, shared);
+    }
+
+    /**
+     * No lock event can result from entering a monitor while holding no other
+     * recorded monitor, so the monitor is neither sampled nor throttled, and
+     * its IDs are only resolved if it becomes the last taken monitor of a
+     * lock event. Most monitor enters are outermost ones.
+     */
+    private void enteringOutermostMonitor(ThreadState state,
+                                          Object monitor,
+                                          int callSiteId,
+                                          boolean shared) {
+        mNumberOfEnteredMonitors.increment();
+        state.getEnteredMonitors().pushUnresolved(monitor, callSiteId, shared);
+    }
+
+    /*
+     * This method is deliberately not synchronized. The lock and context ID
+     * generators are thread-safe by themselves and the lock event listener
+     * is either thread-safe or buffers the events per thread.
+     *
+     * Returns the lock ID of the monitor in the form that it is cached in.
+     */
+    private long enteringNewMonitor(ThreadState state,
+                                    Object monitor,
+                                    long cachedLockId,
+                                    int callSiteId,
+                                    boolean shared)
     throws Exception {
         mNumberOfEnteredMonitors.increment();
-        int newLockId = mLockIdGenerator.acquireLockId(monitor);
-        int newContextId = mContextCache.acquireContextId(context);
-        EnteredMonitor lastMonitor = mEnteredMonitors.getFirst();
-        if (lastMonitor != null) {
-            Thread performingThread = Thread.currentThread();
+        final EnteredMonitorStack stack = state.getEnteredMonitors();
+        final int lastTaken = stack.getLastTakenIndex();
+        // The last taken monitor is resolved first, so that monitors get
+        // their IDs in the order in which they were entered.
+        if (lastTaken >= 0 && !stack.isResolved(lastTaken)) {
+            resolve(state, lastTaken);
+        }
+        final int newLockId;
+        if (isCachedLockIdValid(cachedLockId)) {
+            newLockId = (int) cachedLockId;
+        } else {
+            newLockId = acquireLockId(monitor, callSiteId);
+            cachedLockId = toCachedLockId(newLockId);
+        }
+        int newContextId = acquireContextId(callSiteId, shared);
+        // Two lock objects that are part of the same aggregate lock have the
+        // same ID, so nesting them is recorded as an edge from the aggregate
+        // lock to itself, which the Analyzer reports apart from the cycles.
+        if (lastTaken >= 0) {
             mLockEventListener.onLockEvent(newLockId,
                                            newContextId,
-                                           lastMonitor.getLockId(),
-                                           lastMonitor.getLockingContextId(),
-                                           performingThread.getId());
+                                           stack.getLockId(lastTaken),
+                                           stack.getLockingContextId(lastTaken),
+                                           acquireThreadId(state));
+        }
+        stack.push(monitor, newLockId, newContextId);
+        return cachedLockId;
+    }
+
+    /**
+     * A cached lock ID is only valid for the EventListener that cached it,
+     * which it tells by the generation in the upper half of the value.
+     */
+    private boolean isCachedLockIdValid(long cachedLockId) {
+        return mLockIdCacheGeneration != 0
+               && (int) (cachedLockId >>> 32) == mLockIdCacheGeneration;
+    }
+
+    private long toCachedLockId(int lockId) {
+        if (mLockIdCacheGeneration == 0) {
+            return NO_CACHED_LOCK_ID;
+        }
+        return ((long) mLockIdCacheGeneration << 32)
+               | (lockId & 0xFFFFFFFFL);
+    }
+
+    private void resolve(ThreadState state, int index) throws Exception {
+        final EnteredMonitorStack stack = state.getEnteredMonitors();
+        final int callSiteId = stack.getCallSiteId(index);
+        final int lockId = acquireLockId(stack.getMonitor(index), callSiteId);
+        final int contextId =
+            acquireContextId(callSiteId, stack.isShared(index));
+        stack.resolve(index, lockId, contextId);
+    }
+
+    /**
+     * Lock objects that are told apart by field or class share the ID of
+     * their aggregate lock. Other lock objects get IDs of their own.
+     */
+    private int acquireLockId(Object monitor, int callSiteId)
+    throws IOException {
+        if (mAggregateLockIds != null) {
+            final int aggregateId =
+                mAggregateLockIds.acquireLockId(monitor, callSiteId);
+            if (aggregateId != AggregateLockIds.NOT_AGGREGATED) {
+                return aggregateId;
+            }
+        }
+        return mLockIdGenerator.acquireLockId(monitor);
+    }
+
+    /**
+     * The locking context ID of a call site is looked up in the
+     * LockingContextIdCache only the first time that any thread enters a
+     * monitor at the call site, and again after a bounded cache has evicted
+     * its context. A call site where locks are acquired both in
+     * shared and exclusive mode, such as a call to Lock.lock(), has one
+     * context for each mode.
+     *
+     * The IDs are looked up and set while holding mContextIdLock, so that a
+     * context cannot be evicted between being looked up and being set,
+     * which would leave the call site mapped to an evicted context.
+     */
+    private int acquireContextId(int callSiteId, boolean shared)
+    throws IOException {
+        final CallSiteContextIds contextIds =
+            shared ? mSharedCallSiteContextIds : mCallSiteContextIds;
+        int contextId = contextIds.get(callSiteId);
+        if (contextId == CallSiteContextIds.NO_CONTEXT_ID) {
+            final CallSite site = CallSiteRegistry.getSite(callSiteId);
+            final LockingContext context =
+                new LockingContext(site.getLockReference(),
+                                   site.getMethodWithClass(),
+                                   shared);
+            synchronized (mContextIdLock) {
+                contextId = mContextCache.acquireContextId(context);
+                contextIds.set(callSiteId, contextId);
+            }
+        }
+        return contextId;
+    }
+
+    /**
+     * The thread is described in the context file the first time it gives
+     * rise to a lock event. The name that is recorded is the name that the
+     * thread has at that time. Threads whose names are normalized to the same
+     * pool name share one pooled description.
+     *
+     * The number of threads that are described individually is bounded.
+     * Threads without names, such as virtual threads, and threads beyond the
+     * bound share pooled descriptions too.
+     */
+    private int acquireThreadId(ThreadState state) throws IOException {
+        int threadId = state.getThreadId();
+        if (threadId == ThreadState.NO_THREAD_ID) {
+            final Thread thread = Thread.currentThread();
+            String poolName =
+                mThreadNameNormalizer.normalize(thread.getName());
+            if (poolName == null && thread.getName().length() == 0) {
+                poolName = UNNAMED_POOL_NAME;
+            }
+            if (poolName == null
+                && mNumberOfThreadRecords.get() >= mMaxThreadRecords) {
+                poolName = OVERFLOW_POOL_NAME;
+            }
+            if (poolName == null) {
+                mNumberOfThreadRecords.incrementAndGet();
+                threadId =
+                    mContextWriter.writeThread(new LockingThread(thread));
+                mLogger.finest("Created new thread ID: " + threadId);
+            } else {
+                threadId = acquirePooledThreadId(poolName, thread);
+            }
+            state.setThreadId(threadId);
+        }
+        return threadId;
+    }
+
+    private int acquirePooledThreadId(String poolName, Thread thread)
+    throws IOException {
+        final Integer existingId = mPooledThreadIds.get(poolName);
+        if (existingId != null) {
+            return existingId;
+        }
+        synchronized (mPooledThreadIds) {
+            Integer id = mPooledThreadIds.get(poolName);
+            if (id == null) {
+                id = mContextWriter.writeThread(
+                    LockingThread.createPooled(poolName, thread));
+                mPooledThreadIds.put(poolName, id);
+                mLogger.finest("Created new pooled thread ID: " + id
+                               + " for " + poolName);
+            }
+            return id;
         }
-        mEnteredMonitors.addFirst(new EnteredMonitor(monitor,
-                                                     newLockId,
-                                                     newContextId));
     }
 }
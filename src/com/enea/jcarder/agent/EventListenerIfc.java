@@ -16,11 +16,47 @@
 
 package com.enea.jcarder.agent;
 
-import com.enea.jcarder.common.LockingContext;
-
 public interface EventListenerIfc {
+    long NO_CACHED_LOCK_ID = 0;
+
+    void beforeMonitorEnter(Object monitor, int callSiteId) throws Exception;
+
+    /**
+     * Like beforeMonitorEnter(Object, int), for a monitor that caches its
+     * lock ID in a field of its own.
+     *
+     * @param cachedLockId
+     *            The value of the field, or NO_CACHED_LOCK_ID if nothing has
+     *            been cached in it yet.
+     * @return The value to store in the field.
+     */
+    long beforeMonitorEnter(Object monitor, long cachedLockId, int callSiteId)
+    throws Exception;
+
+    void beforeMonitorExit(Object monitor) throws Exception;
+
+    /**
+     * Like beforeMonitorEnter(Object, int), for a java.util.concurrent lock
+     * that is about to be acquired by a blocking call.
+     *
+     * @param lock
+     *            The lock, or the lock that owns it if it is a view of a lock
+     *            such as the read lock of a ReentrantReadWriteLock.
+     * @param shared
+     *            Whether the lock is acquired in shared mode.
+     */
+    void beforeLockAcquire(Object lock, boolean shared, int callSiteId)
+    throws Exception;
 
-    void beforeMonitorEnter(Object monitor,
-                            LockingContext context) throws Exception;
+    /**
+     * Like beforeLockAcquire, for a lock that has been acquired by a call
+     * that does not wait for it indefinitely, such as tryLock.
+     */
+    void afterLockAcquired(Object lock, boolean shared, int callSiteId)
+    throws Exception;
 
+    /**
+     * Like beforeMonitorExit, for a java.util.concurrent lock.
+     */
+    void beforeLockRelease(Object lock) throws Exception;
 }
@@ -16,18 +16,27 @@
 
 package com.enea.jcarder.agent;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.GuardedBy;
+
 import com.enea.jcarder.agent.instrument.ClassTransformer;
 import com.enea.jcarder.agent.instrument.InstrumentConfig;
+import com.enea.jcarder.agent.instrument.InstrumentFilter;
 import com.enea.jcarder.util.BuildInformation;
 import com.enea.jcarder.util.logging.AppendableHandler;
 import com.enea.jcarder.util.logging.Handler;
@@ -37,18 +46,48 @@ import com.enea.jcarder.util.logging.Logger;
  * This is the main class of the JCarder Java agent. It will initialize JCarder
  * and register a ClassTransformer that is called by the JVM each time a class
  * is loaded.
+ *
+ * The agent is either given when the JVM is started, in which case it records
+ * until the JVM exits, or attached to a running JVM, in which case it records
+ * until it is detached again.
  */
 public final class JavaAgent {
 
+    private static final String BUFFEREVENTS_PROPERTY = "jcarder.bufferevents";
+    private static final String CACHEDIR_PROPERTY = "jcarder.cachedir";
     private static final String DUMP_PROPERTY = "jcarder.dump";
+    private static final String FILTER_PROPERTY = "jcarder.filter";
+    private static final String INSTRUMENTRULES_PROPERTY =
+        "jcarder.instrumentrules";
+    private static final String LOCKIDENTITY_PROPERTY =
+        "jcarder.lockidentity";
     private static final String LOGLEVEL_PROPERTY = "jcarder.loglevel";
+    private static final String MAXCONTEXTS_PROPERTY = "jcarder.maxcontexts";
+    private static final String MAXLOCKS_PROPERTY = "jcarder.maxlocks";
+    private static final String MAXTHREADRECORDS_PROPERTY =
+        "jcarder.maxthreadrecords";
+    private static final String OVERHEADBUDGET_PROPERTY =
+        "jcarder.overheadbudget";
     private static final String LOG_FILENAME = "jcarder.log";
+    private static final String SAMPLING_PROPERTY = "jcarder.sampling";
+    private static final String SUPPRESSDUPLICATES_PROPERTY =
+        "jcarder.suppressduplicates";
+    private static final String THREADNAMERULES_PROPERTY =
+        "jcarder.threadnamerules";
+    private static final String DETACH_ARGUMENT = "detach";
+    private static final String DURATION_ARGUMENT = "duration=";
+
+    @GuardedBy("JavaAgent.class")
+    private static Attachment smAttachment = null;
 
     private final InstrumentConfig mConfig = new InstrumentConfig();
+    private final RecordingConfig mRecordingConfig = new RecordingConfig();
     private Logger mLogger;
     PrintWriter mLogWriter;
+    private Thread mLogFlushHook;
     private File mOutputDir;
     private Logger.Level mLogLevel;
+    private boolean mAttaching = false;
     private static final String OUTPUTDIR_PROPERTY = "jcarder.outputdir";
 
     private JavaAgent() { }
@@ -56,28 +95,170 @@ public final class JavaAgent {
     /**
      * This method is called by the JVM when the JVM is started with the
      * -javaagent command line parameter.
+     *
+     * @param args
+     *            Rules for which classes and methods to instrument, on the
+     *            format described in InstrumentFilter, or null.
      */
     public static void premain(final String args,
                                final Instrumentation instrumentation)
     throws Exception {
         JavaAgent javaAgent = new JavaAgent();
-        javaAgent.init(instrumentation);
+        javaAgent.init(args, instrumentation);
     }
 
-    private void init(Instrumentation instrumentation)
+    /**
+     * This method is called by the JVM when the agent is attached to a
+     * running JVM.
+     *
+     * @param args
+     *            Semicolon separated arguments. "duration=SECONDS" makes the
+     *            agent detach itself after that many seconds, and "detach"
+     *            detaches an agent that was attached earlier. The remaining
+     *            arguments are rules for which classes and methods to
+     *            instrument, as for premain.
+     */
+    public static void agentmain(final String args,
+                                 final Instrumentation instrumentation)
+    throws Exception {
+        final StringBuffer rules = new StringBuffer();
+        long duration = 0;
+        boolean detach = false;
+        if (args != null) {
+            for (String argument : args.split(";")) {
+                final String trimmed = argument.trim();
+                if (trimmed.equals(DETACH_ARGUMENT)) {
+                    detach = true;
+                } else if (trimmed.startsWith(DURATION_ARGUMENT)) {
+                    duration = parseDuration(
+                        trimmed.substring(DURATION_ARGUMENT.length()));
+                } else {
+                    rules.append(argument).append(';');
+                }
+            }
+        }
+        synchronized (JavaAgent.class) {
+            if (detach) {
+                if (smAttachment == null) {
+                    throw new IllegalStateException(
+                        "The JCarder agent is not attached");
+                }
+                smAttachment.detach();
+            } else {
+                if (smAttachment != null
+                    || StaticEventListener.getListener() != null) {
+                    throw new IllegalStateException(
+                        "The JCarder agent is already recording");
+                }
+                if (!instrumentation.isRetransformClassesSupported()) {
+                    throw new IllegalStateException(
+                        "The JVM can't retransform classes");
+                }
+                JavaAgent javaAgent = new JavaAgent();
+                javaAgent.attach(rules.toString(), instrumentation, duration);
+            }
+        }
+    }
+
+    private static long parseDuration(String value) {
+        long duration = -1;
+        try {
+            duration = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Bad duration: " + value);
+        }
+        return duration;
+    }
+
+    private void init(String args, Instrumentation instrumentation)
     throws Exception {
         handleProperties();
+        handleInstrumentRules(args);
         initLogger();
         mLogger.info("Starting " + BuildInformation.getShortInfo() + " agent");
         logJvmInfo();
-        EventListener listener = EventListener.create(mLogger, mOutputDir);
+        Recording recording =
+            new Recording(mLogger, mOutputDir, mRecordingConfig);
         ClassTransformer classTransformer =
             new ClassTransformer(mLogger, mOutputDir, mConfig);
         instrumentation.addTransformer(classTransformer);
-        StaticEventListener.setListener(listener);
+        StaticEventListener.setListener(recording.getEventListener());
+        registerMBean(new RecordingControl(mLogger,
+                                           mRecordingConfig,
+                                           recording));
         mLogger.info("JCarder agent initialized\n");
     }
 
+    /**
+     * Lock ID fields can't be added to classes that are retransformed, so an
+     * attached agent always looks up lock IDs in the lock ID cache.
+     */
+    @GuardedBy("JavaAgent.class")
+    private void attach(String rules,
+                        Instrumentation instrumentation,
+                        long duration)
+    throws Exception {
+        mAttaching = true;
+        handleProperties();
+        handleInstrumentRules(rules);
+        mConfig.setRetransformable(true);
+        initLogger();
+        mLogger.info("Attaching " + BuildInformation.getShortInfo()
+                     + " agent");
+        logJvmInfo();
+        final Recording recording =
+            new Recording(mLogger, mOutputDir, mRecordingConfig);
+        final ClassTransformer classTransformer =
+            new ClassTransformer(mLogger, mOutputDir, mConfig);
+        final RecordingControl control =
+            new RecordingControl(mLogger, mRecordingConfig, recording);
+        final Attachment attachment =
+            new Attachment(mLogger, instrumentation, classTransformer,
+                           control, new Runnable() {
+                public void run() {
+                    unregisterMBean();
+                    synchronized (JavaAgent.class) {
+                        smAttachment = null;
+                    }
+                    closeLogger();
+                }
+            });
+        StaticEventListener.setListener(recording.getEventListener());
+        attachment.start();
+        smAttachment = attachment;
+        registerMBean(control);
+        if (duration > 0) {
+            mLogger.info("Recording for " + duration + " seconds");
+            attachment.detachAfter(duration);
+        }
+        mLogger.info("JCarder agent attached\n");
+    }
+
+    private void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                new ObjectName(RecordingControl.OBJECT_NAME));
+            mLogger.fine("Unregistered MBean "
+                         + RecordingControl.OBJECT_NAME);
+        } catch (JMException e) {
+            mLogger.warning("Failed to unregister MBean: " + e.getMessage());
+        }
+    }
+
+    private void registerMBean(RecordingControl control) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                control,
+                new ObjectName(RecordingControl.OBJECT_NAME));
+            mLogger.fine("Registered MBean " + RecordingControl.OBJECT_NAME);
+        } catch (JMException e) {
+            mLogger.warning("Failed to register MBean: " + e.getMessage());
+        }
+    }
+
     private void initLogger() {
         File logFile = new File(mOutputDir, LOG_FILENAME);
         if (logFile.exists()) {
@@ -96,12 +277,12 @@ public final class JavaAgent {
         AppendableHandler consoleHandler =
             new AppendableHandler(System.err, Logger.Level.INFO, "{message}\n");
 
-        Thread hook = new Thread() {
+        mLogFlushHook = new Thread() {
             public void run() {
                 mLogWriter.flush();
             }
         };
-        Runtime.getRuntime().addShutdownHook(hook);
+        Runtime.getRuntime().addShutdownHook(mLogFlushHook);
 
         Collection<Handler> handlers = new ArrayList<Handler>();
         handlers.add(fileHandler);
@@ -109,6 +290,23 @@ public final class JavaAgent {
         mLogger = new Logger(handlers, mLogLevel);
     }
 
+    /**
+     * Close the log file of an agent that is detached, and remove its
+     * shutdown hook, so that an agent that is attached again does not leave
+     * the log file of the previous one open.
+     */
+    private void closeLogger() {
+        if (mLogWriter == null) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(mLogFlushHook);
+        } catch (IllegalStateException e) {
+            // The JVM is shutting down; the hook may be running already.
+        }
+        mLogWriter.close();
+    }
+
     private void logJvmInfo() {
         Enumeration<?> properties = System.getProperties().propertyNames();
         while (properties.hasMoreElements()) {
@@ -120,15 +318,118 @@ public final class JavaAgent {
     }
 
     private void handleProperties() throws IOException {
+        handleBufferEventsProperty();
+        handleCacheDirProperty();
         handleDumpProperty();
+        handleFilterProperty();
+        handleLockIdentityProperty();
         handleLogLevelProperty();
+        handleMaxCachedProperties();
+        handleMaxThreadRecordsProperty();
         handleOutputDirProperty();
+        handleOverheadBudgetProperty();
+        handleSamplingProperty();
+        handleSuppressDuplicatesProperty();
+        handleThreadNameRulesProperty();
+    }
+
+    private void handleBufferEventsProperty() {
+        mRecordingConfig.setBufferEvents(
+            Boolean.getBoolean(BUFFEREVENTS_PROPERTY));
+    }
+
+    private void handleSuppressDuplicatesProperty() {
+        mRecordingConfig.setSuppressDuplicateEvents(
+            Boolean.getBoolean(SUPPRESSDUPLICATES_PROPERTY));
+    }
+
+    private void handleCacheDirProperty() throws IOException {
+        final String property = System.getProperty(CACHEDIR_PROPERTY);
+        if (property != null) {
+            mConfig.setCacheDirectory(new File(property).getCanonicalFile());
+        }
     }
 
     private void handleDumpProperty() {
         mConfig.setDumpClassFiles(Boolean.getBoolean(DUMP_PROPERTY));
     }
 
+    private void handleFilterProperty() {
+        final String filter = System.getProperty(FILTER_PROPERTY);
+        if (filter != null) {
+            try {
+                mRecordingConfig.setRecordingFilter(
+                    new RecordingFilter(filter));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad recording filter: " + e.getMessage());
+                abort();
+            }
+        }
+    }
+
+    /**
+     * The rules in the file that the property names, if any, come before the
+     * rules in the agent arguments, so the latter override the former. The
+     * file has one or more rules per line. Lines starting with "#" are
+     * comments.
+     */
+    private void handleInstrumentRules(String args) {
+        final StringBuffer rules = new StringBuffer();
+        final String file = System.getProperty(INSTRUMENTRULES_PROPERTY);
+        if (file != null) {
+            try {
+                readInstrumentRules(file, rules);
+            } catch (IOException e) {
+                System.err.println("Failed to read instrumentation rules: "
+                                   + e.getMessage());
+                abort();
+            }
+        }
+        if (args != null) {
+            rules.append(args);
+        }
+        try {
+            mConfig.setInstrumentFilter(
+                new InstrumentFilter(rules.toString()));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Bad instrumentation rules: "
+                               + e.getMessage());
+            abort();
+        }
+    }
+
+    private static void readInstrumentRules(String file, StringBuffer rules)
+    throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().startsWith("#")) {
+                    rules.append(line).append(';');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void handleLockIdentityProperty() {
+        final String value = System.getProperty(LOCKIDENTITY_PROPERTY);
+        if (value != null) {
+            final RecordingConfig.LockIdentity identity =
+                RecordingConfig.LockIdentity.fromString(value);
+            if (identity != null) {
+                mRecordingConfig.setLockIdentity(identity);
+            } else {
+                System.err.print("Bad lock identity; should be one of ");
+                System.err.println(
+                    RecordingConfig.LockIdentity.getEnumeration());
+                System.err.println();
+                abort();
+            }
+        }
+    }
+
     private void handleLogLevelProperty() {
         String logLevelValue = System.getProperty(LOGLEVEL_PROPERTY, "fine");
         Logger.Level logLevel = Logger.Level.fromString(logLevelValue);
@@ -138,7 +439,94 @@ public final class JavaAgent {
             System.err.print("Bad loglevel; should be one of ");
             System.err.println(Logger.Level.getEnumeration());
             System.err.println();
-            System.exit(1);
+            abort();
+        }
+    }
+
+    private void handleThreadNameRulesProperty() {
+        final String rules = System.getProperty(THREADNAMERULES_PROPERTY);
+        if (rules != null) {
+            try {
+                mRecordingConfig.setThreadNameNormalizer(
+                    new ThreadNameNormalizer(rules));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad thread name rules: " + e.getMessage());
+                abort();
+            }
+        }
+    }
+
+    private void handleMaxCachedProperties() {
+        mRecordingConfig.setMaxCachedLocks(
+            getNonNegativeIntProperty(MAXLOCKS_PROPERTY));
+        mRecordingConfig.setMaxCachedContexts(
+            getNonNegativeIntProperty(MAXCONTEXTS_PROPERTY));
+    }
+
+    /**
+     * @return The value of the property, or 0 if it is not set.
+     */
+    private int getNonNegativeIntProperty(String key) {
+        final String value = System.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        int result = -1;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        if (result < 0) {
+            System.err.println("Bad value of " + key + ": " + value);
+            abort();
+        }
+        return result;
+    }
+
+    private void handleMaxThreadRecordsProperty() {
+        final String max = System.getProperty(MAXTHREADRECORDS_PROPERTY);
+        if (max != null) {
+            try {
+                mRecordingConfig.setMaxThreadRecords(Integer.parseInt(max));
+            } catch (NumberFormatException e) {
+                System.err.println("Bad maximum number of thread records: "
+                                   + max);
+                abort();
+            }
+        }
+    }
+
+    /**
+     * The budget is given in percent of the wall time of each thread.
+     */
+    private void handleOverheadBudgetProperty() {
+        final String budget = System.getProperty(OVERHEADBUDGET_PROPERTY);
+        if (budget != null) {
+            double percent = -1;
+            try {
+                percent = Double.parseDouble(budget);
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+            if (percent <= 0 || percent > 100) {
+                System.err.println("Bad overhead budget: " + budget);
+                abort();
+            }
+            mRecordingConfig.setOverheadBudget(percent / 100);
+        }
+    }
+
+    private void handleSamplingProperty() {
+        final String sampling = System.getProperty(SAMPLING_PROPERTY);
+        if (sampling != null) {
+            try {
+                mRecordingConfig.setSamplingPolicy(
+                    SamplingPolicy.parse(sampling));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad sampling mode: " + e.getMessage());
+                abort();
+            }
         }
     }
 
@@ -149,4 +537,16 @@ public final class JavaAgent {
             mOutputDir.mkdirs();
         }
     }
+
+    /**
+     * Give up after a configuration error has been reported. An agent that
+     * is being attached must not take the running JVM down with it.
+     */
+    private void abort() {
+        if (mAttaching) {
+            throw new IllegalArgumentException(
+                "Bad JCarder agent configuration");
+        }
+        System.exit(1);
+    }
 }
@@ -17,11 +17,13 @@
 package com.enea.jcarder.agent;
 
 import java.io.IOException;
-import net.jcip.annotations.NotThreadSafe;
+
+import net.jcip.annotations.ThreadSafe;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.contexts.ContextWriterIfc;
-import com.enea.jcarder.util.IdentityWeakHashMap;
+import com.enea.jcarder.util.ConcurrentIdentityWeakIntMap;
+import com.enea.jcarder.util.Striping;
 import com.enea.jcarder.util.logging.Logger;
 
 /**
@@ -30,11 +32,23 @@ import com.enea.jcarder.util.logging.Logger;
  * We cannot use System.identityHashCode(o) since it returns random numbers,
  * which are not guaranteed to be unique.
  *
+ * The IDs are kept in a ConcurrentIdentityWeakIntMap, so looking up the ID of
+ * an object that already has one does not take any lock. Creating a new ID
+ * takes one of a number of creation monitors, chosen by the identity hash
+ * code of the object, to make sure that only one lock record is written for
+ * each object.
+ *
+ * The number of objects with IDs may be bounded. An object whose ID has been
+ * evicted gets a new ID, and a new lock record, the next time an ID is
+ * requested for it.
+ *
  * TODO Add basic tests for this class.
  */
-@NotThreadSafe
+@ThreadSafe
 final class LockIdGenerator {
-    private final IdentityWeakHashMap<Integer> mIdMap;
+    private final ConcurrentIdentityWeakIntMap mIdMap;
+    private final Object[] mCreationLocks;
+    private final int mStripeMask;
     private final ContextWriterIfc mContextWriter;
     private final Logger mLogger;
 
@@ -42,8 +56,25 @@ final class LockIdGenerator {
      * Create a LockIdGenerator backed by a ContextWriterIfc
      */
     public LockIdGenerator(Logger logger, ContextWriterIfc writer) {
+        this(logger, writer, 0);
+    }
+
+    /**
+     * Create a LockIdGenerator backed by a ContextWriterIfc that remembers
+     * the IDs of at most maxLocks objects, or of any number of objects if
+     * maxLocks is 0.
+     */
+    public LockIdGenerator(Logger logger,
+                           ContextWriterIfc writer,
+                           int maxLocks) {
         mLogger = logger;
-        mIdMap = new IdentityWeakHashMap<Integer>();
+        final int stripes = Striping.getDefaultStripeCount();
+        mStripeMask = stripes - 1;
+        mIdMap = new ConcurrentIdentityWeakIntMap(stripes, maxLocks);
+        mCreationLocks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mCreationLocks[i] = new Object();
+        }
         mContextWriter = writer;
     }
 
@@ -56,12 +87,35 @@ final class LockIdGenerator {
      */
     public int acquireLockId(Object o) throws IOException {
         assert o != null;
-        Integer id = mIdMap.get(o);
-        if (id == null) {
-            id = mContextWriter.writeLock(new Lock(o));
-            mIdMap.put(o, id);
-            mLogger.finest("Created new lock ID: " + id);
+        final int existingId = mIdMap.get(o);
+        if (existingId != ConcurrentIdentityWeakIntMap.NOT_FOUND) {
+            return existingId;
+        }
+        final int hash = Striping.spread(System.identityHashCode(o));
+        synchronized (mCreationLocks[hash & mStripeMask]) {
+            int id = mIdMap.get(o);
+            if (id == ConcurrentIdentityWeakIntMap.NOT_FOUND) {
+                id = mContextWriter.writeLock(new Lock(o));
+                mIdMap.putIfAbsent(o, id);
+                mLogger.finest("Created new lock ID: " + id);
+            }
+            return id;
         }
-        return id;
+    }
+
+    /**
+     * Get the number of objects that have an ID, including objects that have
+     * been garbage collected but not yet forgotten.
+     */
+    public int size() {
+        return mIdMap.size();
+    }
+
+    /**
+     * Get the number of IDs that have been evicted to stay within the
+     * maximum number of objects.
+     */
+    public long getEvictions() {
+        return mIdMap.getEvictions();
     }
 }
@@ -0,0 +1,141 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.util.Striping;
+
+/**
+ * This class keeps track of the locks that are views of other locks, such as
+ * the read and write locks of a ReentrantReadWriteLock, so that all views of
+ * a lock are recorded as the lock that owns them.
+ *
+ * The views are registered when the instrumented classes get them from their
+ * owners, for example by calling ReadWriteLock.readLock(). A view that was
+ * got by code that is not instrumented is recorded as a lock of its own.
+ *
+ * The views are weakly referenced, and so are their owners, since the owners
+ * usually refer to their views. The map is split into stripes, chosen by the
+ * identity hash code of the view, in order to reduce lock contention.
+ */
+@ThreadSafe
+public final class LockViews {
+    private static final int MAX_VIEW_DEPTH = 4;
+    private static final int STRIPE_MASK =
+        Striping.getDefaultStripeCount() - 1;
+    @GuardedBy("smStripes.get(i)")
+    private static final List<WeakHashMap<Object, View>> smStripes =
+        createStripes(STRIPE_MASK + 1);
+
+    private LockViews() { }
+
+    private static final class View {
+        final WeakReference<Object> mOwner;
+        final boolean mShared;
+
+        View(Object owner, boolean shared) {
+            mOwner = new WeakReference<Object>(owner);
+            mShared = shared;
+        }
+    }
+
+    private static List<WeakHashMap<Object, View>> createStripes(int stripes) {
+        final List<WeakHashMap<Object, View>> maps =
+            new ArrayList<WeakHashMap<Object, View>>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            maps.add(new WeakHashMap<Object, View>());
+        }
+        return maps;
+    }
+
+    private static WeakHashMap<Object, View> getStripe(Object view) {
+        final int hash = Striping.spread(System.identityHashCode(view));
+        return smStripes.get(hash & STRIPE_MASK);
+    }
+
+    /**
+     * Register that a lock is a view of another lock.
+     *
+     * @param shared
+     *            Whether the view acquires its owner in shared mode.
+     */
+    public static void register(Object view, Object owner, boolean shared) {
+        if (view == null || owner == null || view == owner) {
+            return;
+        }
+        final WeakHashMap<Object, View> stripe = getStripe(view);
+        synchronized (stripe) {
+            final View existing = stripe.get(view);
+            if (existing == null || existing.mOwner.get() != owner) {
+                stripe.put(view, new View(owner, shared));
+            }
+        }
+    }
+
+    /**
+     * @return The lock that owns a view, or the lock itself if it is not a
+     *         registered view. A view of a view, such as the read lock of
+     *         StampedLock.asReadWriteLock(), is owned by the owner of the
+     *         view that it was got from.
+     */
+    public static Object getOwner(Object lock) {
+        Object owner = lock;
+        for (int i = 0; i < MAX_VIEW_DEPTH; i++) {
+            if (owner == null || owner instanceof ReentrantLock) {
+                return owner;
+            }
+            final View view = getView(owner);
+            final Object viewOwner = view == null ? null : view.mOwner.get();
+            if (viewOwner == null) {
+                return owner;
+            }
+            owner = viewOwner;
+        }
+        return owner;
+    }
+
+    /**
+     * @return Whether a lock is acquired in shared mode. The read lock of a
+     *         ReentrantReadWriteLock is shared even if it is not registered.
+     */
+    public static boolean isShared(Object lock) {
+        if (lock == null || lock instanceof ReentrantLock) {
+            return false;
+        }
+        if (lock instanceof ReentrantReadWriteLock.ReadLock) {
+            return true;
+        }
+        final View view = getView(lock);
+        return view != null && view.mShared;
+    }
+
+    private static View getView(Object lock) {
+        final WeakHashMap<Object, View> stripe = getStripe(lock);
+        synchronized (stripe) {
+            return stripe.get(lock);
+        }
+    }
+}
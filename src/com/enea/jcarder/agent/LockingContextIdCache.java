@@ -20,11 +20,16 @@ import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.HashMap;
-import net.jcip.annotations.NotThreadSafe;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.jcip.annotations.ThreadSafe;
 
 import com.enea.jcarder.common.LockingContext;
 import com.enea.jcarder.common.contexts.ContextWriterIfc;
+import com.enea.jcarder.util.Striping;
 import com.enea.jcarder.util.logging.Logger;
 
 /**
@@ -44,22 +49,71 @@ import com.enea.jcarder.util.logging.Logger;
  * better performance (?) and to avoid getting different IDs for duplicated
  * LockingContexts.
  *
- * TODO Add basic tests for this class.
+ * The cache is split into a number of stripes by the hash code of the
+ * LockingContext, and each stripe is guarded by its own monitor.
+ *
+ * The cache may instead be bounded to a maximum number of contexts. It then
+ * keeps strong references, so that its contents do not depend on the memory
+ * pressure, and each stripe evicts its least recently used context when it
+ * is full. An evicted context gets a new ID, and a new context record, the
+ * next time an ID is requested for it. The maximum is divided between the
+ * stripes, and there are never more stripes than the maximum, so the cache
+ * never holds more contexts than that in total.
  */
-@NotThreadSafe
+@ThreadSafe
 final class LockingContextIdCache {
-    private final HashMap<EqualsComparableKey, Integer> mCache;
-    private final ReferenceQueue<Object> mReferenceQueue;
+    private final List<Stripe> mStripes;
+    private final int mStripeMask;
     private final ContextWriterIfc mContextWriter;
     private final Logger mLogger;
+    private final boolean mBounded;
+
+    /**
+     * Is told about each context that a bounded LockingContextIdCache
+     * evicts, while the stripe of the context is locked.
+     */
+    static interface EvictionListener {
+        void contextEvicted(int contextId);
+    }
 
     /**
      * Create a LockingContextIdCache backed by a ContextWriterIfc.
      */
     public LockingContextIdCache(Logger logger, ContextWriterIfc writer) {
+        this(logger, writer, 0);
+    }
+
+    /**
+     * Create a LockingContextIdCache backed by a ContextWriterIfc that holds
+     * at most maxContexts contexts, or is only limited by the available
+     * memory if maxContexts is 0.
+     */
+    public LockingContextIdCache(Logger logger,
+                                 ContextWriterIfc writer,
+                                 int maxContexts) {
+        this(logger, writer, maxContexts, null);
+    }
+
+    /**
+     * Create a LockingContextIdCache like above that tells a listener about
+     * each context that it evicts.
+     */
+    public LockingContextIdCache(Logger logger,
+                                 ContextWriterIfc writer,
+                                 int maxContexts,
+                                 EvictionListener listener) {
         mLogger = logger;
-        mCache = new HashMap<EqualsComparableKey, Integer>();
-        mReferenceQueue = new ReferenceQueue<Object>();
+        mBounded = maxContexts > 0;
+        int stripes = Striping.getDefaultStripeCount();
+        if (mBounded) {
+            stripes = Math.min(stripes, Integer.highestOneBit(maxContexts));
+        }
+        mStripeMask = stripes - 1;
+        mStripes = new ArrayList<Stripe>(stripes);
+        final int maxStripeSize = mBounded ? maxContexts / stripes : 0;
+        for (int i = 0; i < stripes; i++) {
+            mStripes.add(new Stripe(maxStripeSize, listener));
+        }
         mContextWriter = writer;
     }
 
@@ -73,21 +127,93 @@ final class LockingContextIdCache {
      */
     public int acquireContextId(LockingContext context) throws IOException {
         assert context != null;
-        removeGarbageCollectedKeys();
-        Integer id = mCache.get(new StrongKey(context));
-        if (id == null) {
-            mLogger.finest("Creating new context ID");
-            id = mContextWriter.writeContext(context);
-            mCache.put((new SoftKey(context, mReferenceQueue)), id);
+        final Stripe stripe =
+            mStripes.get(Striping.spread(context.hashCode()) & mStripeMask);
+        synchronized (stripe) {
+            removeGarbageCollectedKeys(stripe);
+            Integer id = stripe.mCache.get(new StrongKey(context));
+            if (id == null) {
+                mLogger.finest("Creating new context ID");
+                id = mContextWriter.writeContext(context);
+                if (mBounded) {
+                    stripe.mCache.put(new StrongKey(context), id);
+                } else {
+                    stripe.mCache.put((new SoftKey(context,
+                                                   stripe.mReferenceQueue)),
+                                      id);
+                }
+            }
+            return id;
         }
-        return id;
     }
 
-    private void removeGarbageCollectedKeys() {
-        Reference e;
-        while ((e = mReferenceQueue.poll()) != null) {
+    /**
+     * Get the number of cached locking contexts.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.mCache.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of contexts that have been evicted to stay within the
+     * maximum number of contexts.
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                evictions += stripe.mEvictions;
+            }
+        }
+        return evictions;
+    }
+
+    private void removeGarbageCollectedKeys(Stripe stripe) {
+        Reference<?> e;
+        while ((e = stripe.mReferenceQueue.poll()) != null) {
             mLogger.finest("Removing garbage-collected cached context");
-            mCache.remove(e);
+            stripe.mCache.remove(e);
+        }
+    }
+
+    private static class Stripe {
+        final HashMap<EqualsComparableKey, Integer> mCache;
+        final ReferenceQueue<Object> mReferenceQueue =
+            new ReferenceQueue<Object>();
+        long mEvictions = 0;
+
+        /**
+         * @param maxSize
+         *            The maximum number of contexts in the stripe, or 0 if
+         *            it is unbounded.
+         * @param listener
+         *            The listener to tell about evicted contexts, or null.
+         */
+        Stripe(final int maxSize, final EvictionListener listener) {
+            if (maxSize == 0) {
+                mCache = new HashMap<EqualsComparableKey, Integer>();
+            } else {
+                mCache = new LinkedHashMap<EqualsComparableKey, Integer>(
+                    16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                        Map.Entry<EqualsComparableKey, Integer> eldest) {
+                        if (size() > maxSize) {
+                            mEvictions++;
+                            if (listener != null) {
+                                listener.contextEvicted(eldest.getValue());
+                            }
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+            }
         }
     }
 
@@ -0,0 +1,263 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This class keeps the time that the EventListener spends on recording
+ * within a budget, given as a fraction of the wall time of each thread.
+ *
+ * Each thread measures the time it spends on the monitor enters that are
+ * recorded, in total and per call site, and compares it with the budget once
+ * per interval. If the budget is exceeded and a single call site accounts
+ * for more than half of the time, recording at that call site is disabled
+ * for all threads. Otherwise the thread halves its recording rate. If the
+ * thread later uses less than a quarter of the budget, it doubles the rate
+ * again.
+ *
+ * The measurements are kept per thread so that the threads never wait for
+ * each other, and only the disabling of call sites is shared. A thread only
+ * measures the time of the few call sites that it spends the most time at,
+ * so its measurements stay small however many call sites there are.
+ */
+@ThreadSafe
+final class OverheadGovernor {
+    static final long INTERVAL_NANOS = 1000000000L;
+    static final int MAX_RATE = 1 << 16;
+    private final Logger mLogger;
+    private final double mBudget;
+    private final long mIntervalNanos;
+    // Replaced, never modified, while holding the lock of this.
+    private volatile boolean[] mDisabledSites = new boolean[0];
+
+    /**
+     * @param budget
+     *            The fraction of the wall time that each thread may spend on
+     *            recording, for example 0.02.
+     */
+    OverheadGovernor(Logger logger, double budget) {
+        this(logger, budget, INTERVAL_NANOS);
+    }
+
+    OverheadGovernor(Logger logger, double budget, long intervalNanos) {
+        mLogger = logger;
+        mBudget = budget;
+        mIntervalNanos = intervalNanos;
+    }
+
+    /**
+     * @return true if a monitor enter that the SamplingPolicy has sampled
+     *         shall be recorded.
+     */
+    boolean admit(ThreadState state, int callSiteId) {
+        if (isDisabled(callSiteId)) {
+            return false;
+        }
+        return getBudget(state).admit();
+    }
+
+    /**
+     * Account for a recorded monitor enter that started at startNanos, as
+     * given by System.nanoTime().
+     */
+    void recorded(ThreadState state, int callSiteId, long startNanos) {
+        final long now = System.nanoTime();
+        final ThreadBudget budget = getBudget(state);
+        budget.add(callSiteId, now - startNanos);
+        final long elapsed = now - budget.getIntervalStart();
+        if (elapsed >= mIntervalNanos) {
+            evaluate(budget, elapsed);
+            budget.reset(now);
+        }
+    }
+
+    boolean isDisabled(int callSiteId) {
+        final boolean[] disabledSites = mDisabledSites;
+        return callSiteId < disabledSites.length
+               && disabledSites[callSiteId];
+    }
+
+    private synchronized void disable(int callSiteId) {
+        if (isDisabled(callSiteId)) {
+            return;
+        }
+        final boolean[] disabledSites =
+            new boolean[Math.max(mDisabledSites.length, callSiteId + 1)];
+        System.arraycopy(mDisabledSites, 0,
+                         disabledSites, 0,
+                         mDisabledSites.length);
+        disabledSites[callSiteId] = true;
+        mDisabledSites = disabledSites;
+    }
+
+    private static ThreadBudget getBudget(ThreadState state) {
+        ThreadBudget budget = state.getBudget();
+        if (budget == null) {
+            budget = new ThreadBudget(System.nanoTime());
+            state.setBudget(budget);
+        }
+        return budget;
+    }
+
+    private void evaluate(ThreadBudget budget, long elapsed) {
+        final long spent = budget.getSpentNanos();
+        final double overhead = (double) spent / elapsed;
+        final String threadName = Thread.currentThread().getName();
+        if (overhead > mBudget) {
+            final int hottest = budget.getHottestSite();
+            if (hottest != ThreadBudget.NO_SITE
+                && 2 * budget.getSpentNanos(hottest) > spent) {
+                disable(hottest);
+                mLogger.info("Overhead " + percent(overhead)
+                             + " in thread " + threadName
+                             + "; disabling recording at "
+                             + CallSiteRegistry.getSite(hottest));
+            } else if (budget.getRate() < MAX_RATE) {
+                budget.setRate(2 * budget.getRate());
+                mLogger.info("Overhead " + percent(overhead)
+                             + " in thread " + threadName
+                             + "; recording 1 of "
+                             + budget.getRate() + " monitor enters");
+            }
+        } else if (4 * overhead < mBudget && budget.getRate() > 1) {
+            budget.setRate(budget.getRate() / 2);
+            mLogger.fine("Overhead " + percent(overhead)
+                         + " in thread " + threadName
+                         + "; recording 1 of "
+                         + budget.getRate() + " monitor enters");
+        }
+    }
+
+    private static String percent(double fraction) {
+        return ((int) (fraction * 1000)) / 10.0 + "%";
+    }
+
+    /**
+     * The measurements and recording rate of a thread.
+     *
+     * The time per call site is kept in a few slots with the Space-Saving
+     * algorithm: a call site that has no slot when all slots are taken
+     * replaces the call site with the least time, and takes over that time
+     * as an error. Any call site that accounts for more than 1/SITE_SLOTS of
+     * the time therefore has a slot, and its time less its error is a lower
+     * bound of the time that it has actually taken.
+     */
+    @NotThreadSafe
+    static final class ThreadBudget {
+        static final int NO_SITE = -1;
+        private static final int SITE_SLOTS = 8;
+        private long mIntervalStart;
+        private long mSpentNanos = 0;
+        private final int[] mSites = new int[SITE_SLOTS];
+        private final long[] mSiteNanos = new long[SITE_SLOTS];
+        private final long[] mSiteErrors = new long[SITE_SLOTS];
+        private int mRate = 1;
+        private int mCountdown = 0;
+
+        ThreadBudget(long intervalStart) {
+            reset(intervalStart);
+        }
+
+        boolean admit() {
+            if (--mCountdown <= 0) {
+                mCountdown = mRate;
+                return true;
+            }
+            return false;
+        }
+
+        void add(int callSiteId, long nanos) {
+            mSpentNanos += nanos;
+            int least = 0;
+            for (int i = 0; i < SITE_SLOTS; i++) {
+                if (mSites[i] == callSiteId) {
+                    mSiteNanos[i] += nanos;
+                    return;
+                } else if (mSites[i] == NO_SITE) {
+                    // The slots are taken in order, so the site has none.
+                    least = i;
+                    break;
+                } else if (mSiteNanos[i] < mSiteNanos[least]) {
+                    least = i;
+                }
+            }
+            mSites[least] = callSiteId;
+            mSiteErrors[least] = mSiteNanos[least];
+            mSiteNanos[least] += nanos;
+        }
+
+        long getIntervalStart() {
+            return mIntervalStart;
+        }
+
+        long getSpentNanos() {
+            return mSpentNanos;
+        }
+
+        /**
+         * @return A lower bound of the time spent at a call site, or 0 if
+         *         the call site has no slot.
+         */
+        long getSpentNanos(int callSiteId) {
+            for (int i = 0; i < SITE_SLOTS; i++) {
+                if (mSites[i] == callSiteId) {
+                    return mSiteNanos[i] - mSiteErrors[i];
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The call site with the highest lower bound of spent time,
+         *         or NO_SITE if no time has been spent at any call site.
+         */
+        int getHottestSite() {
+            int hottest = NO_SITE;
+            long hottestNanos = 0;
+            for (int i = 0; i < SITE_SLOTS && mSites[i] != NO_SITE; i++) {
+                final long nanos = mSiteNanos[i] - mSiteErrors[i];
+                if (nanos > hottestNanos) {
+                    hottest = mSites[i];
+                    hottestNanos = nanos;
+                }
+            }
+            return hottest;
+        }
+
+        int getRate() {
+            return mRate;
+        }
+
+        void setRate(int rate) {
+            mRate = rate;
+        }
+
+        void reset(long intervalStart) {
+            mIntervalStart = intervalStart;
+            mSpentNanos = 0;
+            Arrays.fill(mSites, NO_SITE);
+            Arrays.fill(mSiteNanos, 0);
+            Arrays.fill(mSiteErrors, 0);
+        }
+    }
+}
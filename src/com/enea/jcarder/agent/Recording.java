@@ -0,0 +1,169 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static com.enea.jcarder.common.contexts.ContextFileReader.CONTEXTS_DB_FILENAME;
+import static com.enea.jcarder.common.contexts.ContextFileReader.EVENT_DB_FILENAME;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.common.contexts.ContextFileWriter;
+import com.enea.jcarder.common.events.EventFileWriter;
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * A Recording owns the event and context database files in an output
+ * directory and the EventListener that records lock events to them, together
+ * with the optional buffering and duplicate filtering in between.
+ *
+ * A Recording writes what it has recorded when the JVM shuts down, with a
+ * shutdown hook of its own that is removed when it is closed, so that a
+ * closed Recording is not kept alive by the hook.
+ */
+@ThreadSafe
+final class Recording {
+    private final File mOutputDir;
+    private final EventFileWriter mEventWriter;
+    private final ContextFileWriter mContextWriter;
+    private final ThreadLocalEventBuffers mEventBuffers;
+    private final DuplicateEventFilter mDuplicateFilter;
+    private final EventListener mEventListener;
+    private final Logger mLogger;
+    private final Thread mShutdownHook;
+
+    Recording(Logger logger, File outputDir, RecordingConfig config)
+    throws IOException {
+        mLogger = logger;
+        mOutputDir = outputDir;
+        mEventWriter =
+            new EventFileWriter(logger,
+                                new File(outputDir, EVENT_DB_FILENAME));
+        mContextWriter =
+            new ContextFileWriter(logger,
+                                  new File(outputDir, CONTEXTS_DB_FILENAME));
+        LockEventListenerIfc lockEventListener = mEventWriter;
+        if (config.getBufferEvents()) {
+            logger.info("Buffering lock events per thread");
+            mEventBuffers = new ThreadLocalEventBuffers(logger, mEventWriter);
+            lockEventListener = mEventBuffers;
+        } else {
+            mEventBuffers = null;
+        }
+        if (config.getSuppressDuplicateEvents()) {
+            logger.info("Suppressing duplicate lock events per thread");
+            mDuplicateFilter = new DuplicateEventFilter(logger,
+                                                        lockEventListener);
+            lockEventListener = mDuplicateFilter;
+        } else {
+            mDuplicateFilter = null;
+        }
+        if (config.getSamplingPolicy() != SamplingPolicy.RECORD_ALL) {
+            logger.info("Sampling monitor enters: "
+                        + config.getSamplingPolicy());
+        }
+        if (config.getRecordingFilter() != RecordingFilter.ACCEPT_ALL) {
+            logger.info("Recording filter: " + config.getRecordingFilter());
+        }
+        if (config.getMaxCachedLocks() > 0
+            || config.getMaxCachedContexts() > 0) {
+            logger.info("Bounded caches: " + config.getMaxCachedLocks()
+                        + " locks, " + config.getMaxCachedContexts()
+                        + " contexts (0 = unbounded)");
+        }
+        if (config.getOverheadBudget() > 0) {
+            logger.info("Overhead budget: "
+                        + 100 * config.getOverheadBudget() + "%");
+        }
+        mEventListener = new EventListener(logger,
+                                           lockEventListener,
+                                           mContextWriter,
+                                           config);
+        mShutdownHook = new Thread() {
+            public void run() { shutdown(); }
+        };
+        Runtime.getRuntime().addShutdownHook(mShutdownHook);
+    }
+
+    EventListener getEventListener() {
+        return mEventListener;
+    }
+
+    File getOutputDir() {
+        return mOutputDir;
+    }
+
+    int getWrittenLockEvents() {
+        return mEventWriter.getWrittenLockEvents();
+    }
+
+    /**
+     * Write everything that has been recorded so far to the files.
+     */
+    void flush() throws IOException {
+        if (mDuplicateFilter != null) {
+            mDuplicateFilter.flush();
+        }
+        if (mEventBuffers != null) {
+            mEventBuffers.flush();
+        }
+        mContextWriter.flush();
+        mEventWriter.flush();
+    }
+
+    /**
+     * Write everything that has been recorded so far to the files and close
+     * them. The EventListener must no longer be in use; events from threads
+     * that are still recording to it are dropped.
+     */
+    void close() throws IOException {
+        try {
+            Runtime.getRuntime().removeShutdownHook(mShutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is shutting down; the hook may be running already.
+        }
+        closeFilters();
+        mContextWriter.close();
+        mEventWriter.close();
+    }
+
+    /**
+     * Pass what the filters have held back on to the files, which stay open
+     * for the events of threads that are still running.
+     */
+    private void shutdown() {
+        try {
+            closeFilters();
+        } catch (IOException e) {
+            mLogger.severe("Failed to write lock events: " + e.getMessage());
+        }
+        mContextWriter.shutdown();
+        mEventWriter.shutdown();
+    }
+
+    private void closeFilters() throws IOException {
+        if (mDuplicateFilter != null) {
+            mDuplicateFilter.close();
+        }
+        if (mEventBuffers != null) {
+            mEventBuffers.close();
+        }
+    }
+}
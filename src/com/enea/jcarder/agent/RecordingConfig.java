@@ -0,0 +1,224 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+/**
+ * Settings for how the agent records lock events at runtime.
+ */
+public final class RecordingConfig {
+    public static final int DEFAULT_MAX_THREAD_RECORDS = 10000;
+
+    /**
+     * How the locks that are entered are told apart.
+     */
+    public static enum LockIdentity {
+        /**
+         * Each lock object is a lock of its own.
+         */
+        INSTANCE,
+
+        /**
+         * All lock objects that are read from the same field are one lock.
+         * Other lock objects are locks of their own.
+         */
+        FIELD,
+
+        /**
+         * All lock objects that are read from the same field are one lock,
+         * and all other lock objects of the same class are one lock, except
+         * for Class objects and instances of JDK classes, which are locks of
+         * their own.
+         */
+        CLASS;
+
+        /**
+         * Parse a string and return the corresponding lock identity.
+         *
+         * @param string The string to parse.
+         * @return The lock identity, or null if there is none by that name.
+         */
+        public static LockIdentity fromString(String string) {
+            for (LockIdentity identity : values()) {
+                if (string.equalsIgnoreCase(identity.toString())) {
+                    return identity;
+                }
+            }
+            return null;
+        }
+
+        public static String getEnumeration() {
+            StringBuffer sb = new StringBuffer();
+            boolean first = true;
+            for (LockIdentity identity : values()) {
+                if (first) {
+                    first = false;
+                } else {
+                    sb.append(", ");
+                }
+                sb.append(identity.toString());
+            }
+            return sb.toString();
+        }
+    }
+
+    private boolean mBufferEvents;
+    private boolean mSuppressDuplicateEvents;
+    private ThreadNameNormalizer mThreadNameNormalizer;
+    private SamplingPolicy mSamplingPolicy;
+    private double mOverheadBudget;
+    private RecordingFilter mRecordingFilter;
+    private int mMaxThreadRecords;
+    private int mMaxCachedLocks;
+    private int mMaxCachedContexts;
+    private LockIdentity mLockIdentity;
+
+    public RecordingConfig() {
+        mBufferEvents = false;
+        mSuppressDuplicateEvents = false;
+        mThreadNameNormalizer = new ThreadNameNormalizer();
+        mSamplingPolicy = SamplingPolicy.RECORD_ALL;
+        mOverheadBudget = 0;
+        mRecordingFilter = RecordingFilter.ACCEPT_ALL;
+        mMaxThreadRecords = DEFAULT_MAX_THREAD_RECORDS;
+        mMaxCachedLocks = 0;
+        mMaxCachedContexts = 0;
+        mLockIdentity = LockIdentity.INSTANCE;
+    }
+
+    /**
+     * If enabled, each thread appends its lock events to a buffer of its own
+     * and a background thread writes them to the event file.
+     */
+    public void setBufferEvents(boolean bufferEvents) {
+        mBufferEvents = bufferEvents;
+    }
+
+    public boolean getBufferEvents() {
+        return mBufferEvents;
+    }
+
+    /**
+     * If enabled, each thread reports a lock event only the first time it
+     * occurs and the number of later occurrences when the recording ends.
+     */
+    public void setSuppressDuplicateEvents(boolean suppressDuplicateEvents) {
+        mSuppressDuplicateEvents = suppressDuplicateEvents;
+    }
+
+    public boolean getSuppressDuplicateEvents() {
+        return mSuppressDuplicateEvents;
+    }
+
+    /**
+     * The rules for which threads are described as members of a thread pool
+     * instead of as threads of their own.
+     */
+    public void setThreadNameNormalizer(ThreadNameNormalizer normalizer) {
+        mThreadNameNormalizer = normalizer;
+    }
+
+    public ThreadNameNormalizer getThreadNameNormalizer() {
+        return mThreadNameNormalizer;
+    }
+
+    /**
+     * The policy for which monitor enters are recorded.
+     */
+    public void setSamplingPolicy(SamplingPolicy samplingPolicy) {
+        mSamplingPolicy = samplingPolicy;
+    }
+
+    public SamplingPolicy getSamplingPolicy() {
+        return mSamplingPolicy;
+    }
+
+    /**
+     * The fraction of its wall time that a thread may spend on recording
+     * before the recording is throttled, or 0 if it is never throttled.
+     */
+    public void setOverheadBudget(double overheadBudget) {
+        mOverheadBudget = overheadBudget;
+    }
+
+    public double getOverheadBudget() {
+        return mOverheadBudget;
+    }
+
+    /**
+     * The filter that selects which monitor enters are recorded.
+     */
+    public void setRecordingFilter(RecordingFilter recordingFilter) {
+        mRecordingFilter = recordingFilter;
+    }
+
+    public RecordingFilter getRecordingFilter() {
+        return mRecordingFilter;
+    }
+
+    /**
+     * The maximum number of threads that are described individually in the
+     * context file. Threads beyond the maximum share a pooled description.
+     */
+    public void setMaxThreadRecords(int maxThreadRecords) {
+        mMaxThreadRecords = maxThreadRecords;
+    }
+
+    public int getMaxThreadRecords() {
+        return mMaxThreadRecords;
+    }
+
+    /**
+     * The maximum number of locks that the agent remembers the IDs of, or 0
+     * if it remembers the IDs of all locks that have not been garbage
+     * collected. A lock whose ID is evicted is described again, as a new
+     * lock, the next time it is entered.
+     */
+    public void setMaxCachedLocks(int maxCachedLocks) {
+        mMaxCachedLocks = maxCachedLocks;
+    }
+
+    public int getMaxCachedLocks() {
+        return mMaxCachedLocks;
+    }
+
+    /**
+     * The maximum number of locking contexts that the agent remembers the
+     * IDs of, or 0 if they are remembered as long as there is enough memory.
+     */
+    public void setMaxCachedContexts(int maxCachedContexts) {
+        mMaxCachedContexts = maxCachedContexts;
+    }
+
+    public int getMaxCachedContexts() {
+        return mMaxCachedContexts;
+    }
+
+    /**
+     * How the locks that are entered are told apart. Telling locks apart by
+     * field or class makes each of them one node in the lock graph, instead
+     * of one node per lock object, at the price of reporting cycles between
+     * different lock objects of the same field or class that are entered in
+     * a consistent order.
+     */
+    public void setLockIdentity(LockIdentity lockIdentity) {
+        mLockIdentity = lockIdentity;
+    }
+
+    public LockIdentity getLockIdentity() {
+        return mLockIdentity;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This MBean lets the recording of a running JVM be controlled with JMX.
+ *
+ * The counters describe the current recording; they start from zero again
+ * after a rotation.
+ */
+@ThreadSafe
+public final class RecordingControl implements RecordingControlMBean {
+    public static final String OBJECT_NAME =
+        "com.enea.jcarder:type=RecordingControl";
+    private final Logger mLogger;
+    private final RecordingConfig mConfig;
+    @GuardedBy("this")
+    private Recording mRecording;
+    @GuardedBy("this")
+    private boolean mClosed = false;
+
+    RecordingControl(Logger logger,
+                     RecordingConfig config,
+                     Recording recording) {
+        mLogger = logger;
+        mConfig = config;
+        mRecording = recording;
+    }
+
+    public void pause() {
+        mLogger.info("Pausing recording");
+        StaticEventListener.setPaused(true);
+    }
+
+    public void resume() {
+        mLogger.info("Resuming recording");
+        StaticEventListener.setPaused(false);
+    }
+
+    public boolean isPaused() {
+        return StaticEventListener.isPaused();
+    }
+
+    /**
+     * Threads that hold monitors when the recording is rotated do not report
+     * lock events for them to the new recording.
+     */
+    public synchronized void rotate(String outputDirectory)
+    throws IOException {
+        final File dir = new File(outputDirectory).getCanonicalFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+        if (mClosed) {
+            throw new IOException("The recording has been closed");
+        }
+        if (dir.equals(mRecording.getOutputDir())) {
+            throw new IOException("Already recording to " + dir);
+        }
+        mLogger.info("Rotating recording to " + dir);
+        final Recording previous = mRecording;
+        mRecording = new Recording(mLogger, dir, mConfig);
+        StaticEventListener.setListener(mRecording.getEventListener());
+        previous.close();
+    }
+
+    public synchronized void flush() throws IOException {
+        mRecording.flush();
+    }
+
+    /**
+     * Close the current recording, which is not rotated after that.
+     */
+    synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mRecording.close();
+        }
+    }
+
+    /**
+     * The filter is also used by later rotations.
+     */
+    public synchronized void setFilter(String filter) {
+        final RecordingFilter recordingFilter = new RecordingFilter(filter);
+        mLogger.info("Changing recording filter to: " + recordingFilter);
+        mConfig.setRecordingFilter(recordingFilter);
+        mRecording.getEventListener().setFilter(recordingFilter);
+    }
+
+    public synchronized String getFilter() {
+        return mRecording.getEventListener().getFilter().toString();
+    }
+
+    public synchronized String getOutputDirectory() {
+        return mRecording.getOutputDir().getPath();
+    }
+
+    public synchronized long getEnteredMonitors() {
+        return mRecording.getEventListener().getNumberOfEnteredMonitors();
+    }
+
+    public synchronized long getSkippedMonitors() {
+        return mRecording.getEventListener().getNumberOfSkippedMonitors();
+    }
+
+    public synchronized long getWrittenLockEvents() {
+        return mRecording.getWrittenLockEvents();
+    }
+
+    public synchronized int getKnownLocks() {
+        return mRecording.getEventListener().getNumberOfKnownLocks();
+    }
+
+    public synchronized int getKnownContexts() {
+        return mRecording.getEventListener().getNumberOfKnownContexts();
+    }
+
+    public synchronized long getEvictedLocks() {
+        return mRecording.getEventListener().getNumberOfEvictedLocks();
+    }
+
+    public synchronized long getEvictedContexts() {
+        return mRecording.getEventListener().getNumberOfEvictedContexts();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.IOException;
+
+/**
+ * The management interface of a RecordingControl.
+ */
+public interface RecordingControlMBean {
+
+    /**
+     * Stop recording lock events until resume() is called. The instrumented
+     * classes only check a flag while recording is paused.
+     */
+    void pause();
+
+    void resume();
+
+    boolean isPaused();
+
+    /**
+     * Close the current event and context databases and continue recording
+     * to new databases in another directory.
+     */
+    void rotate(String outputDirectory) throws IOException;
+
+    /**
+     * Write all lock events that have been recorded so far to the databases.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Change which threads, lock classes and call sites are recorded. See
+     * RecordingFilter for the format of the filter.
+     *
+     * @throws IllegalArgumentException
+     *             If the filter is invalid.
+     */
+    void setFilter(String filter);
+
+    String getFilter();
+
+    String getOutputDirectory();
+
+    long getEnteredMonitors();
+
+    long getSkippedMonitors();
+
+    long getWrittenLockEvents();
+
+    int getKnownLocks();
+
+    int getKnownContexts();
+
+    /**
+     * The number of lock IDs that have been evicted to stay within the
+     * jcarder.maxlocks limit.
+     */
+    long getEvictedLocks();
+
+    /**
+     * The number of locking context IDs that have been evicted to stay
+     * within the jcarder.maxcontexts limit.
+     */
+    long getEvictedContexts();
+}
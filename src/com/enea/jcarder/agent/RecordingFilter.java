@@ -0,0 +1,182 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A RecordingFilter selects the threads, lock classes and call sites that
+ * lock events are recorded for.
+ *
+ * A filter is described by a list of rules on the format
+ * "key=regex;key=regex" where the key is one of:
+ *
+ *   thread   The name of the thread.
+ *   group    The name of the thread group of the thread.
+ *   class    The name of the class of the lock.
+ *   site     The class and method of the call site, for example
+ *            "com.enea.Foo.bar()".
+ *
+ * The expression must match the whole name. A monitor enter is recorded if,
+ * for each key that has rules, at least one of its rules matches. The empty
+ * description accepts everything.
+ *
+ * The decisions for lock classes and call sites are cached by the filter.
+ * The decision for a thread is made once per filter and cached in the
+ * ThreadState of the thread. A filter never changes; a new filter is created
+ * to change what is recorded.
+ */
+@ThreadSafe
+public final class RecordingFilter {
+    public static final RecordingFilter ACCEPT_ALL = new RecordingFilter("");
+    private static final byte UNKNOWN = 0;
+    private static final byte ACCEPTED = 1;
+    private static final byte REJECTED = 2;
+
+    private final String mDescription;
+    private final List<Pattern> mThreadPatterns = new ArrayList<Pattern>();
+    private final List<Pattern> mGroupPatterns = new ArrayList<Pattern>();
+    private final List<Pattern> mClassPatterns = new ArrayList<Pattern>();
+    private final List<Pattern> mSitePatterns = new ArrayList<Pattern>();
+    private final ConcurrentHashMap<String, Boolean> mClassDecisions =
+        new ConcurrentHashMap<String, Boolean>();
+    /*
+     * Racing threads may compute the decision for a call site more than once,
+     * but they always compute the same decision. The array is replaced, never
+     * modified, when it grows.
+     */
+    private volatile byte[] mSiteDecisions = new byte[0];
+
+    /**
+     * @throws IllegalArgumentException
+     *             If a rule has an unknown key or an invalid regular
+     *             expression.
+     */
+    public RecordingFilter(String description) {
+        mDescription = description.trim();
+        for (String rule : mDescription.split(";")) {
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            final int separator = rule.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Missing \"=\" in filter"
+                                                   + " rule: " + rule);
+            }
+            final String key = rule.substring(0, separator).trim();
+            final Pattern pattern =
+                Pattern.compile(rule.substring(separator + 1));
+            if (key.equals("thread")) {
+                mThreadPatterns.add(pattern);
+            } else if (key.equals("group")) {
+                mGroupPatterns.add(pattern);
+            } else if (key.equals("class")) {
+                mClassPatterns.add(pattern);
+            } else if (key.equals("site")) {
+                mSitePatterns.add(pattern);
+            } else {
+                throw new IllegalArgumentException("Unknown filter key: "
+                                                   + key);
+            }
+        }
+    }
+
+    boolean acceptsThread(Thread thread) {
+        final ThreadGroup group = thread.getThreadGroup();
+        return matchesAny(mThreadPatterns, thread.getName())
+               && matchesAny(mGroupPatterns,
+                             group == null ? "" : group.getName());
+    }
+
+    /**
+     * @return true if the filter may reject a monitor enter because of its
+     *         lock or call site.
+     */
+    boolean filtersMonitors() {
+        return !mClassPatterns.isEmpty() || !mSitePatterns.isEmpty();
+    }
+
+    boolean acceptsMonitor(Object monitor, int callSiteId) {
+        return acceptsCallSite(callSiteId) && acceptsLockClass(monitor);
+    }
+
+    private boolean acceptsLockClass(Object monitor) {
+        if (mClassPatterns.isEmpty()) {
+            return true;
+        }
+        final String className = monitor.getClass().getName();
+        Boolean accepted = mClassDecisions.get(className);
+        if (accepted == null) {
+            accepted = matchesAny(mClassPatterns, className);
+            mClassDecisions.put(className, accepted);
+        }
+        return accepted;
+    }
+
+    private boolean acceptsCallSite(int callSiteId) {
+        if (mSitePatterns.isEmpty()) {
+            return true;
+        }
+        byte[] decisions = mSiteDecisions;
+        if (callSiteId < decisions.length
+            && decisions[callSiteId] != UNKNOWN) {
+            return decisions[callSiteId] == ACCEPTED;
+        }
+        final boolean accepted =
+            matchesAny(mSitePatterns,
+                       CallSiteRegistry.getSite(callSiteId)
+                       .getMethodWithClass());
+        if (callSiteId >= decisions.length) {
+            decisions = growSiteDecisions(callSiteId);
+        }
+        decisions[callSiteId] = accepted ? ACCEPTED : REJECTED;
+        return accepted;
+    }
+
+    private synchronized byte[] growSiteDecisions(int callSiteId) {
+        byte[] decisions = mSiteDecisions;
+        if (callSiteId >= decisions.length) {
+            final byte[] grown =
+                new byte[Math.max(2 * decisions.length, callSiteId + 64)];
+            System.arraycopy(decisions, 0, grown, 0, decisions.length);
+            mSiteDecisions = grown;
+            decisions = grown;
+        }
+        return decisions;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name) {
+        if (patterns.isEmpty()) {
+            return true;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() {
+        return mDescription;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A SamplingPolicy decides which monitor enters the EventListener records
+ * lock events for. Monitors that are not sampled are still tracked as held
+ * by the thread, so the monitor stack stays correct, but no lock or context
+ * IDs are generated for them unless a later sampled monitor is entered while
+ * they are the most recently entered monitor.
+ *
+ * A policy is described by a string on one of the following formats:
+ *
+ *   all                   Record every monitor enter.
+ *   fixed:N               Record every N:th monitor enter of each thread.
+ *   adaptive:K:N          Record the first K monitor enters at each call site
+ *                         of each thread, and after that every N:th.
+ *   window:ON_MS:OFF_MS   Record all monitor enters for ON_MS milliseconds,
+ *                         then none for OFF_MS milliseconds, and so on.
+ */
+@ThreadSafe
+public abstract class SamplingPolicy {
+
+    public static final SamplingPolicy RECORD_ALL = new SamplingPolicy() {
+        boolean isSampled(ThreadState state, int callSiteId) {
+            return true;
+        }
+
+        public String toString() {
+            return "all";
+        }
+    };
+
+    SamplingPolicy() { }
+
+    /**
+     * @return true if a monitor enter by the thread with the given state at
+     *         the given call site shall be recorded.
+     */
+    abstract boolean isSampled(ThreadState state, int callSiteId);
+
+    /**
+     * Create a SamplingPolicy from a description on one of the formats
+     * described above.
+     *
+     * @throws IllegalArgumentException
+     *             If the description is invalid.
+     */
+    public static SamplingPolicy parse(String description) {
+        final String[] parts = description.trim().split(":");
+        final String mode = parts[0];
+        if (mode.equals("all") && parts.length == 1) {
+            return RECORD_ALL;
+        } else if (mode.equals("fixed") && parts.length == 2) {
+            return new FixedRate(parsePositive(parts[1]));
+        } else if (mode.equals("adaptive") && parts.length == 3) {
+            return new AdaptiveRate(parsePositive(parts[1]),
+                                    parsePositive(parts[2]));
+        } else if (mode.equals("window") && parts.length == 3) {
+            return new TimeWindows(parsePositive(parts[1]),
+                                   parsePositive(parts[2]));
+        }
+        throw new IllegalArgumentException("Invalid sampling mode: "
+                                           + description);
+    }
+
+    private static int parsePositive(String value) {
+        final int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+        if (result <= 0) {
+            throw new IllegalArgumentException("Not a positive number: "
+                                               + value);
+        }
+        return result;
+    }
+
+    private static final class FixedRate extends SamplingPolicy {
+        private final int mRate;
+
+        FixedRate(int rate) {
+            mRate = rate;
+        }
+
+        boolean isSampled(ThreadState state, int callSiteId) {
+            final int countdown = state.getSamplingCountdown() - 1;
+            if (countdown <= 0) {
+                state.setSamplingCountdown(mRate);
+                return true;
+            }
+            state.setSamplingCountdown(countdown);
+            return false;
+        }
+
+        public String toString() {
+            return "fixed:" + mRate;
+        }
+    }
+
+    private static final class AdaptiveRate extends SamplingPolicy {
+        private final int mThreshold;
+        private final int mRate;
+
+        AdaptiveRate(int threshold, int rate) {
+            mThreshold = threshold;
+            mRate = rate;
+        }
+
+        /*
+         * The entry count of a call site never exceeds mThreshold + mRate,
+         * so it cannot overflow.
+         */
+        boolean isSampled(ThreadState state, int callSiteId) {
+            final int entries = state.getSiteEntries(callSiteId) + 1;
+            if (entries <= mThreshold) {
+                state.setSiteEntries(callSiteId, entries);
+                return true;
+            } else if (entries - mThreshold >= mRate) {
+                state.setSiteEntries(callSiteId, mThreshold);
+                return true;
+            } else {
+                state.setSiteEntries(callSiteId, entries);
+                return false;
+            }
+        }
+
+        public String toString() {
+            return "adaptive:" + mThreshold + ":" + mRate;
+        }
+    }
+
+    private static final class TimeWindows extends SamplingPolicy {
+        private final long mOnNanos;
+        private final long mPeriodNanos;
+        private final long mStartNanos;
+
+        TimeWindows(int onMillis, int offMillis) {
+            mOnNanos = onMillis * 1000000L;
+            mPeriodNanos = mOnNanos + offMillis * 1000000L;
+            mStartNanos = System.nanoTime();
+        }
+
+        boolean isSampled(ThreadState state, int callSiteId) {
+            return (System.nanoTime() - mStartNanos) % mPeriodNanos
+                   < mOnNanos;
+        }
+
+        public String toString() {
+            return "window:" + (mOnNanos / 1000000L)
+                   + ":" + ((mPeriodNanos - mOnNanos) / 1000000L);
+        }
+    }
+}
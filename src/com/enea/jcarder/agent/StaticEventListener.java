@@ -16,27 +16,83 @@
 
 package com.enea.jcarder.agent;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
-import com.enea.jcarder.common.LockingContext;
 
 /**
  * This class provides static methods that are supposed to be invoked directly
  * from the instrumented classes.
+ *
+ * The listener is read without locking, since it is read at every monitor
+ * enter and exit in the JVM. The instrumented classes also read the smEnabled
+ * flag before they invoke the methods of this class, so that a paused agent,
+ * or one without a listener, only costs a field read per monitor enter and
+ * exit.
+ *
+ * The instrumented classes call the methods of java.util.concurrent locks
+ * through the lock methods of this class, which check the smEnabled flag
+ * themselves.
  */
 @ThreadSafe
 public final class StaticEventListener {
 
+    /**
+     * True if there is a listener and recording is not paused. This field is
+     * read directly by the instrumented classes and must only be modified by
+     * this class.
+     */
+    public static volatile boolean smEnabled = false;
+
+    private static volatile EventListenerIfc smListener;
+    private static volatile int smEpoch = 0;
+    @GuardedBy("StaticEventListener.class")
+    private static boolean smPaused = false;
+
     private StaticEventListener() { }
-    private static EventListenerIfc smListener;
 
     public synchronized static void setListener(EventListenerIfc listener) {
         smListener = listener;
+        updateEnabled();
     }
 
-    public synchronized static EventListenerIfc getListener() {
+    public static EventListenerIfc getListener() {
         return smListener;
     }
 
+    /**
+     * Pause or resume the recording. While paused, the instrumented classes
+     * do not report any monitor enters or exits.
+     */
+    public synchronized static void setPaused(boolean paused) {
+        smPaused = paused;
+        updateEnabled();
+    }
+
+    public synchronized static boolean isPaused() {
+        return smPaused;
+    }
+
+    /**
+     * Get the number of times that recording has been enabled. Monitors that
+     * a thread entered during an earlier epoch may have been exited without
+     * being reported.
+     */
+    static int getEpoch() {
+        return smEpoch;
+    }
+
+    @GuardedBy("StaticEventListener.class")
+    private static void updateEnabled() {
+        final boolean enabled = smListener != null && !smPaused;
+        if (enabled && !smEnabled) {
+            smEpoch++;
+        }
+        smEnabled = enabled;
+    }
+
     /**
      * This method is expected to be called from the instrumented classes.
      *
@@ -44,27 +100,208 @@ public final class StaticEventListener {
      *            The monitor object that was acquired. This value is allowed to
      *            be null.
      *
-     * @param lockReference
-     *            A textual description of how the lock object was addressed.
-     *            For example: "this", "com.enea.jcarder.Foo.mBar" or
-     *            "com.enea.jcarder.Foo.getLock()".
+     * @param callSiteId
+     *            The ID that the CallSiteRegistry assigned to the place where
+     *            the monitor is entered when the class was instrumented.
+     */
+    public static void beforeMonitorEnter(Object monitor, int callSiteId) {
+        try {
+            EventListenerIfc listener = getListener();
+            if (listener != null) {
+                listener.beforeMonitorEnter(monitor, callSiteId);
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        }
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of beforeMonitorEnter(Object, int) for monitors that cache
+     * their lock IDs in synthetic fields.
+     *
+     * @param monitor
+     *            The monitor object that was acquired.
+     *
+     * @param cachedLockId
+     *            The value of the synthetic field of the monitor, which is
+     *            EventListenerIfc.NO_CACHED_LOCK_ID before anything has been
+     *            stored in it.
+     *
+     * @param callSiteId
+     *            The ID that the CallSiteRegistry assigned to the place where
+     *            the monitor is entered when the class was instrumented.
+     *
+     * @return The value that the instrumented class shall store in the
+     *         synthetic field.
+     */
+    public static long beforeMonitorEnter(Object monitor,
+                                          long cachedLockId,
+                                          int callSiteId) {
+        try {
+            EventListenerIfc listener = getListener();
+            if (listener != null) {
+                return listener.beforeMonitorEnter(monitor,
+                                                   cachedLockId,
+                                                   callSiteId);
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        }
+        return cachedLockId;
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes just
+     * before a monitor is exited, including when a synchronized method
+     * returns or throws an exception.
      *
-     * @param methodWithClass
-     *            The method that acquired the lock, on the format
-     *            "com.enea.jcarder.Foo.bar()".
+     * @param monitor
+     *            The monitor object that is about to be released. This value
+     *            is allowed to be null.
      */
-    public static void beforeMonitorEnter(Object monitor,
-                                          String lockReference,
-                                          String methodWithClass) {
+    public static void beforeMonitorExit(Object monitor) {
+        try {
+            EventListenerIfc listener = getListener();
+            if (listener != null) {
+                listener.beforeMonitorExit(monitor);
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        }
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of Lock.lock().
+     *
+     * @param callSiteId
+     *            The ID that the CallSiteRegistry assigned to the place where
+     *            the lock is acquired when the class was instrumented.
+     */
+    public static void lock(Lock lock, int callSiteId) {
+        if (smEnabled) {
+            beforeLockAcquire(lock, callSiteId);
+        }
+        lock.lock();
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of Lock.lockInterruptibly(). If the thread is interrupted, the
+     * lock is reported as released again.
+     */
+    public static void lockInterruptibly(Lock lock, int callSiteId)
+    throws InterruptedException {
+        final boolean enabled = smEnabled;
+        if (enabled) {
+            beforeLockAcquire(lock, callSiteId);
+        }
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            if (enabled) {
+                beforeLockRelease(lock);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of Lock.tryLock(). The lock is only reported if it was
+     * acquired.
+     */
+    public static boolean tryLock(Lock lock, int callSiteId) {
+        final boolean acquired = lock.tryLock();
+        if (acquired && smEnabled) {
+            afterLockAcquired(lock, callSiteId);
+        }
+        return acquired;
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of Lock.tryLock(long, TimeUnit). A thread that waits for a lock
+     * with a timeout can not be deadlocked, so the lock is reported like a
+     * lock acquired by tryLock().
+     */
+    public static boolean tryLock(Lock lock,
+                                  long time,
+                                  TimeUnit unit,
+                                  int callSiteId)
+    throws InterruptedException {
+        final boolean acquired = lock.tryLock(time, unit);
+        if (acquired && smEnabled) {
+            afterLockAcquired(lock, callSiteId);
+        }
+        return acquired;
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * instead of Lock.unlock().
+     */
+    public static void unlock(Lock lock) {
+        if (smEnabled) {
+            beforeLockRelease(lock);
+        }
+        lock.unlock();
+    }
+
+    /**
+     * This method is expected to be called from the instrumented classes
+     * with the result of a method that returns a view of a lock, such as
+     * ReadWriteLock.readLock().
+     *
+     * @param owner
+     *            The lock whose method returned the view.
+     * @param view
+     *            The view.
+     * @param shared
+     *            Whether the view acquires the owner in shared mode.
+     * @return The view.
+     */
+    public static Object lockView(Object owner, Object view, boolean shared) {
+        try {
+            LockViews.register(view, owner, shared);
+        } catch (Throwable t) {
+            handleError(t);
+        }
+        return view;
+    }
+
+    private static void beforeLockAcquire(Lock lock, int callSiteId) {
+        try {
+            EventListenerIfc listener = getListener();
+            if (listener != null) {
+                listener.beforeLockAcquire(LockViews.getOwner(lock),
+                                           LockViews.isShared(lock),
+                                           callSiteId);
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        }
+    }
+
+    private static void afterLockAcquired(Lock lock, int callSiteId) {
+        try {
+            EventListenerIfc listener = getListener();
+            if (listener != null) {
+                listener.afterLockAcquired(LockViews.getOwner(lock),
+                                           LockViews.isShared(lock),
+                                           callSiteId);
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        }
+    }
+
+    private static void beforeLockRelease(Lock lock) {
         try {
             EventListenerIfc listener = getListener();
             if (listener != null) {
-                final LockingContext lockingContext =
-                    new LockingContext(Thread.currentThread(),
-                                       lockReference,
-                                       methodWithClass);
-                listener.beforeMonitorEnter(monitor,
-                                            lockingContext);
+                listener.beforeLockRelease(LockViews.getOwner(lock));
             }
         } catch (Throwable t) {
             handleError(t);
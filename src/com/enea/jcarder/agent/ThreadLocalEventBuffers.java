@@ -0,0 +1,283 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This class lets each thread append its lock events to a buffer of its own
+ * without taking any lock. A background drainer thread moves the buffered
+ * events to an underlying LockEventListenerIfc, for example an
+ * EventFileWriter, which is then normally called by a single thread only.
+ *
+ * Each buffer is a single-producer, single-consumer ring. The thread that owns
+ * the buffer is the only one that writes the mWritten counter and the drainer
+ * thread is the only one that writes the mRead counter. If a buffer is full,
+ * the event is passed directly to the underlying listener instead, so the
+ * underlying listener must still be thread-safe.
+ *
+ * A buffer starts small and grows up to its maximum capacity only when it
+ * fills up before it has been drained, so threads that give rise to few
+ * events only cost a small buffer. The buffer of a thread is forgotten once
+ * the thread has terminated and its events have been drained.
+ */
+@ThreadSafe
+final class ThreadLocalEventBuffers
+implements LockEventListenerIfc, Flushable {
+    private static final int INITIAL_EVENTS_PER_BUFFER = 16;
+    private static final int MAX_EVENTS_PER_BUFFER = 1024;
+    private static final long DRAIN_INTERVAL_MS = 10;
+    private final LockEventListenerIfc mTarget;
+    private final Logger mLogger;
+    private final ConcurrentLinkedQueue<EventBuffer> mBuffers;
+    private final ThreadLocal<EventBuffer> mThreadLocalBuffer;
+    private final Thread mDrainer;
+    private volatile boolean mClosed = false;
+
+    public ThreadLocalEventBuffers(Logger logger, LockEventListenerIfc target) {
+        mLogger = logger;
+        mTarget = target;
+        mBuffers = new ConcurrentLinkedQueue<EventBuffer>();
+        mThreadLocalBuffer = new ThreadLocal<EventBuffer>() {
+            protected EventBuffer initialValue() {
+                EventBuffer buffer =
+                    new EventBuffer(Thread.currentThread(),
+                                    INITIAL_EVENTS_PER_BUFFER,
+                                    MAX_EVENTS_PER_BUFFER);
+                mBuffers.add(buffer);
+                return buffer;
+            }
+        };
+        mDrainer = new Thread("JCarder event drainer") {
+            public void run() {
+                drainUntilClosed();
+            }
+        };
+        mDrainer.setDaemon(true);
+        mDrainer.start();
+    }
+
+    public void onLockEvent(int lockId,
+                            int lockingContextId,
+                            int lastTakenLockId,
+                            int lastTakenLockingContextId,
+                            int threadId) throws IOException {
+        if (mClosed
+            || !mThreadLocalBuffer.get().offer(lockId,
+                                               lockingContextId,
+                                               lastTakenLockId,
+                                               lastTakenLockingContextId,
+                                               threadId)) {
+            mTarget.onLockEvent(lockId,
+                                lockingContextId,
+                                lastTakenLockId,
+                                lastTakenLockingContextId,
+                                threadId);
+        }
+    }
+
+    /**
+     * Duplicate counts are rare and are passed directly to the underlying
+     * listener. They may therefore arrive before the buffered event itself.
+     */
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContextId,
+                                      int threadId,
+                                      long count) throws IOException {
+        mTarget.onDuplicateLockEvents(lockId,
+                                      lockingContextId,
+                                      lastTakenLockId,
+                                      lastTakenLockingContextId,
+                                      threadId,
+                                      count);
+    }
+
+    /**
+     * Pass all events that are buffered at the time of the call to the
+     * underlying listener, without waiting for the drainer thread.
+     */
+    public void flush() throws IOException {
+        drainAll();
+    }
+
+    /**
+     * Stop the drainer thread and pass all buffered events to the underlying
+     * listener. Events that are added after this method has been called are
+     * passed directly to the underlying listener.
+     */
+    public void close() throws IOException {
+        mClosed = true;
+        mDrainer.interrupt();
+        try {
+            mDrainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainAll();
+    }
+
+    private void drainUntilClosed() {
+        while (!mClosed) {
+            try {
+                if (drainAll() == 0) {
+                    Thread.sleep(DRAIN_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                // Closed; the remaining events are drained by close().
+            } catch (IOException e) {
+                mLogger.severe("Failed to write buffered lock events: "
+                               + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drain all buffers once and forget the buffers of threads that have
+     * terminated.
+     *
+     * @return The number of drained events.
+     */
+    private synchronized int drainAll() throws IOException {
+        int drainedEvents = 0;
+        Iterator<EventBuffer> iter = mBuffers.iterator();
+        while (iter.hasNext()) {
+            EventBuffer buffer = iter.next();
+            final boolean ownerTerminated = buffer.isOwnerTerminated();
+            drainedEvents += buffer.drainTo(mTarget);
+            if (ownerTerminated) {
+                iter.remove();
+            }
+        }
+        return drainedEvents;
+    }
+
+    /**
+     * A ring of lock events written by a single thread.
+     *
+     * When the ring grows, the thread that owns it copies the unread events
+     * to a new ring and replaces the old one, which is never written again.
+     * The new ring is published before any event that is written to it, so
+     * the drainer finds each event that it has seen published in the ring
+     * that it reads after reading mWritten.
+     */
+    private static final class EventBuffer {
+        private static final int INTS_PER_EVENT = 5;
+        private final WeakReference<Thread> mOwner;
+        private final int mMaxCapacity;
+        private volatile int[] mEvents;
+        private volatile long mWritten = 0;
+        private volatile long mRead = 0;
+
+        EventBuffer(Thread owner, int initialCapacity, int maxCapacity) {
+            mOwner = new WeakReference<Thread>(owner);
+            mMaxCapacity = maxCapacity;
+            mEvents = new int[initialCapacity * INTS_PER_EVENT];
+        }
+
+        /**
+         * Must only be called by the thread that owns the buffer.
+         *
+         * @return false if the buffer is full.
+         */
+        boolean offer(int lockId,
+                      int lockingContextId,
+                      int lastTakenLockId,
+                      int lastTakenLockingContextId,
+                      int threadId) {
+            final long written = mWritten;
+            int[] events = mEvents;
+            if (written - mRead >= events.length / INTS_PER_EVENT) {
+                if (events.length / INTS_PER_EVENT >= mMaxCapacity) {
+                    return false;
+                }
+                events = grow(events, written);
+            }
+            final int capacity = events.length / INTS_PER_EVENT;
+            int i = (int) (written % capacity) * INTS_PER_EVENT;
+            events[i++] = lockId;
+            events[i++] = lockingContextId;
+            events[i++] = lastTakenLockId;
+            events[i++] = lastTakenLockingContextId;
+            events[i] = threadId;
+            mWritten = written + 1; // Publishes the event to the drainer.
+            return true;
+        }
+
+        /**
+         * Must only be called by the thread that owns the buffer.
+         *
+         * @return The new ring, with twice the capacity of the old one.
+         */
+        private int[] grow(int[] oldEvents, long written) {
+            final int oldCapacity = oldEvents.length / INTS_PER_EVENT;
+            final int capacity = 2 * oldCapacity;
+            final int[] events = new int[capacity * INTS_PER_EVENT];
+            for (long n = mRead; n < written; n++) {
+                System.arraycopy(oldEvents,
+                                 (int) (n % oldCapacity) * INTS_PER_EVENT,
+                                 events,
+                                 (int) (n % capacity) * INTS_PER_EVENT,
+                                 INTS_PER_EVENT);
+            }
+            mEvents = events;
+            return events;
+        }
+
+        /**
+         * Must only be called by one thread at a time.
+         */
+        int drainTo(LockEventListenerIfc target) throws IOException {
+            final long written = mWritten;
+            final int[] events = mEvents;
+            final int capacity = events.length / INTS_PER_EVENT;
+            final long firstUnread = mRead;
+            long read = firstUnread;
+            while (read < written) {
+                int i = (int) (read % capacity) * INTS_PER_EVENT;
+                final int lockId = events[i++];
+                final int lockingContextId = events[i++];
+                final int lastTakenLockId = events[i++];
+                final int lastTakenLockingContextId = events[i++];
+                final int threadId = events[i];
+                target.onLockEvent(lockId,
+                                   lockingContextId,
+                                   lastTakenLockId,
+                                   lastTakenLockingContextId,
+                                   threadId);
+                read++;
+                mRead = read;
+            }
+            return (int) (written - firstUnread);
+        }
+
+        boolean isOwnerTerminated() {
+            final Thread owner = mOwner.get();
+            return owner == null || !owner.isAlive();
+        }
+    }
+}
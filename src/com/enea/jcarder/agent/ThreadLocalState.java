@@ -0,0 +1,29 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Each thread gets its own ThreadState from this ThreadLocal. The value is
+ * null until the EventListener sets it, which it does when the thread enters
+ * its first monitor.
+ */
+
+@ThreadSafe
+final class ThreadLocalState extends ThreadLocal<ThreadState> {
+}
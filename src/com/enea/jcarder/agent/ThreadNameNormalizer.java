@@ -0,0 +1,102 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * This class rewrites the names of threads that belong to a thread pool to
+ * the name of the pool, so that all workers of the pool can be described by a
+ * single LockingThread.
+ *
+ * Each rule is a regular expression that must match the whole thread name and
+ * a replacement that may refer to the groups of the expression, for example
+ * "pool-(\d+)-thread-\d+" and "pool-$1-thread-*". The first matching rule is
+ * used. The rule "pools" stands for POOL_RULES.
+ *
+ * No names are rewritten unless rules are given, since the threads of a pool
+ * are then no longer told apart in the recording.
+ */
+@ThreadSafe
+public final class ThreadNameNormalizer {
+    /**
+     * The rules that match the names that
+     * java.util.concurrent.Executors.defaultThreadFactory() gives threads.
+     */
+    public static final String POOL_RULES =
+        "pool-(\\d+)-thread-\\d+=pool-$1-thread-*";
+
+    /**
+     * A rule that stands for POOL_RULES.
+     */
+    public static final String POOL_RULES_NAME = "pools";
+
+    private final List<Pattern> mPatterns = new ArrayList<Pattern>();
+    private final List<String> mReplacements = new ArrayList<String>();
+
+    /**
+     * Create a ThreadNameNormalizer without any rules.
+     */
+    public ThreadNameNormalizer() {
+    }
+
+    /**
+     * Create a ThreadNameNormalizer from a list of rules on the format
+     * "regex=replacement;regex=replacement". The last "=" in a rule
+     * separates the expression from the replacement, and the rule "pools"
+     * is replaced by POOL_RULES.
+     *
+     * @throws IllegalArgumentException
+     *             If a rule has no "=" or an invalid regular expression.
+     */
+    public ThreadNameNormalizer(String rules) {
+        for (String rule : rules.split(";")) {
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            if (rule.trim().equals(POOL_RULES_NAME)) {
+                rule = POOL_RULES;
+            }
+            final int separator = rule.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Missing \"=\" in thread"
+                                                   + " name rule: " + rule);
+            }
+            mPatterns.add(Pattern.compile(rule.substring(0, separator)));
+            mReplacements.add(rule.substring(separator + 1));
+        }
+    }
+
+    /**
+     * @return The name of the pool that the thread belongs to, or null if no
+     *         rule matches the name of the thread.
+     */
+    public String normalize(String threadName) {
+        for (int i = 0; i < mPatterns.size(); i++) {
+            final Matcher matcher = mPatterns.get(i).matcher(threadName);
+            if (matcher.matches()) {
+                return matcher.replaceFirst(mReplacements.get(i));
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.enea.jcarder.util.Striping;
+
+/**
+ * Each instance of this class holds the state that the EventListener keeps
+ * for a thread: the ID of the thread, the monitors that the thread holds,
+ * the counters of the SamplingPolicy and the measurements of the
+ * OverheadGovernor.
+ *
+ * A ThreadState is only created for threads that enter monitors, and its
+ * arrays are only allocated once they are needed, so that it stays small for
+ * the large number of short-lived threads that some applications have. The
+ * counters of the SamplingPolicy are kept in an open-addressing hash map, so
+ * they take space in proportion to the number of call sites that the thread
+ * has entered monitors at, not to the highest ID of those call sites.
+ */
+@NotThreadSafe
+final class ThreadState {
+    static final int NO_THREAD_ID = -1;
+    private static final int INITIAL_SITE_CAPACITY = 16;
+    private static final int NO_SITE = -1;
+    private static final int[] NO_SITES = new int[0];
+    private final EnteredMonitorStack mEnteredMonitors =
+        new EnteredMonitorStack();
+    private int[] mEntrySites = NO_SITES;
+    private int[] mEntries = NO_SITES;
+    private int mEntrySiteCount = 0;
+    private int mThreadId = NO_THREAD_ID;
+    private int mSamplingCountdown = 0;
+    private int mEpoch = 0;
+    private OverheadGovernor.ThreadBudget mBudget = null;
+    private RecordingFilter mFilter = null;
+    private boolean mAcceptedByFilter = false;
+
+    EnteredMonitorStack getEnteredMonitors() {
+        return mEnteredMonitors;
+    }
+
+    /**
+     * @return The ID of the LockingThread record of the thread, or
+     *         NO_THREAD_ID if it has not been written yet.
+     */
+    int getThreadId() {
+        return mThreadId;
+    }
+
+    void setThreadId(int threadId) {
+        mThreadId = threadId;
+    }
+
+    /**
+     * @return The recording epoch that the entered monitors belong to.
+     */
+    int getEpoch() {
+        return mEpoch;
+    }
+
+    void setEpoch(int epoch) {
+        mEpoch = epoch;
+    }
+
+    /**
+     * @return The number of monitor enters at a call site that the
+     *         SamplingPolicy has counted.
+     */
+    int getSiteEntries(int siteId) {
+        if (mEntrySites.length == 0) {
+            return 0;
+        }
+        final int slot = findSlot(mEntrySites, siteId);
+        return mEntrySites[slot] == siteId ? mEntries[slot] : 0;
+    }
+
+    void setSiteEntries(int siteId, int entries) {
+        if (2 * (mEntrySiteCount + 1) > mEntrySites.length) {
+            growSiteMap();
+        }
+        final int slot = findSlot(mEntrySites, siteId);
+        if (mEntrySites[slot] == NO_SITE) {
+            mEntrySites[slot] = siteId;
+            mEntrySiteCount++;
+        }
+        mEntries[slot] = entries;
+    }
+
+    /**
+     * @return The number of monitor enters until the next one that the
+     *         SamplingPolicy records.
+     */
+    int getSamplingCountdown() {
+        return mSamplingCountdown;
+    }
+
+    void setSamplingCountdown(int countdown) {
+        mSamplingCountdown = countdown;
+    }
+
+    /**
+     * @return The measurements of the OverheadGovernor, or null if there are
+     *         none yet.
+     */
+    OverheadGovernor.ThreadBudget getBudget() {
+        return mBudget;
+    }
+
+    void setBudget(OverheadGovernor.ThreadBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * @return true if the given filter accepts the thread. The decision is
+     *         cached until another filter is given.
+     */
+    boolean isAcceptedBy(RecordingFilter filter) {
+        if (filter != mFilter) {
+            mAcceptedByFilter = filter.acceptsThread(Thread.currentThread());
+            mFilter = filter;
+        }
+        return mAcceptedByFilter;
+    }
+
+    /**
+     * @return The slot of a call site, or the empty slot where it belongs.
+     */
+    private static int findSlot(int[] sites, int siteId) {
+        final int mask = sites.length - 1;
+        int slot = Striping.spread(siteId) & mask;
+        while (sites[slot] != siteId && sites[slot] != NO_SITE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growSiteMap() {
+        final int[] oldSites = mEntrySites;
+        final int[] oldEntries = mEntries;
+        final int capacity =
+            Math.max(INITIAL_SITE_CAPACITY, 2 * oldSites.length);
+        mEntrySites = new int[capacity];
+        mEntries = new int[capacity];
+        Arrays.fill(mEntrySites, NO_SITE);
+        for (int i = 0; i < oldSites.length; i++) {
+            if (oldSites[i] != NO_SITE) {
+                final int slot = findSlot(mEntrySites, oldSites[i]);
+                mEntrySites[slot] = oldSites[i];
+                mEntries[slot] = oldEntries[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static com.enea.jcarder.agent.instrument.InstrumentationUtilities.getInternalName;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.StaticEventListener;
+
+/**
+ * This class rewrites a class that was instrumented by another JVM, whose
+ * call site IDs do not match the CallSiteRegistry of this JVM. Each call
+ * site that the InstrumentedAttribute of the class lists is registered in
+ * this JVM, and each ID that the instrumented code passes to the
+ * StaticEventListener is replaced with the ID that the call site got here.
+ *
+ * The instrumented code always pushes a call site ID as a constant
+ * immediately before invoking a method of the StaticEventListener whose last
+ * parameter is the ID, so only such constants are replaced.
+ */
+@NotThreadSafe
+final class CallSiteRemapper extends org.objectweb.asm.ClassAdapter {
+    private static final String CALLBACK_CLASS_NAME =
+        getInternalName(StaticEventListener.class);
+    private final Map<Integer, CallSite> mCallSites;
+    private final Map<Integer, Integer> mIds = new HashMap<Integer, Integer>();
+
+    private CallSiteRemapper(ClassVisitor visitor,
+                             Map<Integer, CallSite> callSites) {
+        super(visitor);
+        mCallSites = callSites;
+    }
+
+    /**
+     * @param pos
+     *            The position of the content of the InstrumentedAttribute of
+     *            the class, as returned by InstrumentedAttribute.find.
+     * @return The class with the call site IDs of this JVM.
+     */
+    static byte[] remap(byte[] classBuffer, int pos) throws IOException {
+        final Map<Integer, CallSite> callSites =
+            InstrumentedAttribute.readCallSites(classBuffer, pos);
+        final ClassWriter writer = new ClassWriter(false);
+        new ClassReader(classBuffer).accept(
+            new CallSiteRemapper(writer, callSites), false);
+        return writer.toByteArray();
+    }
+
+    public void visit(int version, int access, String name, String signature,
+                      String superName, String[] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
+        final InstrumentedAttribute attribute =
+            new InstrumentedAttribute("DeadLock");
+        for (Map.Entry<Integer, CallSite> entry : mCallSites.entrySet()) {
+            mIds.put(entry.getKey(),
+                     attribute.registerCallSite(entry.getValue()));
+        }
+        super.visitAttribute(attribute);
+    }
+
+    public void visitAttribute(Attribute attribute) {
+        if (!InstrumentedAttribute.matchAttribute(attribute)) {
+            super.visitAttribute(attribute);
+        }
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc,
+                                     String signature, String[] exceptions) {
+        return new RemappingMethodAdapter(
+            super.visitMethod(access, name, desc, signature, exceptions));
+    }
+
+    /**
+     * Holds back each int constant until the next instruction shows whether
+     * it is a call site ID.
+     */
+    private final class RemappingMethodAdapter extends MethodAdapter {
+        private boolean mHasPendingInt = false;
+        private int mPendingInt;
+
+        RemappingMethodAdapter(MethodVisitor visitor) {
+            super(visitor);
+        }
+
+        private void hold(int value) {
+            flush();
+            mHasPendingInt = true;
+            mPendingInt = value;
+        }
+
+        private void flush() {
+            if (mHasPendingInt) {
+                mHasPendingInt = false;
+                InstrumentationUtilities.pushInt(mv, mPendingInt);
+            }
+        }
+
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+                hold(opcode - Opcodes.ICONST_0);
+            } else {
+                flush();
+                super.visitInsn(opcode);
+            }
+        }
+
+        public void visitIntInsn(int opcode, int operand) {
+            if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+                hold(operand);
+            } else {
+                flush();
+                super.visitIntInsn(opcode, operand);
+            }
+        }
+
+        public void visitLdcInsn(Object constant) {
+            if (constant instanceof Integer) {
+                hold(((Integer) constant).intValue());
+            } else {
+                flush();
+                super.visitLdcInsn(constant);
+            }
+        }
+
+        public void visitMethodInsn(int opcode, String owner, String name,
+                                    String desc) {
+            if (mHasPendingInt
+                && opcode == Opcodes.INVOKESTATIC
+                && owner.equals(CALLBACK_CLASS_NAME)
+                && desc.charAt(desc.indexOf(')') - 1) == 'I') {
+                final Integer id = mIds.get(mPendingInt);
+                if (id != null) {
+                    mPendingInt = id.intValue();
+                }
+            }
+            flush();
+            super.visitMethodInsn(opcode, owner, name, desc);
+        }
+
+        public void visitVarInsn(int opcode, int var) {
+            flush();
+            super.visitVarInsn(opcode, var);
+        }
+
+        public void visitTypeInsn(int opcode, String desc) {
+            flush();
+            super.visitTypeInsn(opcode, desc);
+        }
+
+        public void visitFieldInsn(int opcode, String owner, String name,
+                                   String desc) {
+            flush();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        public void visitJumpInsn(int opcode, Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        public void visitLabel(Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        public void visitIincInsn(int var, int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        public void visitTableSwitchInsn(int min, int max, Label dflt,
+                                         Label[] labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        public void visitLookupSwitchInsn(Label dflt, int[] keys,
+                                          Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        public void visitTryCatchBlock(Label start, Label end, Label handler,
+                                       String type) {
+            flush();
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        public void visitLocalVariable(String name, String desc,
+                                       String signature, Label start,
+                                       Label end, int index) {
+            flush();
+            super.visitLocalVariable(name, desc, signature, start, end, index);
+        }
+
+        public void visitLineNumber(int line, Label start) {
+            flush();
+            super.visitLineNumber(line, start);
+        }
+
+        public void visitMaxs(int maxStack, int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.enea.jcarder.agent.instrument;
 
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
@@ -29,23 +30,46 @@ import com.enea.jcarder.util.logging.Logger;
 /**
  * Each instance of this class is responsible for instrumenting a class. It uses
  * the MonitorMethodAdapter for instrumenting each method in the class.
+ *
+ * A class that is instrumented to be retransformable keeps its fields and
+ * the modifiers of its methods, since the JVM does not allow them to be
+ * changed when a class that is already loaded is retransformed.
  */
 @NotThreadSafe
 class ClassAdapter extends org.objectweb.asm.ClassAdapter {
     private final String mClassName;
     private final Logger mLogger;
+    private final InstrumentFilter mFilter;
+    private final boolean mRetransformable;
+    private LockIdFields mLockIdFields;
+    private InstrumentedAttribute mInstrumentedAttribute;
 
-    ClassAdapter(Logger logger, ClassVisitor visitor, String className) {
+    ClassAdapter(Logger logger,
+                 ClassVisitor visitor,
+                 String className,
+                 InstrumentFilter filter,
+                 boolean retransformable) {
         super(visitor);
         mLogger = logger;
         mClassName = className;
+        mFilter = filter;
+        mRetransformable = retransformable;
         mLogger.fine("Instrumenting class " + mClassName);
     }
 
     public void visit(int arg0, int arg1, String arg2, String arg3, String arg4,
                       String[] arg5) {
         super.visit(arg0, arg1, arg2, arg3, arg4, arg5);
-        super.visitAttribute(new InstrumentedAttribute("DeadLock"));
+        mInstrumentedAttribute = new InstrumentedAttribute("DeadLock");
+        super.visitAttribute(mInstrumentedAttribute);
+        final boolean canAddFields =
+            (arg1 & ACC_INTERFACE) == 0 && !mRetransformable;
+        mLockIdFields = new LockIdFields(arg2, canAddFields);
+    }
+
+    public void visitEnd() {
+        mLockIdFields.visitFields(cv);
+        super.visitEnd();
     }
 
     public MethodVisitor visitMethod(final int arg,
@@ -56,7 +80,8 @@ class ClassAdapter extends org.objectweb.asm.ClassAdapter {
         final boolean isSynchronized = (arg & ACC_SYNCHRONIZED) != 0;
         final boolean isNative = (arg & ACC_NATIVE) != 0;
         final boolean isStatic = (arg & ACC_STATIC) != 0;
-        final int manipulatedArg = arg & ~ACC_SYNCHRONIZED;
+        final int manipulatedArg =
+            mRetransformable ? arg : arg & ~ACC_SYNCHRONIZED;
         if (isNative) {
             mLogger.finer("Can't instrument native method "
                           + mClassName + "." + methodName);
@@ -65,6 +90,14 @@ class ClassAdapter extends org.objectweb.asm.ClassAdapter {
                                      descriptor,
                                      signature,
                                      exceptions);
+        } else if (!mFilter.isMethodIncluded(mClassName, methodName)) {
+            mLogger.finer("Won't instrument excluded method "
+                          + mClassName + "." + methodName);
+            return super.visitMethod(arg,
+                                     methodName,
+                                     descriptor,
+                                     signature,
+                                     exceptions);
         } else {
             final MethodVisitor mv = super.visitMethod(manipulatedArg,
                                                        methodName,
@@ -72,7 +105,11 @@ class ClassAdapter extends org.objectweb.asm.ClassAdapter {
                                                        signature,
                                                        exceptions);
             final MonitorEnterMethodAdapter dlma =
-                new MonitorEnterMethodAdapter(mv, mClassName, methodName);
+                new MonitorEnterMethodAdapter(mv,
+                                              mClassName,
+                                              methodName,
+                                              mLockIdFields,
+                                              mInstrumentedAttribute);
             final StackAnalyzeMethodVisitor stackAnalyzer =
                 new StackAnalyzeMethodVisitor(mLogger, dlma, isStatic);
             dlma.setStackAnalyzer(stackAnalyzer);
@@ -85,6 +122,10 @@ class ClassAdapter extends org.objectweb.asm.ClassAdapter {
                  * explicit monitorEnter and monitorExit bytecodes in the
                  * beginning of the method and at each possible exit (by normal
                  * return and by exception) of the method.
+                 *
+                 * A retransformable method stays synchronized, so the
+                 * explicit monitor enter is a reentry and the event comes
+                 * after the method has taken the lock.
                  */
                 return new SimulateMethodSyncMethodAdapter(stackAnalyzer,
                                                            mClassName,
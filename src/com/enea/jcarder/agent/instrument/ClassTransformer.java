@@ -16,17 +16,25 @@
 
 package com.enea.jcarder.agent.instrument;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.util.CheckClassAdapter;
 
+import com.enea.jcarder.util.BuildInformation;
 import com.enea.jcarder.util.logging.Logger;
 
 /**
@@ -45,6 +53,13 @@ public class ClassTransformer implements ClassFileTransformer {
     private final InstrumentConfig mInstrumentConfig;
     private File mOriginalClassesDir;
     private File mInstrumentedClassesDir;
+    private final InstrumentCache mCache;
+    /*
+     * The names of the instrumented classes per class loader. The bootstrap
+     * class loader is the null key.
+     */
+    private final Map<ClassLoader, Set<String>> mInstrumentedClasses;
+    private volatile boolean mEnabled = true;
 
     public ClassTransformer(Logger logger,
                             File outputDirectory,
@@ -66,6 +81,89 @@ public class ClassTransformer implements ClassFileTransformer {
         }
         deleteDirRecursively(mInstrumentedClassesDir);
         deleteDirRecursively(mOriginalClassesDir);
+        mCache = openCache(config.getCacheDirectory());
+        mInstrumentedClasses = new WeakHashMap<ClassLoader, Set<String>>();
+    }
+
+    /**
+     * Enable or disable the instrumentation. A disabled ClassTransformer
+     * leaves all classes as they are, so classes that are retransformed
+     * while it is disabled get their original bytecode back.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return Whether a class that is already loaded would be considered for
+     *         instrumentation if it were retransformed. Whether it has
+     *         anything to instrument is not checked.
+     */
+    public boolean mayInstrument(Class<?> clazz) {
+        return getExclusionReason(clazz.getClassLoader(),
+                                  clazz.getName()) == null;
+    }
+
+    /**
+     * @return Whether this ClassTransformer has instrumented a class that is
+     *         loaded.
+     */
+    public boolean hasInstrumented(Class<?> clazz) {
+        synchronized (mInstrumentedClasses) {
+            final Set<String> names =
+                mInstrumentedClasses.get(clazz.getClassLoader());
+            return names != null && names.contains(clazz.getName());
+        }
+    }
+
+    /**
+     * @return Whether a class that is already loaded may have anything to
+     *         instrument, judging by the class file that its class loader
+     *         finds for it. A class whose class file can't be read is assumed
+     *         to have something.
+     */
+    public static boolean mayHaveMonitors(Class<?> clazz) {
+        final String resource = clazz.getName().replace('.', '/') + ".class";
+        final ClassLoader loader = clazz.getClassLoader();
+        final InputStream in = (loader == null)
+            ? ClassLoader.getSystemResourceAsStream(resource)
+            : loader.getResourceAsStream(resource);
+        if (in == null) {
+            return true;
+        }
+        try {
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return MonitorScanner.mayHaveMonitors(out.toByteArray());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private InstrumentCache openCache(File directory) {
+        if (directory == null) {
+            return null;
+        }
+        final String version =
+            BuildInformation.getShortInfo() + "\n"
+            + mInstrumentConfig.getInstrumentFilter().getDescription()
+            + (mInstrumentConfig.getRetransformable()
+               ? "\nretransformable" : "");
+        try {
+            return new InstrumentCache(mLogger, directory, version);
+        } catch (IOException e) {
+            mLogger.warning("Failed to open instrumentation cache "
+                            + directory + ": " + e.getMessage());
+            return null;
+        }
     }
 
     public byte[] transform(final ClassLoader classLoader,
@@ -75,8 +173,23 @@ public class ClassTransformer implements ClassFileTransformer {
                             final byte[] originalClassBuffer)
     throws IllegalClassFormatException {
         String className = jvmInternalClassName.replace('/', '.');
+        if (!mEnabled) {
+            return null;
+        }
         try {
-            return instrument(classLoader, originalClassBuffer, className);
+            final byte[] instrumentedClassBuffer =
+                instrument(classLoader, originalClassBuffer, className);
+            if (instrumentedClassBuffer != null) {
+                synchronized (mInstrumentedClasses) {
+                    Set<String> names = mInstrumentedClasses.get(classLoader);
+                    if (names == null) {
+                        names = new HashSet<String>();
+                        mInstrumentedClasses.put(classLoader, names);
+                    }
+                    names.add(className);
+                }
+            }
+            return instrumentedClassBuffer;
         } catch (Throwable t) {
             mLogger.severe("Failed to transform the class "
                            + className + ": " + t.getMessage());
@@ -87,33 +200,86 @@ public class ClassTransformer implements ClassFileTransformer {
         }
     }
 
-    private byte[] instrument(final ClassLoader classLoader,
-                              final byte[] originalClassBuffer,
-                              final String className) {
+    /**
+     * @return The reason why a class is not instrumented, or null if it may
+     *         be instrumented.
+     */
+    private String getExclusionReason(final ClassLoader classLoader,
+                                      final String className) {
+        final String reason =
+            getExclusionReason(mInstrumentConfig.getInstrumentFilter(),
+                               className);
+        if (reason != null) {
+            return reason;
+        }
+        if (!isCompatibleClassLoader(classLoader)) {
+            return "loaded with " + getClassLoaderName(classLoader);
+        }
+        return null;
+    }
+
+    /**
+     * @return The reason why a class with a name is not instrumented,
+     *         whatever class loader loads it, or null if it may be
+     *         instrumented.
+     */
+    static String getExclusionReason(final InstrumentFilter filter,
+                                     final String className) {
         if (className.startsWith("com.enea.jcarder")
             && !className.startsWith("com.enea.jcarder.testclasses")) {
-            return null; // Don't instrument ourself.
+            return "JCarder does not instrument itself";
         }
-        final String reason = isInstrumentable(className);
+        return filter.getExclusionReason(className);
+    }
+
+    private byte[] instrument(final ClassLoader classLoader,
+                              final byte[] originalClassBuffer,
+                              final String className) {
+        final String reason = getExclusionReason(classLoader, className);
         if (reason != null) {
             mLogger.finest(
                 "Won't instrument class " + className + ": " + reason);
             return null;
         }
-        if (!isCompatibleClassLoader(classLoader)) {
-            mLogger.finest("Can't instrument class " + className
-                           + " loaded with " + getClassLoaderName(classLoader));
+        final int attributePos =
+            InstrumentedAttribute.find(originalClassBuffer);
+        if (attributePos >= 0) {
+            if (InstrumentedAttribute.hasRegisteredCallSites(
+                    originalClassBuffer, attributePos)) {
+                mLogger.finest("Class " + className
+                               + " is already instrumented");
+                return null;
+            }
+            mLogger.fine("Class " + className + " was instrumented with"
+                         + " call sites that this JVM does not have;"
+                         + " remapping their IDs");
+            try {
+                return CallSiteRemapper.remap(originalClassBuffer,
+                                              attributePos);
+            } catch (IOException e) {
+                mLogger.warning("Failed to read the call sites of"
+                                + " instrumented class " + className
+                                + ": " + e);
+                return null;
+            }
+        }
+        if (!MonitorScanner.mayHaveMonitors(originalClassBuffer)) {
+            mLogger.finest("Won't instrument class " + className
+                           + ": no monitors");
             return null;
         }
-        final ClassReader reader = new ClassReader(originalClassBuffer);
-        final ClassWriter writer = new ClassWriter(true);
-        ClassVisitor visitor = writer;
-        if (mInstrumentConfig.getValidateTransfomedClasses()) {
-            visitor = new CheckClassAdapter(visitor);
+        if (mCache != null) {
+            final byte[] cachedClassBuffer =
+                mCache.get(className, originalClassBuffer);
+            if (cachedClassBuffer != null) {
+                mLogger.finest("Found instrumented class " + className
+                               + " in cache");
+                return cachedClassBuffer;
+            }
         }
-        visitor = new ClassAdapter(mLogger, visitor, className);
-        reader.accept(visitor, false);
-        byte[] instrumentedClassfileBuffer = writer.toByteArray();
+        final byte[] instrumentedClassfileBuffer =
+            instrument(mLogger, mInstrumentConfig, originalClassBuffer,
+                       className);
         if (mInstrumentConfig.getDumpClassFiles()) {
             dumpClassToFile(originalClassBuffer,
                             mOriginalClassesDir,
@@ -122,9 +288,42 @@ public class ClassTransformer implements ClassFileTransformer {
                             mInstrumentedClassesDir,
                             className);
         }
+        if (mCache != null) {
+            mCache.put(className,
+                       originalClassBuffer,
+                       instrumentedClassfileBuffer);
+        }
         return instrumentedClassfileBuffer;
     }
 
+    /**
+     * Instrument a class, without checking whether it should be.
+     */
+    static byte[] instrument(final Logger logger,
+                             final InstrumentConfig config,
+                             final byte[] originalClassBuffer,
+                             final String className) {
+        final ClassReader reader = new ClassReader(originalClassBuffer);
+        /*
+         * The maximum stack sizes are not recomputed. Each adapter adds the
+         * stack that its own instructions need to the maximum that it is
+         * given, which is enough since no instruction is added where the
+         * original code may have more on its stack than that maximum.
+         */
+        final ClassWriter writer = new ClassWriter(false);
+        ClassVisitor visitor = writer;
+        if (config.getValidateTransfomedClasses()) {
+            visitor = new CheckClassAdapter(visitor);
+        }
+        visitor = new ClassAdapter(logger,
+                                   visitor,
+                                   className,
+                                   config.getInstrumentFilter(),
+                                   config.getRetransformable());
+        reader.accept(visitor, false);
+        return writer.toByteArray();
+    }
+
     /**
      * Instrumented classes must use the same static members in the
      * com.ena.jcarder.agent.StaticEventListener class as the Java agent and
@@ -156,32 +355,6 @@ public class ClassTransformer implements ClassFileTransformer {
         }
     }
 
-    /**
-     * Check whether we want to instrument a class.
-     *
-     * @param className Name of the class, including package.
-     * @return null if the class should be instrumented, otherwise a
-     * string containing the reason of why the class shouldn't be
-     * instrumented.
-     */
-    private static String isInstrumentable(String className) {
-        // AWK and Swing classes are OK.
-        if (className.startsWith("java.awt.")
-            || className.startsWith("javax.swing.")) {
-            return null;
-        }
-
-        // Other standard library classes are not.
-        if (className.startsWith("java.")
-            || className.startsWith("javax.")
-            || className.startsWith("sun.")) {
-            return "standard library class";
-        }
-
-        // All other classes should be instrumented.
-        return null;
-    }
-
     private static boolean deleteDirRecursively(File dir) {
         if (dir.isDirectory()) {
             String[] children = dir.list();
@@ -0,0 +1,273 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.CallSiteRegistry;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This class is responsible for a cache of instrumented classes on disk, so
+ * that a class that has been instrumented once does not have to be parsed and
+ * instrumented again when the JVM is restarted.
+ *
+ * An instrumented class is stored in a file of its own, named by a hash of
+ * the original class, the class name and a version string that shall change
+ * whenever the instrumentation may change, for example when the agent or the
+ * instrumentation rules change.
+ *
+ * Since the instrumented classes contain the IDs of their call sites, the
+ * cache also contains a table of all call sites in the order of their IDs.
+ * The table is read into the CallSiteRegistry when the cache is opened, and
+ * call sites that are registered later are appended to it, so that the
+ * cached classes refer to the same call sites in every JVM that uses the
+ * cache. The table is locked while it is read or appended to, since several
+ * JVMs may share the cache. If another JVM has appended a call site with an
+ * ID that this JVM has already given to another call site, the call site IDs
+ * of the JVMs have diverged, and no more classes are stored in the cache.
+ * Cached classes that only refer to call sites that this JVM agrees with the
+ * table on can still be read.
+ *
+ * The format of the table and the entries is versioned separately from the
+ * version string, since a cache written by an older agent is otherwise
+ * misread.
+ */
+@ThreadSafe
+final class InstrumentCache {
+    private static final int FORMAT_VERSION = 2;
+    static final String SITE_TABLE_FILENAME =
+        "callsites" + FORMAT_VERSION + ".dat";
+    private static final String ENTRY_SUFFIX = ".jci";
+    private final File mDirectory;
+    private final byte[] mVersion;
+    private final Logger mLogger;
+    @GuardedBy("this")
+    private long mSyncedOffset = 0;
+    /*
+     * The number of call sites, from ID 0, that the table and the
+     * CallSiteRegistry agree on.
+     */
+    private volatile int mSyncedSites = 0;
+    @GuardedBy("this")
+    private boolean mDiverged = false;
+
+    InstrumentCache(Logger logger, File directory, String version)
+    throws IOException {
+        mLogger = logger;
+        mDirectory = directory;
+        mVersion = version.getBytes("UTF-8");
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create directory "
+                                  + mDirectory);
+        }
+        syncSiteTable();
+        mLogger.fine("Opened instrumentation cache " + mDirectory + " with "
+                     + mSyncedSites + " call sites");
+    }
+
+    /**
+     * Get an instrumented class from the cache.
+     *
+     * @return The instrumented class, or null if it is not in the cache.
+     */
+    byte[] get(String className, byte[] originalClass) {
+        final File file = getEntryFile(className, originalClass);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in =
+                new DataInputStream(new FileInputStream(file));
+            try {
+                final int requiredSites = in.readInt();
+                if (requiredSites > mSyncedSites) {
+                    syncSiteTable();
+                    if (requiredSites > mSyncedSites) {
+                        return null;
+                    }
+                }
+                final byte[] instrumentedClass = new byte[in.readInt()];
+                in.readFully(instrumentedClass);
+                return instrumentedClass;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            mLogger.warning("Failed to read cached class " + className
+                            + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store an instrumented class in the cache. This is expected to be called
+     * after the class has been instrumented, when its call sites have been
+     * registered.
+     */
+    void put(String className, byte[] originalClass, byte[] instrumentedClass) {
+        try {
+            final int requiredSites = syncSiteTable();
+            if (requiredSites < 0) {
+                return;
+            }
+            final File file = getEntryFile(className, originalClass);
+            final File tmpFile = File.createTempFile("jcarder", ".tmp",
+                                                     mDirectory);
+            final DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                out.writeInt(requiredSites);
+                out.writeInt(instrumentedClass.length);
+                out.write(instrumentedClass);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            mLogger.warning("Failed to cache class " + className + ": "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * Register the call sites that have been appended to the table by other
+     * JVMs, and append the call sites that this JVM has registered since the
+     * last time.
+     *
+     * @return The number of call sites that the table and the
+     *         CallSiteRegistry agree on, or -1 if they have diverged.
+     */
+    synchronized int syncSiteTable() throws IOException {
+        if (mDiverged) {
+            return -1;
+        }
+        final RandomAccessFile table =
+            new RandomAccessFile(new File(mDirectory, SITE_TABLE_FILENAME),
+                                 "rw");
+        try {
+            final FileLock lock = table.getChannel().lock();
+            try {
+                readSites(table);
+                if (!mDiverged) {
+                    appendSites(table);
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            table.close();
+        }
+        if (mDiverged) {
+            mLogger.warning("The call sites of the instrumentation cache "
+                            + mDirectory + " have diverged; no more classes"
+                            + " will be cached");
+            return -1;
+        }
+        return mSyncedSites;
+    }
+
+    @GuardedBy("this")
+    private void readSites(RandomAccessFile table) throws IOException {
+        table.seek(mSyncedOffset);
+        try {
+            while (table.getFilePointer() < table.length()) {
+                final CallSite site =
+                    new CallSite(table.readUTF(),
+                                 table.readUTF(),
+                                 table.readInt(),
+                                 InstrumentedAttribute.fromUTF(
+                                     table.readUTF()));
+                if (CallSiteRegistry.register(site) != mSyncedSites) {
+                    mDiverged = true;
+                    return;
+                }
+                mSyncedSites++;
+                mSyncedOffset = table.getFilePointer();
+            }
+        } catch (EOFException e) {
+            // The last call site was only partly written. It is overwritten
+            // by the call sites that are appended.
+        }
+    }
+
+    @GuardedBy("this")
+    private void appendSites(RandomAccessFile table) throws IOException {
+        final int size = CallSiteRegistry.size();
+        if (size == mSyncedSites) {
+            return;
+        }
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        for (int id = mSyncedSites; id < size; id++) {
+            final CallSite site = CallSiteRegistry.getSite(id);
+            out.writeUTF(site.getLockReference());
+            out.writeUTF(site.getMethodWithClass());
+            out.writeInt(site.getLineNumber());
+            out.writeUTF(InstrumentedAttribute.toUTF(site.getLockedField()));
+        }
+        out.flush();
+        table.setLength(mSyncedOffset);
+        table.seek(mSyncedOffset);
+        table.write(buffer.toByteArray());
+        mSyncedOffset = table.getFilePointer();
+        mSyncedSites = size;
+    }
+
+    private File getEntryFile(String className, byte[] originalClass) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        digest.update((byte) FORMAT_VERSION);
+        digest.update(mVersion);
+        digest.update((byte) 0);
+        try {
+            digest.update(className.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        digest.update((byte) 0);
+        digest.update(originalClass);
+        final StringBuffer name = new StringBuffer();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        name.append(ENTRY_SUFFIX);
+        return new File(mDirectory, name.toString());
+    }
+}
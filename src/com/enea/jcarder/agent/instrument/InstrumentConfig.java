@@ -16,14 +16,22 @@
 
 package com.enea.jcarder.agent.instrument;
 
+import java.io.File;
+
 // TODO Is this config class needed?
 public final class InstrumentConfig {
 
     private final boolean mValidateTransfomedClasses = true;
     private boolean mDumpClassFiles;
+    private InstrumentFilter mInstrumentFilter;
+    private File mCacheDirectory;
+    private boolean mRetransformable;
 
     public InstrumentConfig() {
         mDumpClassFiles = false;
+        mInstrumentFilter = InstrumentFilter.DEFAULT;
+        mCacheDirectory = null;
+        mRetransformable = false;
     }
 
     public void setDumpClassFiles(boolean dumpClassFiles) {
@@ -37,4 +45,38 @@ public final class InstrumentConfig {
     public boolean getValidateTransfomedClasses() {
         return mValidateTransfomedClasses;
     }
+
+    public void setInstrumentFilter(InstrumentFilter instrumentFilter) {
+        mInstrumentFilter = instrumentFilter;
+    }
+
+    public InstrumentFilter getInstrumentFilter() {
+        return mInstrumentFilter;
+    }
+
+    /**
+     * The directory in which instrumented classes are cached between runs,
+     * or null if they are not cached.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        mCacheDirectory = cacheDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return mCacheDirectory;
+    }
+
+    /**
+     * Whether classes shall be instrumented so that they can be
+     * retransformed, which is needed to instrument classes that are already
+     * loaded and to restore the original classes. Such classes do not cache
+     * lock IDs in fields of their own.
+     */
+    public void setRetransformable(boolean retransformable) {
+        mRetransformable = retransformable;
+    }
+
+    public boolean getRetransformable() {
+        return mRetransformable;
+    }
 }
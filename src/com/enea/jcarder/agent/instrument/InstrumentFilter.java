@@ -0,0 +1,220 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An InstrumentFilter selects the classes and methods that are instrumented.
+ *
+ * A filter is described by a list of rules on the format
+ * "include=pattern;exclude=pattern" where the pattern is one of:
+ *
+ *   com.enea.*          All classes in a package and its subpackages.
+ *   com.enea.Foo*       All classes whose names start with a prefix.
+ *   *                   All classes.
+ *   com.enea.Foo        A class and its nested classes.
+ *   com.enea.Foo.bar()  The methods with a name in a class.
+ *
+ * The most specific rule that matches a class or method decides whether it
+ * is instrumented: a method rule is more specific than a class rule, which
+ * is more specific than a prefix rule, and a longer prefix is more specific
+ * than a shorter one. If two rules have the same pattern, the latter one
+ * wins. Classes and methods that no rule matches are instrumented.
+ *
+ * The rules of a filter are always preceded by DEFAULT_RULES, which exclude
+ * the standard library except for AWT and Swing, so those rules can be
+ * overridden by more specific rules.
+ */
+@ThreadSafe
+public final class InstrumentFilter {
+    public static final String DEFAULT_RULES = "exclude=java.*;"
+                                               + "exclude=javax.*;"
+                                               + "exclude=sun.*;"
+                                               + "include=java.awt.*;"
+                                               + "include=javax.swing.*";
+    public static final InstrumentFilter DEFAULT = new InstrumentFilter("");
+
+    private final String mDescription;
+    private final List<Rule> mClassRules = new ArrayList<Rule>();
+    private final HashMap<String, Rule> mMethodRules =
+        new HashMap<String, Rule>();
+    private final HashSet<String> mClassesWithIncludedMethods =
+        new HashSet<String>();
+
+    /**
+     * @throws IllegalArgumentException
+     *             If a rule is not on the format "include=pattern" or
+     *             "exclude=pattern".
+     */
+    public InstrumentFilter(String description) {
+        mDescription = DEFAULT_RULES + ";" + description.trim();
+        addRules(mDescription);
+    }
+
+    /**
+     * Get the rules of the filter, including the default rules.
+     */
+    public String getDescription() {
+        return mDescription;
+    }
+
+    private void addRules(String description) {
+        for (String rule : description.split(";")) {
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            final int separator = rule.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Missing \"=\" in"
+                                                   + " instrumentation rule: "
+                                                   + rule);
+            }
+            final String key = rule.substring(0, separator).trim();
+            final String pattern = rule.substring(separator + 1).trim();
+            final boolean include;
+            if (key.equals("include")) {
+                include = true;
+            } else if (key.equals("exclude")) {
+                include = false;
+            } else {
+                throw new IllegalArgumentException("Unknown instrumentation"
+                                                   + " rule key: " + key);
+            }
+            if (pattern.length() == 0) {
+                throw new IllegalArgumentException("Empty pattern in"
+                                                   + " instrumentation rule: "
+                                                   + rule);
+            }
+            addRule(new Rule(rule.trim(), pattern, include));
+        }
+    }
+
+    private void addRule(Rule rule) {
+        if (rule.mMethodKey != null) {
+            mMethodRules.put(rule.mMethodKey, rule);
+            if (rule.mInclude) {
+                mClassesWithIncludedMethods.add(rule.mPrefix);
+            }
+        } else {
+            mClassRules.add(rule);
+        }
+    }
+
+    /**
+     * Check whether a class may have to be instrumented. This check is
+     * intended to be made before the class is parsed.
+     *
+     * @param className
+     *            The name of the class, including package.
+     * @return null if the class may have to be instrumented, otherwise a
+     *         string containing the reason of why it shall not be.
+     */
+    public String getExclusionReason(String className) {
+        final Rule rule = findClassRule(className);
+        if (rule == null
+            || rule.mInclude
+            || mClassesWithIncludedMethods.contains(className)) {
+            return null;
+        }
+        return "excluded by rule \"" + rule.mDescription + "\"";
+    }
+
+    /**
+     * Check whether a method of a class that is instrumented shall be
+     * instrumented.
+     */
+    public boolean isMethodIncluded(String className, String methodName) {
+        final Rule rule = mMethodRules.isEmpty()
+                          ? null
+                          : mMethodRules.get(className + "." + methodName);
+        if (rule != null) {
+            return rule.mInclude;
+        }
+        final Rule classRule = findClassRule(className);
+        return classRule == null || classRule.mInclude;
+    }
+
+    private Rule findClassRule(String className) {
+        Rule best = null;
+        for (Rule rule : mClassRules) {
+            if (rule.matchesClass(className)
+                && (best == null
+                    || rule.mSpecificity >= best.mSpecificity)) {
+                best = rule;
+            }
+        }
+        return best;
+    }
+
+    private static final class Rule {
+        final String mDescription;
+        final boolean mInclude;
+        /*
+         * The package or class prefix of a prefix rule, the class name of a
+         * class rule, or the class name of a method rule.
+         */
+        final String mPrefix;
+        final boolean mIsPrefix;
+        final String mMethodKey;
+        final int mSpecificity;
+
+        Rule(String description, String pattern, boolean include) {
+            mDescription = description;
+            mInclude = include;
+            if (pattern.endsWith("*")) {
+                mPrefix = pattern.substring(0, pattern.length() - 1);
+                mIsPrefix = true;
+                mMethodKey = null;
+                mSpecificity = 2 * mPrefix.length();
+            } else if (pattern.endsWith("()")) {
+                final String key =
+                    pattern.substring(0, pattern.length() - 2);
+                final int dot = key.lastIndexOf('.');
+                if (dot <= 0 || dot == key.length() - 1) {
+                    throw new IllegalArgumentException("Invalid method"
+                                                       + " pattern: "
+                                                       + pattern);
+                }
+                mPrefix = key.substring(0, dot);
+                mIsPrefix = false;
+                mMethodKey = key;
+                mSpecificity = Integer.MAX_VALUE;
+            } else {
+                mPrefix = pattern;
+                mIsPrefix = false;
+                mMethodKey = null;
+                mSpecificity = 2 * mPrefix.length() + 1;
+            }
+        }
+
+        boolean matchesClass(String className) {
+            if (mIsPrefix) {
+                return className.startsWith(mPrefix);
+            }
+            return className.equals(mPrefix)
+                   || (className.startsWith(mPrefix)
+                       && className.length() > mPrefix.length()
+                       && className.charAt(mPrefix.length()) == '$');
+        }
+    }
+}
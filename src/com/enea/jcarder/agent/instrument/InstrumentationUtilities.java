@@ -45,6 +45,22 @@ public final class InstrumentationUtilities {
                            "(Ljava/lang/String;)Ljava/lang/Class;");
     }
 
+    /**
+     * Push an int constant to the stack with the shortest instruction that
+     * can hold it.
+     */
+    public static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(value));
+        }
+    }
+
     public static String getInternalName(Class c) {
         return c.getName().replace('.', '/');
     }
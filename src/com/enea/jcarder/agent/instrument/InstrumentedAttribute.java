@@ -16,12 +16,30 @@
 
 package com.enea.jcarder.agent.instrument;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.ClassWriter;
 
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.CallSiteRegistry;
+
+/**
+ * This attribute marks a class as instrumented. It also lists the IDs and
+ * the call sites that the instrumented code refers to, so that a class that
+ * was instrumented by another JVM, for example by the OfflineInstrumenter,
+ * can be checked against the CallSiteRegistry of the JVM that loads it.
+ */
 public final class InstrumentedAttribute extends Attribute {
     private static final String PREFIX = "com.enea.jcarder.instrumented";
+    private static final byte[] PREFIX_BYTES = PREFIX.getBytes();
+    private final Map<Integer, CallSite> mCallSites =
+        new LinkedHashMap<Integer, CallSite>();
 
     public InstrumentedAttribute() {
         super(PREFIX);
@@ -35,11 +53,101 @@ public final class InstrumentedAttribute extends Attribute {
         return a.type.startsWith(PREFIX);
     }
 
+    /**
+     * Register a call site in the instrumented class and return its ID.
+     */
+    int registerCallSite(CallSite site) {
+        final int id = CallSiteRegistry.register(site);
+        mCallSites.put(id, site);
+        return id;
+    }
+
     protected ByteVector write(ClassWriter arg0,
                                byte[] arg1,
                                int arg2,
                                int arg3,
                                int arg4) {
-        return new ByteVector();
+        final ByteVector content = new ByteVector();
+        content.putInt(mCallSites.size());
+        for (Map.Entry<Integer, CallSite> entry : mCallSites.entrySet()) {
+            final CallSite site = entry.getValue();
+            content.putInt(entry.getKey());
+            content.putUTF8(site.getLockReference());
+            content.putUTF8(site.getMethodWithClass());
+            content.putInt(site.getLineNumber());
+            content.putUTF8(toUTF(site.getLockedField()));
+        }
+        return content;
+    }
+
+    /**
+     * @return The position of the content of the attribute in a class file,
+     *         or -1 if the class has not been instrumented.
+     */
+    static int find(byte[] classBuffer) {
+        return MonitorScanner.findClassAttribute(classBuffer, PREFIX_BYTES);
+    }
+
+    /**
+     * @param pos
+     *            The position of the content of the attribute, as returned
+     *            by find.
+     * @return Whether each call site of an instrumented class has the same
+     *         ID in this JVM as in the JVM that instrumented it.
+     */
+    static boolean hasRegisteredCallSites(byte[] classBuffer, int pos) {
+        final Map<Integer, CallSite> callSites;
+        try {
+            callSites = readCallSites(classBuffer, pos);
+        } catch (IOException e) {
+            return false;
+        }
+        for (Map.Entry<Integer, CallSite> entry : callSites.entrySet()) {
+            if (!entry.getValue().equals(
+                    CallSiteRegistry.getSite(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pos
+     *            The position of the content of the attribute, as returned
+     *            by find.
+     * @return The call sites that an instrumented class lists, by the IDs
+     *         that they had in the JVM that instrumented it.
+     */
+    static Map<Integer, CallSite> readCallSites(byte[] classBuffer, int pos)
+    throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(classBuffer, pos,
+                                     classBuffer.length - pos));
+        final Map<Integer, CallSite> callSites =
+            new LinkedHashMap<Integer, CallSite>();
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final int id = in.readInt();
+            callSites.put(id, new CallSite(in.readUTF(),
+                                           in.readUTF(),
+                                           in.readInt(),
+                                           fromUTF(in.readUTF())));
+        }
+        return callSites;
+    }
+
+    /**
+     * @return The string to write for a field of a call site that may be
+     *         null, since writeUTF does not accept null.
+     */
+    static String toUTF(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * @return The field of a call site that was written by toUTF.
+     */
+    static String fromUTF(String s) {
+        return s.length() == 0 ? null : s;
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Each instance of this class keeps track of the synthetic fields in which an
+ * instrumented class caches the lock IDs of its instances and of its Class
+ * object.
+ *
+ * Monitors that are entered as "this" cache their lock ID in an instance
+ * field, and monitors that are entered as the Class object of the class
+ * itself, which includes the monitors of synchronized static methods, cache
+ * it in a static field. The fields are private, transient and synthetic, so
+ * they do not change the serialized form of the class. They are only added
+ * to classes that need them, and never to interfaces or to classes that are
+ * instrumented to be retransformable, since retransformation can not add
+ * fields to a class.
+ */
+@NotThreadSafe
+final class LockIdFields {
+    static final String INSTANCE_FIELD_NAME = "jcarder$lockId";
+    static final String STATIC_FIELD_NAME = "jcarder$classLockId";
+    static final String FIELD_DESCRIPTOR = "J";
+    private static final int FIELD_ACCESS = Opcodes.ACC_PRIVATE
+                                            | Opcodes.ACC_TRANSIENT
+                                            | Opcodes.ACC_VOLATILE
+                                            | Opcodes.ACC_SYNTHETIC;
+    private final String mInternalClassName;
+    private final boolean mEnabled;
+    private boolean mInstanceFieldUsed = false;
+    private boolean mStaticFieldUsed = false;
+
+    /**
+     * @param internalClassName
+     *            The JVM internal name of the instrumented class.
+     * @param canAddFields
+     *            Whether fields may be added to the instrumented class.
+     */
+    LockIdFields(String internalClassName, boolean canAddFields) {
+        mInternalClassName = internalClassName;
+        mEnabled = canAddFields;
+    }
+
+    String getInternalClassName() {
+        return mInternalClassName;
+    }
+
+    /**
+     * Check whether a monitor that is entered with a lock reference as
+     * described by a CallSite can cache its lock ID in the instance field,
+     * and if so, make sure that the field is added.
+     */
+    boolean useInstanceField(String lockReference) {
+        if (mEnabled && lockReference.equals("this")) {
+            mInstanceFieldUsed = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a monitor that is entered with a lock reference as
+     * described by a CallSite can cache its lock ID in the static field, and
+     * if so, make sure that the field is added.
+     */
+    boolean useStaticField(String lockReference) {
+        if (mEnabled && lockReference.equals("class")) {
+            mStaticFieldUsed = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the fields that have been used. This must be called after all
+     * methods of the class have been visited.
+     */
+    void visitFields(ClassVisitor visitor) {
+        if (mInstanceFieldUsed) {
+            visitField(visitor, FIELD_ACCESS, INSTANCE_FIELD_NAME);
+        }
+        if (mStaticFieldUsed) {
+            visitField(visitor,
+                       FIELD_ACCESS | Opcodes.ACC_STATIC,
+                       STATIC_FIELD_NAME);
+        }
+    }
+
+    private static void visitField(ClassVisitor visitor,
+                                   int access,
+                                   String name) {
+        final FieldVisitor fv =
+            visitor.visitField(access, name, FIELD_DESCRIPTOR, null, null);
+        if (fv != null) {
+            fv.visitEnd();
+        }
+    }
+}
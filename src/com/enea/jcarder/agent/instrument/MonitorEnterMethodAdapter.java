@@ -16,44 +16,318 @@
 
 package com.enea.jcarder.agent.instrument;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import net.jcip.annotations.NotThreadSafe;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
+import com.enea.jcarder.agent.CallSite;
 import com.enea.jcarder.agent.StaticEventListener;
 
 import static com.enea.jcarder.agent.instrument.InstrumentationUtilities.getInternalName;
 
+/**
+ * This class instruments the monitor enters and exits of a method, and its
+ * calls to the methods of java.util.concurrent locks, which are replaced by
+ * calls to the corresponding lock methods of StaticEventListener. Calls to
+ * methods that return views of a lock, such as ReadWriteLock.readLock(), are
+ * followed by a call that registers the view.
+ *
+ * The stamp based methods of StampedLock are not instrumented, since a stamp
+ * may be released by another thread than the one that acquired it, but the
+ * Lock views of a StampedLock are.
+ */
 @NotThreadSafe
 class MonitorEnterMethodAdapter extends MethodAdapter {
     private static final String CALLBACK_CLASS_NAME =
         getInternalName(StaticEventListener.class);
+    private static final String ENABLED_FIELD_NAME = "smEnabled";
+    private static final String LOCK_DESCRIPTOR =
+        "Ljava/util/concurrent/locks/Lock;";
+    private static final Set<String> LOCK_CLASS_NAMES =
+        new HashSet<String>(Arrays.asList(
+            "java/util/concurrent/locks/Lock",
+            "java/util/concurrent/locks/ReentrantLock",
+            "java/util/concurrent/locks/ReentrantReadWriteLock$ReadLock",
+            "java/util/concurrent/locks/ReentrantReadWriteLock$WriteLock"));
+    private static final Set<String> LOCK_VIEW_OWNER_CLASS_NAMES =
+        new HashSet<String>(Arrays.asList(
+            "java/util/concurrent/locks/ReadWriteLock",
+            "java/util/concurrent/locks/ReentrantReadWriteLock",
+            "java/util/concurrent/locks/StampedLock"));
+    private static final String UNKNOWN_LOCK_REFERENCE = "???";
+    /*
+     * The stack that the added instructions need on top of the monitor
+     * object that they are given.
+     */
+    private static final int MONITOR_ENTER_EXTRA_STACK = 2;
+    private static final int CACHING_INSTANCE_EXTRA_STACK = 5;
+    private static final int CACHING_STATIC_EXTRA_STACK = 4;
+    private static final int MONITOR_EXIT_EXTRA_STACK = 1;
+    private static final int LOCK_ACQUIRE_EXTRA_STACK = 1;
+    private static final int LOCK_VIEW_EXTRA_STACK = 2;
     private final String mClassAndMethodName;
     private final String mClassName;
+    private final LockIdFields mLockIdFields;
+    private final InstrumentedAttribute mInstrumentedAttribute;
     private StackAnalyzeMethodVisitor mStack;
+    private int mLineNumber = CallSite.UNKNOWN_LINE;
+    private int mExtraStack = 0;
 
     MonitorEnterMethodAdapter(final MethodVisitor visitor,
                           final String className,
-                          final String methodName) {
+                          final String methodName,
+                          final LockIdFields lockIdFields,
+                          final InstrumentedAttribute instrumentedAttribute) {
         super(visitor);
         mClassAndMethodName = className + "." + methodName + "()";
         mClassName = className;
+        mLockIdFields = lockIdFields;
+        mInstrumentedAttribute = instrumentedAttribute;
+    }
+
+    public void visitLineNumber(int line, Label start) {
+        mLineNumber = line;
+        super.visitLineNumber(line, start);
     }
 
     public void visitInsn(int inst) {
         if (inst == Opcodes.MONITORENTER) {
+            /*
+             * The call site is registered here, once, so that the
+             * instrumented code only has to pass a constant ID to the
+             * callback.
+             */
+            final String lockReference =
+                convertFromJvmInternalNames(mStack.peek());
+            final CallSite site = new CallSite(lockReference,
+                                               mClassAndMethodName,
+                                               mLineNumber,
+                                               getLockedField());
+            final int callSiteId =
+                mInstrumentedAttribute.registerCallSite(site);
+            final Label disabled = new Label();
+            visitEnabledCheck(disabled);
+            mv.visitInsn(Opcodes.DUP);
+            if (mLockIdFields.useInstanceField(lockReference)) {
+                visitCachingInstanceMonitorEnter(callSiteId);
+                addExtraStack(CACHING_INSTANCE_EXTRA_STACK);
+            } else if (mLockIdFields.useStaticField(lockReference)) {
+                visitCachingStaticMonitorEnter(callSiteId);
+                addExtraStack(CACHING_STATIC_EXTRA_STACK);
+            } else {
+                addExtraStack(MONITOR_ENTER_EXTRA_STACK);
+                InstrumentationUtilities.pushInt(mv, callSiteId);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                                   CALLBACK_CLASS_NAME,
+                                   "beforeMonitorEnter",
+                                   "(Ljava/lang/Object;I)V");
+            }
+            mv.visitLabel(disabled);
+        } else if (inst == Opcodes.MONITOREXIT) {
+            /*
+             * This also covers the monitor exits that
+             * SimulateMethodSyncMethodAdapter adds for synchronized methods,
+             * including the exit in the exception handler, since they are
+             * passed through this adapter too.
+             */
+            final Label disabled = new Label();
+            addExtraStack(MONITOR_EXIT_EXTRA_STACK);
+            visitEnabledCheck(disabled);
             mv.visitInsn(Opcodes.DUP);
-            mv.visitLdcInsn(convertFromJvmInternalNames(mStack.peek()));
-            mv.visitLdcInsn(mClassAndMethodName);
             mv.visitMethodInsn(Opcodes.INVOKESTATIC,
                                CALLBACK_CLASS_NAME,
-                               "beforeMonitorEnter",
-                   "(Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;)V");
+                               "beforeMonitorExit",
+                               "(Ljava/lang/Object;)V");
+            mv.visitLabel(disabled);
         }
         super.visitInsn(inst);
     }
 
+    public void visitMethodInsn(int opCode,
+                                String owner,
+                                String name,
+                                String desc) {
+        final boolean isVirtual = opCode == Opcodes.INVOKEINTERFACE
+                                  || opCode == Opcodes.INVOKEVIRTUAL;
+        if (isVirtual && LOCK_CLASS_NAMES.contains(owner)) {
+            if (isLockAcquire(name, desc)) {
+                visitLockAcquire(name, desc);
+                return;
+            } else if (name.equals("unlock") && desc.equals("()V")) {
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                                   CALLBACK_CLASS_NAME,
+                                   "unlock",
+                                   "(" + LOCK_DESCRIPTOR + ")V");
+                return;
+            }
+        } else if (isVirtual
+                   && LOCK_VIEW_OWNER_CLASS_NAMES.contains(owner)
+                   && isLockView(name, desc)) {
+            visitLockView(opCode, owner, name, desc);
+            return;
+        }
+        super.visitMethodInsn(opCode, owner, name, desc);
+    }
+
+    private static boolean isLockAcquire(String name, String desc) {
+        return (name.equals("lock") && desc.equals("()V"))
+               || (name.equals("lockInterruptibly") && desc.equals("()V"))
+               || (name.equals("tryLock") && desc.equals("()Z"))
+               || (name.equals("tryLock")
+                   && desc.equals("(JLjava/util/concurrent/TimeUnit;)Z"));
+    }
+
+    private static boolean isLockView(String name, String desc) {
+        return desc.startsWith("()L")
+               && (name.equals("readLock")
+                   || name.equals("writeLock")
+                   || name.equals("asReadLock")
+                   || name.equals("asWriteLock")
+                   || name.equals("asReadWriteLock"));
+    }
+
+    /**
+     * Replace a call to a lock acquiring method with a call to the
+     * corresponding method of StaticEventListener, which takes the lock and
+     * the arguments of the method, followed by the call site ID.
+     *
+     * The origin of the lock is only known if it is on top of the stack,
+     * that is, if the method has no arguments.
+     */
+    private void visitLockAcquire(String name, String desc) {
+        final String lockReference;
+        final String lockedField;
+        if (desc.startsWith("()")) {
+            lockReference = convertFromJvmInternalNames(mStack.peek());
+            lockedField = getLockedField();
+        } else {
+            lockReference = UNKNOWN_LOCK_REFERENCE;
+            lockedField = null;
+        }
+        final CallSite site = new CallSite(lockReference,
+                                           mClassAndMethodName,
+                                           mLineNumber,
+                                           lockedField);
+        final int callSiteId = mInstrumentedAttribute.registerCallSite(site);
+        addExtraStack(LOCK_ACQUIRE_EXTRA_STACK);
+        InstrumentationUtilities.pushInt(mv, callSiteId);
+        final String callbackDesc =
+            "(" + LOCK_DESCRIPTOR + desc.substring(1, desc.indexOf(')'))
+            + "I" + desc.substring(desc.indexOf(')'));
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                           CALLBACK_CLASS_NAME,
+                           name,
+                           callbackDesc);
+    }
+
+    /**
+     * Invoke a method that returns a view of a lock and register the view.
+     * The views returned by readLock() and asReadLock() acquire the lock in
+     * shared mode.
+     *
+     * Stack before: owner
+     * Stack after:  view
+     */
+    private void visitLockView(int opCode,
+                               String owner,
+                               String name,
+                               String desc) {
+        final boolean shared =
+            name.equals("readLock") || name.equals("asReadLock");
+        addExtraStack(LOCK_VIEW_EXTRA_STACK);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(opCode, owner, name, desc);
+        mv.visitInsn(shared ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                           CALLBACK_CLASS_NAME,
+                           "lockView",
+                           "(Ljava/lang/Object;Ljava/lang/Object;Z)"
+                           + "Ljava/lang/Object;");
+        mv.visitTypeInsn(Opcodes.CHECKCAST,
+                         Type.getReturnType(desc).getInternalName());
+    }
+
+    public void visitMaxs(int maxStack, int maxLocals) {
+        super.visitMaxs(maxStack + mExtraStack, maxLocals);
+    }
+
+    private void addExtraStack(int extraStack) {
+        mExtraStack = Math.max(mExtraStack, extraStack);
+    }
+
+    /**
+     * Invoke the callback for a monitor that is "this", with the lock ID that
+     * is cached in the instance field of the monitor, and store the lock ID
+     * that the callback returns in the field. The monitor is cast to the
+     * class that declares the field, which it always is an instance of.
+     *
+     * Stack before: monitor
+     * Stack after:  (empty)
+     */
+    private void visitCachingInstanceMonitorEnter(int callSiteId) {
+        final String owner = mLockIdFields.getInternalClassName();
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.GETFIELD,
+                          owner,
+                          LockIdFields.INSTANCE_FIELD_NAME,
+                          LockIdFields.FIELD_DESCRIPTOR);
+        InstrumentationUtilities.pushInt(mv, callSiteId);
+        visitCachingCallback();
+        mv.visitFieldInsn(Opcodes.PUTFIELD,
+                          owner,
+                          LockIdFields.INSTANCE_FIELD_NAME,
+                          LockIdFields.FIELD_DESCRIPTOR);
+    }
+
+    /**
+     * Invoke the callback for a monitor that is the Class object of the
+     * instrumented class, with the lock ID that is cached in the static
+     * field, and store the lock ID that the callback returns in the field.
+     *
+     * Stack before: monitor
+     * Stack after:  (empty)
+     */
+    private void visitCachingStaticMonitorEnter(int callSiteId) {
+        final String owner = mLockIdFields.getInternalClassName();
+        mv.visitFieldInsn(Opcodes.GETSTATIC,
+                          owner,
+                          LockIdFields.STATIC_FIELD_NAME,
+                          LockIdFields.FIELD_DESCRIPTOR);
+        InstrumentationUtilities.pushInt(mv, callSiteId);
+        visitCachingCallback();
+        mv.visitFieldInsn(Opcodes.PUTSTATIC,
+                          owner,
+                          LockIdFields.STATIC_FIELD_NAME,
+                          LockIdFields.FIELD_DESCRIPTOR);
+    }
+
+    private void visitCachingCallback() {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                           CALLBACK_CLASS_NAME,
+                           "beforeMonitorEnter",
+                           "(Ljava/lang/Object;JI)J");
+    }
+
+    /**
+     * Jump to a label, past the callback, if the agent is not enabled.
+     */
+    private void visitEnabledCheck(Label disabled) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC,
+                          CALLBACK_CLASS_NAME,
+                          ENABLED_FIELD_NAME,
+                          "Z");
+        mv.visitJumpInsn(Opcodes.IFEQ, disabled);
+    }
+
     private String convertFromJvmInternalNames(String s) {
         if (s == null) {
             assert false;
@@ -68,6 +342,15 @@ class MonitorEnterMethodAdapter extends MethodAdapter {
         }
     }
 
+    /**
+     * @return The field that the lock object on top of the stack was read
+     *         from, or null if it was not read from a field.
+     */
+    private String getLockedField() {
+        final String field = mStack.peekField();
+        return field == null ? null : field.replace('/', '.');
+    }
+
     void setStackAnalyzer(StackAnalyzeMethodVisitor stack) {
         mStack = stack;
     }
@@ -0,0 +1,266 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * This class is responsible for finding out, without parsing a class with
+ * ASM, whether it has anything to instrument and whether it has already been
+ * instrumented.
+ *
+ * A class has something to instrument if it has a synchronized method that is
+ * not native, if the code of any of its methods may contain a MONITORENTER
+ * instruction or if its constant pool refers to a java.util.concurrent lock
+ * class, whose methods it may call. The code is searched for the opcode byte
+ * without decoding the instructions, so an operand with the same value makes
+ * the class look as if it has a monitor. Such false positives are harmless,
+ * since the class is then just instrumented as usual, and so are class files
+ * that cannot be scanned.
+ */
+@ThreadSafe
+final class MonitorScanner {
+    private static final int ACC_SYNCHRONIZED = 0x0020;
+    private static final int ACC_NATIVE = 0x0100;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final byte MONITORENTER = (byte) 0xC2;
+    private static final byte[] CODE_ATTRIBUTE_NAME = {'C', 'o', 'd', 'e'};
+    private static final byte[] LOCK_PACKAGE_PREFIX =
+        "java/util/concurrent/locks/".getBytes();
+
+    private MonitorScanner() { }
+
+    /**
+     * @return false if the class certainly has nothing to instrument.
+     */
+    static boolean mayHaveMonitors(byte[] classBuffer) {
+        try {
+            return scan(classBuffer);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private static boolean scan(byte[] b) {
+        int pos = 8; // Skip magic and version.
+        final int constantPoolCount = readU2(b, pos);
+        pos += 2;
+        int codeNameIndex = -1;
+        for (int i = 1; i < constantPoolCount; i++) {
+            if (b[pos] == CONSTANT_UTF8) {
+                final int utf8Length = readU2(b, pos + 1);
+                if (isCodeAttributeName(b, pos + 3, utf8Length)) {
+                    codeNameIndex = i;
+                } else if (startsWith(b, pos + 3, utf8Length,
+                                      LOCK_PACKAGE_PREFIX)) {
+                    return true;
+                }
+            }
+            final int length = getConstantLength(b, pos);
+            if (length < 0) {
+                return true; // Unknown constant; let ASM handle it.
+            }
+            if (takesTwoEntries(b[pos])) {
+                i++;
+            }
+            pos += length;
+        }
+        pos = skipFields(b, skipClassInfo(b, pos));
+        final int methodCount = readU2(b, pos);
+        pos += 2;
+        for (int i = 0; i < methodCount; i++) {
+            final int access = readU2(b, pos);
+            if ((access & ACC_SYNCHRONIZED) != 0
+                && (access & ACC_NATIVE) == 0) {
+                return true;
+            }
+            pos += 6;
+            final int attributeCount = readU2(b, pos);
+            pos += 2;
+            for (int j = 0; j < attributeCount; j++) {
+                final int nameIndex = readU2(b, pos);
+                final int length = readU4(b, pos + 2);
+                if (nameIndex == codeNameIndex) {
+                    // Skip max_stack and max_locals.
+                    final int codeLength = readU4(b, pos + 10);
+                    final int codeStart = pos + 14;
+                    for (int k = 0; k < codeLength; k++) {
+                        if (b[codeStart + k] == MONITORENTER) {
+                            return true;
+                        }
+                    }
+                }
+                pos += 6 + length;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find a class attribute, that is, an attribute of the class itself
+     * rather than of one of its fields or methods.
+     *
+     * @return The position of the content of the first class attribute with
+     *         a name that starts with a prefix, or -1 if the class has no
+     *         such attribute or can't be scanned.
+     */
+    static int findClassAttribute(byte[] classBuffer, byte[] namePrefix) {
+        try {
+            return findAttribute(classBuffer, namePrefix);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static int findAttribute(byte[] b, byte[] namePrefix) {
+        int pos = 8; // Skip magic and version.
+        final int constantPoolCount = readU2(b, pos);
+        pos += 2;
+        final boolean[] isMatchingName = new boolean[constantPoolCount];
+        boolean hasMatchingName = false;
+        for (int i = 1; i < constantPoolCount; i++) {
+            if (b[pos] == CONSTANT_UTF8
+                && startsWith(b, pos + 3, readU2(b, pos + 1), namePrefix)) {
+                isMatchingName[i] = true;
+                hasMatchingName = true;
+            }
+            final int length = getConstantLength(b, pos);
+            if (length < 0) {
+                return -1;
+            }
+            if (takesTwoEntries(b[pos])) {
+                i++;
+            }
+            pos += length;
+        }
+        if (!hasMatchingName) {
+            return -1;
+        }
+        pos = skipFields(b, skipClassInfo(b, pos));
+        final int methodCount = readU2(b, pos);
+        pos += 2;
+        for (int i = 0; i < methodCount; i++) {
+            pos = skipAttributes(b, pos + 6);
+        }
+        final int attributeCount = readU2(b, pos);
+        pos += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            if (isMatchingName[readU2(b, pos)]) {
+                return pos + 6;
+            }
+            pos += 6 + readU4(b, pos + 2);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of bytes of the constant at a position in the
+     *         constant pool, or -1 if the constant is unknown.
+     */
+    private static int getConstantLength(byte[] b, int pos) {
+        switch (b[pos]) {
+        case CONSTANT_UTF8:
+            return 3 + readU2(b, pos + 1);
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+            return 5;
+        case 5: // Long
+        case 6: // Double
+            return 9;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+            return 3;
+        case 15: // MethodHandle
+            return 4;
+        default:
+            return -1;
+        }
+    }
+
+    private static boolean takesTwoEntries(int tag) {
+        return tag == 5 || tag == 6; // Long or Double.
+    }
+
+    /**
+     * Skip the access flags, this class, the super class and the
+     * interfaces.
+     */
+    private static int skipClassInfo(byte[] b, int pos) {
+        pos += 6;
+        return pos + 2 + 2 * readU2(b, pos);
+    }
+
+    private static int skipFields(byte[] b, int pos) {
+        final int fieldCount = readU2(b, pos);
+        pos += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            pos = skipAttributes(b, pos + 6);
+        }
+        return pos;
+    }
+
+    private static int skipAttributes(byte[] b, int pos) {
+        final int attributeCount = readU2(b, pos);
+        pos += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            pos += 6 + readU4(b, pos + 2);
+        }
+        return pos;
+    }
+
+    private static boolean isCodeAttributeName(byte[] b,
+                                               int pos,
+                                               int length) {
+        return length == CODE_ATTRIBUTE_NAME.length
+               && startsWith(b, pos, length, CODE_ATTRIBUTE_NAME);
+    }
+
+    private static boolean startsWith(byte[] b,
+                                      int pos,
+                                      int length,
+                                      byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readU2(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static int readU4(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24)
+               | ((b[pos + 1] & 0xFF) << 16)
+               | ((b[pos + 2] & 0xFF) << 8)
+               | (b[pos + 3] & 0xFF);
+    }
+}
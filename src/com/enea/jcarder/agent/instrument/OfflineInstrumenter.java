@@ -0,0 +1,473 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.util.InvalidOptionException;
+import com.enea.jcarder.util.OptionParser;
+import com.enea.jcarder.util.logging.AppendableHandler;
+import com.enea.jcarder.util.logging.Handler;
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * This is a command-line tool that instruments the classes in jar files and
+ * class directories ahead of time, in parallel, and writes instrumented
+ * copies of them. The JCarder agent recognizes the instrumented classes by
+ * their InstrumentedAttribute and loads them as they are.
+ *
+ * The instrumented classes refer to their call sites by IDs, so the tool
+ * writes its call sites to the call site table of an instrumentation cache
+ * directory. The agent must be started with that directory as its
+ * jcarder.cachedir, so that it gives the call sites the same IDs. Instrumenting
+ * more classes with the same cache directory later extends the table.
+ */
+@ThreadSafe
+public final class OfflineInstrumenter {
+    private static final String DEFAULT_OUTPUT_DIRNAME = "jcarder_instrumented";
+    private static final String DEFAULT_CACHE_DIRNAME = "jcarder_cache";
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+    private static final String[] SIGNATURE_SUFFIXES = {
+        ".SF", ".RSA", ".DSA", ".EC"
+    };
+    private final Logger mLogger;
+    private final InstrumentConfig mConfig;
+    private final File mCacheDirectory;
+    private final InstrumentCache mCache;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mClasses = new AtomicInteger();
+    private final AtomicInteger mInstrumentedClasses = new AtomicInteger();
+    private final AtomicInteger mFailedClasses = new AtomicInteger();
+
+    /**
+     * @param cacheDirectory
+     *            The instrumentation cache directory whose call site table
+     *            the call sites are registered in.
+     * @param threads
+     *            The number of classes to instrument in parallel.
+     */
+    OfflineInstrumenter(Logger logger,
+                        InstrumentConfig config,
+                        File cacheDirectory,
+                        int threads) throws IOException {
+        mLogger = logger;
+        mConfig = config;
+        mCacheDirectory = cacheDirectory;
+        mCache = new InstrumentCache(logger,
+                                     cacheDirectory,
+                                     config.getInstrumentFilter()
+                                     .getDescription());
+        mExecutor = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args) {
+        final OptionParser op = new OptionParser();
+        configureOptionParser(op);
+        try {
+            op.parse(args);
+        } catch (InvalidOptionException e) {
+            handleBadOption(op, e.getMessage());
+        }
+        File outputDirectory = new File(DEFAULT_OUTPUT_DIRNAME);
+        File cacheDirectory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        final InstrumentConfig config = new InstrumentConfig();
+        final Map<String, String> options = op.getOptions();
+        for (String option : options.keySet()) {
+            final String value = options.get(option);
+            if (option.equals("-help")) {
+                printHelpText(System.out, op);
+                System.exit(0);
+            } else if (option.equals("-d")) {
+                outputDirectory = new File(value);
+            } else if (option.equals("-cachedir")) {
+                cacheDirectory = new File(value);
+            } else if (option.equals("-rules")) {
+                try {
+                    config.setInstrumentFilter(new InstrumentFilter(value));
+                } catch (IllegalArgumentException e) {
+                    handleBadOption(op, "bad instrumentation rules: "
+                                        + e.getMessage());
+                }
+            } else if (option.equals("-threads")) {
+                threads = -1;
+                try {
+                    threads = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // Reported below.
+                }
+                if (threads <= 0) {
+                    handleBadOption(op, "bad number of threads: " + value);
+                }
+            }
+        }
+        if (op.getArguments().isEmpty()) {
+            handleBadOption(op, "no jar files or directories to instrument");
+        }
+        if (cacheDirectory == null) {
+            cacheDirectory = new File(outputDirectory, DEFAULT_CACHE_DIRNAME);
+        }
+        System.exit(run(config,
+                        op.getArguments(),
+                        outputDirectory,
+                        cacheDirectory,
+                        threads) ? 0 : 1);
+    }
+
+    private static boolean run(InstrumentConfig config,
+                               List<String> inputs,
+                               File outputDirectory,
+                               File cacheDirectory,
+                               int threads) {
+        final Collection<Handler> handlers = new ArrayList<Handler>();
+        handlers.add(new AppendableHandler(System.out,
+                                           Logger.Level.CONFIG,
+                                           "{message}\n"));
+        final Logger logger = new Logger(handlers, Logger.Level.INFO);
+        try {
+            if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+                throw new IOException("Failed to create directory "
+                                      + outputDirectory);
+            }
+            final OfflineInstrumenter instrumenter =
+                new OfflineInstrumenter(logger,
+                                        config,
+                                        cacheDirectory,
+                                        threads);
+            try {
+                for (String input : inputs) {
+                    final File file = new File(input);
+                    instrumenter.instrument(
+                        file, new File(outputDirectory, file.getName()));
+                }
+            } finally {
+                instrumenter.close();
+            }
+            logger.info("Instrumented " + instrumenter.getInstrumentedClasses()
+                        + " of " + instrumenter.getClasses() + " classes into "
+                        + outputDirectory);
+            logger.info("Start the agent with -Djcarder.cachedir="
+                        + cacheDirectory.getCanonicalPath());
+            return instrumenter.getFailedClasses() == 0;
+        } catch (IOException e) {
+            logger.severe(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            logger.severe("Interrupted");
+            return false;
+        }
+    }
+
+    private static void configureOptionParser(OptionParser op) {
+        op.addOption("-help",
+                     "Print this help text");
+        op.addOption("-d <directory>",
+                     "Write the instrumented jar files and directories to"
+                     + " <directory> (default: " + DEFAULT_OUTPUT_DIRNAME
+                     + ")");
+        op.addOption("-cachedir <directory>",
+                     "Register the call sites in the instrumentation cache"
+                     + " <directory>, which the agent shall then use as"
+                     + " jcarder.cachedir (default: " + DEFAULT_CACHE_DIRNAME
+                     + " in the output directory)");
+        op.addOption("-rules <rules>",
+                     "Rules for which classes and methods to instrument, as"
+                     + " for the agent");
+        op.addOption("-threads <n>",
+                     "Instrument <n> classes in parallel (default: the number"
+                     + " of processors)");
+    }
+
+    private static void printHelpText(PrintStream stream, OptionParser op) {
+        stream.print("Usage: java -cp jcarder.jar "
+                     + OfflineInstrumenter.class.getName()
+                     + " [options] <jar or directory>...\n\n");
+        stream.print("Options:\n");
+        stream.print(op.getOptionHelp());
+    }
+
+    private static void handleBadOption(OptionParser optionParser,
+                                        String message) {
+        System.err.println("JCarder: " + message);
+        printHelpText(System.err, optionParser);
+        System.exit(1);
+    }
+
+    /**
+     * Instrument the classes in a jar file or a directory and write a copy
+     * of it, with the instrumented classes, to output. Other files are copied
+     * as they are, except jar signatures, which would no longer be valid.
+     */
+    void instrument(File input, File output)
+    throws IOException, InterruptedException {
+        if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("Won't overwrite " + input);
+        }
+        mLogger.info("Instrumenting " + input);
+        if (input.isDirectory()) {
+            final List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+            submitDirectory(input, output, "", tasks);
+            for (Future<Object> task : tasks) {
+                getResult(task);
+            }
+        } else if (input.isFile()) {
+            instrumentJar(input, output);
+        } else {
+            throw new IOException("No such file or directory: " + input);
+        }
+    }
+
+    /**
+     * Write the call sites that have been registered to the call site table
+     * and stop the threads.
+     */
+    void close() throws IOException {
+        mExecutor.shutdown();
+        if (mCache.syncSiteTable() < 0) {
+            throw new IOException("The call site table of " + mCacheDirectory
+                                  + " has been changed by another JVM");
+        }
+    }
+
+    int getClasses() {
+        return mClasses.get();
+    }
+
+    int getInstrumentedClasses() {
+        return mInstrumentedClasses.get();
+    }
+
+    int getFailedClasses() {
+        return mFailedClasses.get();
+    }
+
+    private void submitDirectory(final File directory,
+                                 final File output,
+                                 final String path,
+                                 final List<Future<Object>> tasks)
+    throws IOException {
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Failed to create directory " + output);
+        }
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list directory " + directory);
+        }
+        for (final File file : files) {
+            final File outputFile = new File(output, file.getName());
+            final String filePath = path + file.getName();
+            if (file.isDirectory()) {
+                submitDirectory(file, outputFile, filePath + "/", tasks);
+            } else {
+                tasks.add(mExecutor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        final InputStream in = new FileInputStream(file);
+                        final byte[] content =
+                            instrument(filePath, readFully(in));
+                        final OutputStream out =
+                            new FileOutputStream(outputFile);
+                        try {
+                            out.write(content);
+                        } finally {
+                            out.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * The entries are instrumented in parallel and written in their
+     * original order.
+     */
+    private void instrumentJar(File input, File output)
+    throws IOException, InterruptedException {
+        final ZipFile jar = new ZipFile(input);
+        try {
+            final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            final List<Future<byte[]>> contents =
+                new ArrayList<Future<byte[]>>();
+            final Enumeration<? extends ZipEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                final ZipEntry entry = e.nextElement();
+                if (isSignatureFile(entry.getName())) {
+                    mLogger.warning("Removing signature " + entry.getName()
+                                    + " of " + input);
+                    continue;
+                }
+                entries.add(entry);
+                contents.add(mExecutor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        if (entry.isDirectory()) {
+                            return null;
+                        }
+                        return instrument(
+                            entry.getName(),
+                            readFully(jar.getInputStream(entry)));
+                    }
+                }));
+            }
+            final ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(output)));
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    final ZipEntry outputEntry =
+                        new ZipEntry(entries.get(i).getName());
+                    outputEntry.setTime(entries.get(i).getTime());
+                    out.putNextEntry(outputEntry);
+                    final byte[] content = getResult(contents.get(i));
+                    if (content != null) {
+                        out.write(content);
+                    }
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * @param path
+     *            The path of the file in the jar file or directory, with "/"
+     *            as separator.
+     * @return The content of the instrumented file, which is the original
+     *         content unless it is a class that has been instrumented.
+     */
+    private byte[] instrument(String path, byte[] content) {
+        if (!path.endsWith(CLASS_SUFFIX)) {
+            return content;
+        }
+        mClasses.incrementAndGet();
+        final String className = getClassName(path);
+        final String reason =
+            ClassTransformer.getExclusionReason(mConfig.getInstrumentFilter(),
+                                                className);
+        if (reason != null) {
+            mLogger.finest(
+                "Won't instrument class " + className + ": " + reason);
+            return content;
+        }
+        if (InstrumentedAttribute.find(content) >= 0) {
+            mLogger.fine("Class " + className + " is already instrumented");
+            return content;
+        }
+        if (!MonitorScanner.mayHaveMonitors(content)) {
+            return content;
+        }
+        try {
+            final byte[] instrumentedContent =
+                ClassTransformer.instrument(mLogger,
+                                            mConfig,
+                                            content,
+                                            className);
+            mInstrumentedClasses.incrementAndGet();
+            return instrumentedContent;
+        } catch (Throwable t) {
+            mFailedClasses.incrementAndGet();
+            mLogger.severe("Failed to instrument the class " + className
+                           + ": " + t);
+            return content;
+        }
+    }
+
+    /**
+     * Classes for other Java versions in a multi-release jar file are
+     * stored under META-INF/versions/VERSION/.
+     */
+    private static String getClassName(String path) {
+        String name = path.substring(0, path.length() - CLASS_SUFFIX.length());
+        if (name.startsWith(VERSIONS_PREFIX)) {
+            final int end = name.indexOf('/', VERSIONS_PREFIX.length());
+            name = name.substring(end + 1);
+        }
+        return name.replace('/', '.');
+    }
+
+    private static boolean isSignatureFile(String name) {
+        final String upperCaseName = name.toUpperCase();
+        if (!upperCaseName.startsWith("META-INF/")
+            || upperCaseName.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        for (String suffix : SIGNATURE_SUFFIXES) {
+            if (upperCaseName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static <T> T getResult(Future<T> task)
+    throws IOException, InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw (Error) cause;
+            }
+        }
+    }
+}
@@ -28,6 +28,11 @@ import org.objectweb.asm.Opcodes;
  */
 @NotThreadSafe
 class SimulateMethodSyncMethodAdapter extends MethodAdapter {
+    /*
+     * The monitor object is pushed on top of the return value, if any, and
+     * on top of the exception in the added exception handler.
+     */
+    private static final int EXTRA_STACK = 1;
     private final String mClassName;
     private final boolean mIsStatic;
     private final Label mTryLabel = new Label();
@@ -74,7 +79,12 @@ class SimulateMethodSyncMethodAdapter extends MethodAdapter {
                               mFinallyLabel,
                               mFinallyLabel,
                               null);
-        super.visitMaxs(arg0, arg1);
+        /*
+         * The exception handler needs two stack entries, which the extra
+         * stack of the monitor exits that MonitorEnterMethodAdapter adds
+         * after this adapter also makes room for.
+         */
+        super.visitMaxs(arg0 + EXTRA_STACK, arg1);
     }
 
     public void visitInsn(int inst) {
@@ -66,16 +66,49 @@ class StackAnalyzeMethodVisitor implements MethodVisitor {
         }
     }
 
+    private static class FieldDescription {
+        private final String mOwner;
+        private final String mName;
+
+        FieldDescription(String owner, String name) {
+            mOwner = owner;
+            mName = name;
+        }
+
+        public String toString() {
+            return mOwner + "." + mName;
+        }
+    }
+
     /**
      * @return A textual description of from where the current value of the
      *         stack originates. The string "???" is returned if the origin is
      *         unknown.
      */
     String peek() {
+        return peekObject().toString();
+    }
+
+    /**
+     * @return The field, on the format "owner.name" with the JVM internal
+     *         name of the owner, that the current value of the stack was
+     *         read from by a GETFIELD or GETSTATIC instruction, or null if
+     *         it was not read from a field.
+     */
+    String peekField() {
+        final Object top = peekObject();
+        if (top instanceof FieldDescription) {
+            return top.toString();
+        } else {
+            return null;
+        }
+    }
+
+    private Object peekObject() {
         if (mStack.isEmpty()) {
-            return UNKOWN_VALUE.toString();
+            return UNKOWN_VALUE;
         } else {
-            return mStack.peek().toString();
+            return mStack.peek();
         }
     }
 
@@ -122,10 +155,10 @@ class StackAnalyzeMethodVisitor implements MethodVisitor {
         switch (opCode) {
         case Opcodes.GETFIELD:
             pop();
-            pushTextualDescription(owner + "." + name);
+            mStack.push(new FieldDescription(owner, name));
             break;
         case Opcodes.GETSTATIC:
-            pushTextualDescription(owner + "." + name);
+            mStack.push(new FieldDescription(owner, name));
             break;
         default:
             clear();
@@ -141,7 +174,7 @@ class StackAnalyzeMethodVisitor implements MethodVisitor {
         mMethodVisitor.visitInsn(opCode);
         switch (opCode) {
         case Opcodes.DUP:
-            pushTextualDescription(peek());
+            mStack.push(peekObject());
             break;
         default:
             clear();
@@ -73,13 +73,14 @@ public final class Analyzer {
     public void start(String[] args) {
         parseArguments(args);
         initLogger();
-        LockGraphBuilder graphBuilder = new LockGraphBuilder();
+        final LockGraphBuilder graphBuilder;
         final ContextReaderIfc contextReader;
 
         try {
             contextReader =
                 new ContextFileReader(mLogger, new File(mInputDirectory,
                                                         CONTEXTS_DB_FILENAME));
+            graphBuilder = new LockGraphBuilder(contextReader);
 
             EventFileReader eventReader = new EventFileReader(mLogger);
             eventReader.parseFile(new File(mInputDirectory, EVENT_DB_FILENAME),
@@ -95,6 +96,7 @@ public final class Analyzer {
         CycleDetector cycleDetector = new CycleDetector(mLogger);
         cycleDetector.analyzeLockNodes(graphBuilder.getAllLocks());
         printCycleAnalysisStatistics(cycleDetector);
+        printNestedAggregateLocks(cycleDetector, contextReader);
 
         if (mOutputMode == OutputMode.INCLUDE_ALL) {
             printDetailsIfEnabled(cycleDetector.getCycles(), contextReader);
@@ -275,6 +277,34 @@ public final class Analyzer {
         System.exit(1);
     }
 
+    /**
+     * Print the aggregate locks that a thread has nested two lock objects
+     * of, which may deadlock if another thread nests them in the opposite
+     * order.
+     */
+    private void printNestedAggregateLocks(CycleDetector cycleDetector,
+                                           ContextReaderIfc reader) {
+        final HashSet<LockEdge> edges =
+            cycleDetector.getNestedAggregateEdges();
+        if (edges.isEmpty()) {
+            return;
+        }
+        System.out.println("Lock objects nested within the same"
+                           + " aggregate lock: " + edges.size());
+        for (LockEdge edge : edges) {
+            LockingContext source =
+                reader.readContext(edge.getSourceLockingContextId());
+            LockingContext target =
+                reader.readContext(edge.getTargetLockingContextId());
+            System.out.println(
+                "   " + reader.readLock(edge.getTarget().getLockId())
+                + ": " + source.getMethodWithClass()
+                + " -> " + target.getMethodWithClass()
+                + " in " + reader.readThread(edge.getThreadId()).getName());
+        }
+        System.out.println();
+    }
+
     private void printDetailsIfEnabled(Iterable<Cycle> cycles,
                                        ContextReaderIfc reader) {
         if (!mPrintDetails) {
@@ -288,8 +318,7 @@ public final class Analyzer {
                     reader.readContext(edge.getSourceLockingContextId());
                 LockingContext target =
                     reader.readContext(edge.getTargetLockingContextId());
-                threads.add(source.getThreadName());
-                threads.add(target.getThreadName());
+                threads.add(reader.readThread(edge.getThreadId()).getName());
                 methods.add(source.getMethodWithClass());
                 methods.add(target.getMethodWithClass());
             }
@@ -68,11 +68,19 @@ class Cycle {
         }
     }
 
+    /**
+     * A cycle whose edges were all taken by the same pooled thread is not
+     * single-threaded, since the pool may have used different threads.
+     */
     boolean isSingleThreaded() {
         // TODO Cache the result to improve performance?
         final Iterator<LockEdge> iter = mEdgesInCycle.iterator();
         if (iter.hasNext()) {
-            final long firstThreadId = iter.next().getThreadId();
+            final LockEdge firstEdge = iter.next();
+            if (firstEdge.isPooledThread()) {
+                return false;
+            }
+            final int firstThreadId = firstEdge.getThreadId();
             while (iter.hasNext()) {
                 if (firstThreadId != iter.next().getThreadId()) {
                     return false;
@@ -82,6 +90,27 @@ class Cycle {
         return true;
     }
 
+    /**
+     * A cycle can not cause a deadlock if any of its locks is both held and
+     * acquired in shared mode, for example by two threads that each hold one
+     * read lock and acquire the other, since a lock that is held in shared
+     * mode does not block another thread from acquiring it in shared mode.
+     */
+    boolean isSharedAtSomeLock() {
+        for (LockEdge incoming : mEdgesInCycle) {
+            if (!incoming.isSharedTarget()) {
+                continue;
+            }
+            for (LockEdge outgoing : mEdgesInCycle) {
+                if (outgoing.getSource() == incoming.getTarget()
+                    && outgoing.isSharedSource()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     boolean alike(Cycle other, ContextReaderIfc reader) {
         if (this.equals(other)) {
             return true;
@@ -33,6 +33,10 @@ import com.enea.jcarder.util.logging.Logger;
 /**
  * This class is responsible for finding and managing cycles.
  *
+ * An edge from a lock to itself, which is recorded when a thread nests two
+ * lock objects that are part of the same aggregate lock, is not a cycle of
+ * its own. Such edges are collected apart from the cycles.
+ *
  * TODO Add possibility to ignore cycles guarded by a common lock.
  *
  * TODO Add possibility to ignore cycles created by two threads that cannot
@@ -44,6 +48,7 @@ import com.enea.jcarder.util.logging.Logger;
 @NotThreadSafe
 class CycleDetector {
     private final HashSet<Cycle> mCycles;
+    private final HashSet<LockEdge> mNestedAggregateEdges;
     private final Logger mLogger;
     private final MaxValueCounter mMaxDepth;
     private final MaxValueCounter mMaxCycleDepth;
@@ -53,6 +58,7 @@ class CycleDetector {
     CycleDetector(Logger logger) {
         mLogger = logger;
         mCycles = new HashSet<Cycle>();
+        mNestedAggregateEdges = new HashSet<LockEdge>();
         mMaxDepth = new MaxValueCounter("Graph Depth", mLogger);
         mMaxCycleDepth = new MaxValueCounter("Cycle Depth", mLogger);
         mNoOfCycles = new MaxValueCounter("Found cycles", mLogger);
@@ -76,11 +82,32 @@ class CycleDetector {
                             visitedEdges);
             }
         }
+        removeSharedCycles();
         for (Cycle cycle : mCycles) {
             cycle.updateNodeCycleStatus();
         }
     }
 
+    /**
+     * Remove cycles that can not cause a deadlock since some lock in them is
+     * both held and acquired in shared mode.
+     */
+    private void removeSharedCycles() {
+        int removedCycles = 0;
+        Iterator<Cycle> iter = mCycles.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isSharedAtSomeLock()) {
+                iter.remove();
+                removedCycles++;
+            }
+        }
+        if (removedCycles > 0) {
+            mLogger.info("Ignoring " + removedCycles
+                         + " cycle(s) with a lock that is held and acquired"
+                         + " in shared mode.");
+        }
+    }
+
     MaxValueCounter getMaxDepth() {
         return mMaxDepth;
     }
@@ -110,7 +137,9 @@ class CycleDetector {
                              final ArrayList<LockEdge> edgesOnStack,
                              final HashSet<LockNode> visitedNodes,
                              final HashSet<LockEdge> visitedEdges) {
-        if (!visitedEdges.contains(edge)) {
+        if (edge.getSource().equals(edge.getTarget())) {
+            mNestedAggregateEdges.add(edge);
+        } else if (!visitedEdges.contains(edge)) {
             mMaxDepth.set(nodesOnStack.size());
             final int index = nodesOnStack.indexOf(edge.getTarget());
             if (index >= 0) {
@@ -146,6 +175,13 @@ class CycleDetector {
         return mCycles;
     }
 
+    /**
+     * @return The edges from a lock to itself.
+     */
+    HashSet<LockEdge> getNestedAggregateEdges() {
+        return mNestedAggregateEdges;
+    }
+
     private static boolean containsAlike(Cycle cycle, Iterable<Cycle> others,
                                          ContextReaderIfc reader) {
         for (Cycle other : others) {
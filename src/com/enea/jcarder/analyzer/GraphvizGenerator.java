@@ -19,6 +19,7 @@ package com.enea.jcarder.analyzer;
 import java.util.HashSet;
 
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 import com.enea.jcarder.common.contexts.ContextReaderIfc;
 
 /**
@@ -105,8 +106,9 @@ final class GraphvizGenerator {
             reader.readContext(edge.getSourceLockingContextId());
         final LockingContext target =
             reader.readContext(edge.getTargetLockingContextId());
+        final LockingThread thread = reader.readThread(edge.getThreadId());
         return String.format(EDGE_LABEL_FORMAT,
-                             escape(handlePackage(target.getThreadName(),
+                             escape(handlePackage(thread.getName(),
                                                   includePackages)),
                              escape(handlePackage(source.getLockReference(),
                                                   includePackages)),
@@ -31,24 +31,80 @@ import com.enea.jcarder.common.contexts.ContextReaderIfc;
 class LockEdge {
     private final LockNode mSource;
     private final LockNode mTarget;
-    private final long mThreadId; // The thread that did the synchronization.
+    private final int mThreadId; // The thread that did the synchronization.
+    private final boolean mPooledThread;
+    private final boolean mSharedSource;
+    private final boolean mSharedTarget;
     private int mSourceContextId;
     private int mTargetContextId;
     private long mNumberOfDuplicates;
 
     LockEdge(LockNode source,
              LockNode target,
-             long threadId,
+             int threadId,
              int sourceLockingContextId,
              int targetLockingContextId) {
+        this(source,
+             target,
+             threadId,
+             false,
+             sourceLockingContextId,
+             targetLockingContextId);
+    }
+
+    /**
+     * @param pooledThread
+     *            Whether the thread ID describes a thread pool rather than a
+     *            single thread.
+     */
+    LockEdge(LockNode source,
+             LockNode target,
+             int threadId,
+             boolean pooledThread,
+             int sourceLockingContextId,
+             int targetLockingContextId) {
+        this(source,
+             target,
+             threadId,
+             pooledThread,
+             sourceLockingContextId,
+             targetLockingContextId,
+             false,
+             false);
+    }
+
+    /**
+     * @param sharedSource
+     *            Whether the source lock was held in shared mode.
+     * @param sharedTarget
+     *            Whether the target lock was acquired in shared mode.
+     */
+    LockEdge(LockNode source,
+             LockNode target,
+             int threadId,
+             boolean pooledThread,
+             int sourceLockingContextId,
+             int targetLockingContextId,
+             boolean sharedSource,
+             boolean sharedTarget) {
         mSource = source;
         mTarget = target;
         mThreadId = threadId;
+        mPooledThread = pooledThread;
         mSourceContextId = sourceLockingContextId;
         mTargetContextId = targetLockingContextId;
+        mSharedSource = sharedSource;
+        mSharedTarget = sharedTarget;
         mNumberOfDuplicates = 0;
     }
 
+    /**
+     * Let this edge represent a number of additional occurrences of itself.
+     */
+    void addDuplicates(long duplicates) {
+        mNumberOfDuplicates += duplicates;
+    }
+
     void merge(LockEdge other) {
         assert this.equals(other);
         mNumberOfDuplicates += (other.mNumberOfDuplicates + 1);
@@ -130,10 +186,22 @@ class LockEdge {
         }
     }
 
-    long getThreadId() {
+    int getThreadId() {
         return mThreadId;
     }
 
+    boolean isPooledThread() {
+        return mPooledThread;
+    }
+
+    boolean isSharedSource() {
+        return mSharedSource;
+    }
+
+    boolean isSharedTarget() {
+        return mSharedTarget;
+    }
+
     public String toString() {
         return "  " + mSource + "->" + mTarget;
     }
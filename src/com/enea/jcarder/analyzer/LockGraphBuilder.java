@@ -20,6 +20,7 @@ import java.util.HashMap;
 
 import net.jcip.annotations.NotThreadSafe;
 
+import com.enea.jcarder.common.contexts.ContextReaderIfc;
 import com.enea.jcarder.common.events.LockEventListenerIfc;
 
 /**
@@ -32,6 +33,27 @@ import com.enea.jcarder.common.events.LockEventListenerIfc;
 class LockGraphBuilder implements LockEventListenerIfc {
     private HashMap<Integer, LockNode> mLocks =
         new HashMap<Integer, LockNode>();
+    private final HashMap<Integer, Boolean> mPooledThreads =
+        new HashMap<Integer, Boolean>();
+    private final HashMap<Integer, Boolean> mSharedContexts =
+        new HashMap<Integer, Boolean>();
+    private final ContextReaderIfc mReader;
+
+    /**
+     * Create a LockGraphBuilder that treats all thread IDs as single threads.
+     */
+    LockGraphBuilder() {
+        this(null);
+    }
+
+    /**
+     * Create a LockGraphBuilder that looks up in a ContextReaderIfc whether
+     * the thread ID of an event describes a thread pool, and whether the
+     * locks of an event were acquired in shared mode.
+     */
+    LockGraphBuilder(ContextReaderIfc reader) {
+        mReader = reader;
+    }
 
     LockNode getLockNode(int lockId) {
         LockNode lockNode = mLocks.get(lockId);
@@ -46,19 +68,68 @@ class LockGraphBuilder implements LockEventListenerIfc {
                             int lockingContextId,
                             int lastTakenLockId,
                             int lastTakenLockingContectId,
-                            long threadId) {
-        if (lastTakenLockId >= 0) {
+                            int threadId) {
+        onDuplicateLockEvents(lockId,
+                              lockingContextId,
+                              lastTakenLockId,
+                              lastTakenLockingContectId,
+                              threadId,
+                              1);
+    }
+
+    /**
+     * The duplicates are added as an edge that represents all of them, which
+     * is merged with the edge of the lock event itself regardless of which
+     * of them comes first.
+     */
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContectId,
+                                      int threadId,
+                                      long count) {
+        if (lastTakenLockId >= 0 && count > 0) {
             final LockNode sourceLock = getLockNode(lastTakenLockId);
             final LockNode targetLock = getLockNode(lockId);
             final LockEdge edge = new LockEdge(sourceLock,
                                                targetLock,
                                                threadId,
+                                               isPooledThread(threadId),
                                                lastTakenLockingContectId,
-                                               lockingContextId);
+                                               lockingContextId,
+                                               isSharedContext(
+                                                   lastTakenLockingContectId),
+                                               isSharedContext(
+                                                   lockingContextId));
+            edge.addDuplicates(count - 1);
             sourceLock.addOutgoingEdge(edge);
         }
     }
 
+    private boolean isPooledThread(int threadId) {
+        if (mReader == null) {
+            return false;
+        }
+        Boolean pooled = mPooledThreads.get(threadId);
+        if (pooled == null) {
+            pooled = mReader.readThread(threadId).isPooled();
+            mPooledThreads.put(threadId, pooled);
+        }
+        return pooled;
+    }
+
+    private boolean isSharedContext(int contextId) {
+        if (mReader == null) {
+            return false;
+        }
+        Boolean shared = mSharedContexts.get(contextId);
+        if (shared == null) {
+            shared = mReader.readContext(contextId).isShared();
+            mSharedContexts.put(contextId, shared);
+        }
+        return shared;
+    }
+
     void clear() {
         mLocks.clear();
     }
@@ -20,14 +20,17 @@ import net.jcip.annotations.ThreadSafe;
 
 /**
  * An instance of this class represents the context for the acquiring of a lock.
+ *
+ * The thread that acquired the lock is not part of the context. It is
+ * described by a LockingThread that the lock events refer to, so that the
+ * same context can be shared by all threads.
+ *
+ * A lock that is acquired in shared mode, such as the read lock of a
+ * ReentrantReadWriteLock, may be held by several threads at the same time,
+ * so the context tells whether the acquiring was shared.
  */
 @ThreadSafe
 public final class LockingContext {
-    /**
-     * The name of the thread that acquired the lock.
-     */
-    private final String mThreadName;
-
     /**
      * A textual description of how the lock object was addressed. For example:
      * "this", "com.enea.jcarder.Foo.mBar" or "com.enea.jcarder.Foo.getLock()"
@@ -41,18 +44,18 @@ public final class LockingContext {
     private final String mMethodWithClass;
     // TODO Include row number in MethodWithClass?
 
-    public LockingContext(String threadName,
-                          String lockReference,
-                          String methodWithClass) {
-        mThreadName = threadName;
-        mLockReference = lockReference;
-        mMethodWithClass = methodWithClass;
+    private final boolean mShared;
+
+    public LockingContext(String lockReference, String methodWithClass) {
+        this(lockReference, methodWithClass, false);
     }
 
-    public LockingContext(Thread thread,
-                          String lockReference,
-                          String methodWithClass) {
-        this(thread.getName(), lockReference, methodWithClass);
+    public LockingContext(String lockReference,
+                          String methodWithClass,
+                          boolean shared) {
+        mLockReference = lockReference;
+        mMethodWithClass = methodWithClass;
+        mShared = shared;
     }
 
     public String getLockReference() {
@@ -63,13 +66,17 @@ public final class LockingContext {
         return mMethodWithClass;
     }
 
-    public String getThreadName() {
-        return mThreadName;
+    /**
+     * @return true if the lock was acquired in shared mode.
+     */
+    public boolean isShared() {
+        return mShared;
     }
 
     public boolean alike(LockingContext other) {
         return mLockReference.equals(other.mLockReference)
-               && mMethodWithClass.equals(other.mMethodWithClass);
+               && mMethodWithClass.equals(other.mMethodWithClass)
+               && mShared == other.mShared;
     }
 
     public boolean equals(Object other) {
@@ -79,23 +86,23 @@ public final class LockingContext {
             }
             // TODO Maybe use interned strings to improve performance?
             final LockingContext otherContext = (LockingContext) other;
-            return mThreadName.equals(otherContext.mThreadName)
-                   && mLockReference.equals(otherContext.mLockReference)
-                   && mMethodWithClass.equals(otherContext.mMethodWithClass);
+            return mLockReference.equals(otherContext.mLockReference)
+                   && mMethodWithClass.equals(otherContext.mMethodWithClass)
+                   && mShared == otherContext.mShared;
         } catch (ClassCastException e) {
             return false;
         }
     }
 
     public int hashCode() {
-        return mThreadName.hashCode()
-               + mMethodWithClass.hashCode()
-               + mLockReference.hashCode();
+        return mMethodWithClass.hashCode()
+               + mLockReference.hashCode()
+               + (mShared ? 1 : 0);
     }
 
     public String toString() {
-        return "Thread: " + mThreadName
-               + " LockRef: " + mLockReference
-               + " Method:  " + mMethodWithClass;
+        return "LockRef: " + mLockReference
+               + " Method:  " + mMethodWithClass
+               + (mShared ? " Shared" : "");
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.common;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An instance of this class describes a thread that has acquired locks. It is
+ * written to the context database once per thread, and lock events refer to
+ * it by its ID.
+ *
+ * A pooled LockingThread describes all the threads of a thread pool. Lock
+ * events with the same pooled thread may have been performed by different
+ * threads.
+ */
+@ThreadSafe
+public final class LockingThread {
+    /**
+     * The Java thread ID of a pooled LockingThread.
+     */
+    public static final long NO_JAVA_THREAD_ID = -1;
+
+    /**
+     * The name of the thread when it was first described, or the name of the
+     * pool.
+     */
+    private final String mName;
+
+    /**
+     * The name of the thread group of the thread, or an empty string if the
+     * thread had no group.
+     */
+    private final String mGroupName;
+
+    /**
+     * The ID returned by Thread.getId().
+     */
+    private final long mJavaThreadId;
+
+    private final boolean mPooled;
+
+    public LockingThread(String name,
+                         String groupName,
+                         long javaThreadId,
+                         boolean pooled) {
+        mName = name;
+        mGroupName = groupName;
+        mJavaThreadId = javaThreadId;
+        mPooled = pooled;
+    }
+
+    public LockingThread(Thread thread) {
+        this(thread.getName(),
+             getGroupName(thread),
+             thread.getId(),
+             false);
+    }
+
+    /**
+     * Create a pooled LockingThread for the pool that a thread belongs to.
+     */
+    public static LockingThread createPooled(String poolName, Thread thread) {
+        return new LockingThread(poolName,
+                                 getGroupName(thread),
+                                 NO_JAVA_THREAD_ID,
+                                 true);
+    }
+
+    private static String getGroupName(Thread thread) {
+        final ThreadGroup group = thread.getThreadGroup();
+        return group == null ? "" : group.getName();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getGroupName() {
+        return mGroupName;
+    }
+
+    public long getJavaThreadId() {
+        return mJavaThreadId;
+    }
+
+    public boolean isPooled() {
+        return mPooled;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof LockingThread)) {
+            return false;
+        }
+        final LockingThread otherThread = (LockingThread) other;
+        return mJavaThreadId == otherThread.mJavaThreadId
+               && mPooled == otherThread.mPooled
+               && mName.equals(otherThread.mName)
+               && mGroupName.equals(otherThread.mGroupName);
+    }
+
+    public int hashCode() {
+        return mName.hashCode() + (int) mJavaThreadId;
+    }
+
+    public String toString() {
+        return "Thread: " + mName
+               + " Group: " + mGroupName
+               + " Id: " + mJavaThreadId
+               + (mPooled ? " (pooled)" : "");
+    }
+}
@@ -27,6 +27,7 @@ import net.jcip.annotations.NotThreadSafe;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 import com.enea.jcarder.util.logging.Logger;
 
 @NotThreadSafe
@@ -36,7 +37,7 @@ implements ContextReaderIfc {
     public static final String EVENT_DB_FILENAME = "jcarder_events.db";
     public static final String CONTEXTS_DB_FILENAME = "jcarder_contexts.db";
     static final long MAGIC_COOKIE = 3927194112434171438L;
-    static final int MAJOR_VERSION = 1;
+    static final int MAJOR_VERSION = 4;
     static final int MINOR_VERSION = 0;
     static final Charset CHARSET = Charset.forName("UTF-8");
     private final Logger mLogger;
@@ -83,9 +84,19 @@ implements ContextReaderIfc {
 
     public LockingContext readContext(int id) {
         mBuffer.position(id);
-        return new LockingContext(readString(),
-                                  readString(),
-                                  readString());
+        String lockReference = readString();
+        String methodWithClass = readString();
+        boolean shared = mBuffer.getInt() != 0;
+        return new LockingContext(lockReference, methodWithClass, shared);
+    }
+
+    public LockingThread readThread(int id) {
+        mBuffer.position(id);
+        String name = readString();
+        String groupName = readString();
+        long javaThreadId = mBuffer.getLong();
+        boolean pooled = mBuffer.getInt() != 0;
+        return new LockingThread(name, groupName, javaThreadId, pooled);
     }
 
     public Lock readLock(int id) {
@@ -16,7 +16,9 @@
 
 package com.enea.jcarder.common.contexts;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -26,16 +28,17 @@ import net.jcip.annotations.ThreadSafe;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 import com.enea.jcarder.util.logging.Logger;
 
 @ThreadSafe
 public final class ContextFileWriter
-implements ContextWriterIfc {
+implements ContextWriterIfc, Closeable, Flushable {
     private final FileChannel mChannel;
     private int mNextFilePosition = 0;
     private final Logger mLogger;
     private ByteBuffer mBuffer = ByteBuffer.allocateDirect(8192);
-    private boolean mShutdownHookExecuted = false;
+    private boolean mShuttingDown = false;
 
     public ContextFileWriter(Logger logger, File file) throws IOException {
         mLogger = logger;
@@ -44,13 +47,14 @@ implements ContextWriterIfc {
         raFile.setLength(0);
         mChannel = raFile.getChannel();
         writeHeader();
-
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() { shutdownHook(); }
-        });
     }
 
-    private synchronized void shutdownHook() {
+    /**
+     * Write what has been buffered to the file, and write each later record
+     * directly, since the JVM is shutting down and the buffer may never be
+     * written otherwise.
+     */
+    public synchronized void shutdown() {
         try {
             if (mChannel.isOpen()) {
                 writeBuffer();
@@ -58,10 +62,18 @@ implements ContextWriterIfc {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mShutdownHookExecuted = true;
+        mShuttingDown = true;
     }
 
+    /**
+     * Records that are written after the file has been closed, by threads
+     * that were about to write when it was closed, are dropped.
+     */
     private void writeBuffer() throws IOException {
+        if (!mChannel.isOpen()) {
+            mBuffer.clear();
+            return;
+        }
         mBuffer.flip();
         mChannel.write(mBuffer);
         while (mBuffer.hasRemaining()) {
@@ -78,6 +90,10 @@ implements ContextWriterIfc {
         mNextFilePosition += 8 + 4 + 4;
     }
 
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+    }
+
     public synchronized void close() throws IOException {
         writeBuffer();
         mChannel.close();
@@ -98,8 +114,14 @@ implements ContextWriterIfc {
         mNextFilePosition += 4;
     }
 
+    private void writeLong(long l) throws IOException {
+        assureBufferCapacity(8);
+        mBuffer.putLong(l);
+        mNextFilePosition += 8;
+    }
+
     private void assureBufferCapacity(int size) throws IOException {
-        if (mBuffer.remaining() < size || mShutdownHookExecuted) {
+        if (mBuffer.remaining() < size || mShuttingDown) {
             writeBuffer();
         }
 
@@ -120,15 +142,26 @@ implements ContextWriterIfc {
     public synchronized int writeContext(LockingContext context)
     throws IOException {
         final int startPosition = mNextFilePosition;
-        writeString(context.getThreadName());
         writeString(context.getLockReference());
         writeString(context.getMethodWithClass());
+        writeInteger(context.isShared() ? 1 : 0);
+        flushBufferIfNeeded();
+        return startPosition;
+    }
+
+    public synchronized int writeThread(LockingThread thread)
+    throws IOException {
+        final int startPosition = mNextFilePosition;
+        writeString(thread.getName());
+        writeString(thread.getGroupName());
+        writeLong(thread.getJavaThreadId());
+        writeInteger(thread.isPooled() ? 1 : 0);
         flushBufferIfNeeded();
         return startPosition;
     }
 
     private void flushBufferIfNeeded() throws IOException {
-        if (mShutdownHookExecuted) {
+        if (mShuttingDown) {
             writeBuffer();
         }
     }
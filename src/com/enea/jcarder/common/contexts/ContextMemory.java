@@ -17,33 +17,45 @@
 package com.enea.jcarder.common.contexts;
 
 import java.util.LinkedList;
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 
-@NotThreadSafe
+@ThreadSafe
 public final class ContextMemory
 implements ContextWriterIfc, ContextReaderIfc {
 
     private final LinkedList<Lock> mLocks = new LinkedList<Lock>();
     private final LinkedList<LockingContext> mLockingContexts =
         new LinkedList<LockingContext>();
+    private final LinkedList<LockingThread> mThreads =
+        new LinkedList<LockingThread>();
 
-    public int writeLock(Lock lock) {
+    public synchronized int writeLock(Lock lock) {
         mLocks.addLast(lock);
         return mLocks.size() - 1;
     }
 
-    public int writeContext(LockingContext context) {
+    public synchronized int writeContext(LockingContext context) {
         mLockingContexts.addLast(context);
         return mLockingContexts.size() - 1;
     }
 
-    public Lock readLock(int id) {
+    public synchronized int writeThread(LockingThread thread) {
+        mThreads.addLast(thread);
+        return mThreads.size() - 1;
+    }
+
+    public synchronized Lock readLock(int id) {
         return mLocks.get(id);
     }
 
-    public LockingContext readContext(int id) {
+    public synchronized LockingContext readContext(int id) {
         return mLockingContexts.get(id);
     }
+
+    public synchronized LockingThread readThread(int id) {
+        return mThreads.get(id);
+    }
 }
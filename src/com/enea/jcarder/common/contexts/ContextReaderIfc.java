@@ -18,8 +18,10 @@ package com.enea.jcarder.common.contexts;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 
 public interface ContextReaderIfc {
     LockingContext readContext(int id);
     Lock readLock(int id);
+    LockingThread readThread(int id);
 }
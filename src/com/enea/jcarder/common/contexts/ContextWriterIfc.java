@@ -20,10 +20,13 @@ import java.io.IOException;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 
 public interface ContextWriterIfc {
 
     int writeLock(Lock lock) throws IOException;
 
     int writeContext(LockingContext context) throws IOException;
+
+    int writeThread(LockingThread thread) throws IOException;
 }
@@ -16,21 +16,33 @@
 
 package com.enea.jcarder.common.events;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import com.enea.jcarder.util.logging.Logger;
 
+/**
+ * The event file consists of a header followed by records of two kinds. A
+ * lock event record consists of five ints: the lock ID, the locking context
+ * ID, the last taken lock ID, the last taken locking context ID and the
+ * thread ID. A duplicates record starts with DUPLICATES_MARKER, which can
+ * never be a lock ID, followed by the five ints of a lock event and a long
+ * with the number of times that the lock event has been suppressed.
+ */
 public final class EventFileReader {
     private static final int INT_LENGTH = 4;
     private static final int LONG_LENGTH = 8;
     private final Logger mLogger;
-    static final int EVENT_LENGTH = (INT_LENGTH * 4) + LONG_LENGTH;
+    static final int EVENT_LENGTH = INT_LENGTH * 5;
+    static final int DUPLICATES_LENGTH =
+        INT_LENGTH + EVENT_LENGTH + LONG_LENGTH;
+    static final int DUPLICATES_MARKER = -1;
     static final long MAGIC_COOKIE = 2153191828159737167L;
-    static final int MAJOR_VERSION = 1;
+    static final int MAJOR_VERSION = 3;
     static final int MINOR_VERSION = 0;
 
     public EventFileReader(Logger logger) {
@@ -41,51 +53,85 @@ public final class EventFileReader {
                           LockEventListenerIfc eventReceiver)
     throws IOException {
         int numberOfParsedEvents = 0;
-        FileInputStream fis = new FileInputStream(file);
+        int numberOfParsedDuplicateRecords = 0;
         final String path = file.getCanonicalPath();
         mLogger.info("Opening for reading: " + path);
-        FileChannel fileChannel = fis.getChannel();
-        validateHeader(fileChannel, path);
-        final ByteBuffer buffer = ByteBuffer.allocate(EVENT_LENGTH);
-        while (fileChannel.read(buffer) == EVENT_LENGTH) {
-            buffer.rewind();
-            parseLockEvent(buffer, eventReceiver);
-            buffer.rewind();
-            numberOfParsedEvents++;
+        DataInputStream input =
+            new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024));
+        try {
+            validateHeader(input, path);
+            while (true) {
+                try {
+                    final int first = input.readInt();
+                    if (first == DUPLICATES_MARKER) {
+                        parseDuplicates(input, eventReceiver);
+                        numberOfParsedDuplicateRecords++;
+                    } else {
+                        parseLockEvent(first, input, eventReceiver);
+                        numberOfParsedEvents++;
+                    }
+                } catch (EOFException e) {
+                    // End of file, possibly with an incomplete last record.
+                    break;
+                }
+            }
+        } finally {
+            input.close();
         }
         mLogger.fine("Loaded " + numberOfParsedEvents
-                     + " lock events from file.");
+                     + " lock events and " + numberOfParsedDuplicateRecords
+                     + " duplicate counts from file.");
     }
 
-    private void validateHeader(FileChannel channel,
+    private void validateHeader(DataInputStream input,
                                 String filename) throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + 4);
-        channel.read(buffer);
-        buffer.flip();
-        if (MAGIC_COOKIE != buffer.getLong()) {
+        try {
+            if (MAGIC_COOKIE != input.readLong()) {
+                throw new IOException("Invalid file contents in: "
+                                      + filename);
+            }
+            final int majorVersion = input.readInt();
+            final int minorVersion = input.readInt();
+            if (majorVersion != MAJOR_VERSION) {
+                throw new IOException("Incompatible version: "
+                                      + majorVersion + "." + minorVersion
+                                      + " in: " + filename);
+            }
+        } catch (EOFException e) {
             throw new IOException("Invalid file contents in: " + filename);
         }
-        final int majorVersion = buffer.getInt();
-        final int minorVersion = buffer.getInt();
-        if (majorVersion != MAJOR_VERSION) {
-            throw new IOException("Incompatible version: "
-                                  + majorVersion + "." + minorVersion
-                                  + " in: " + filename);
-        }
     }
 
-    private static void parseLockEvent(ByteBuffer lockEventBuffer,
+    private static void parseLockEvent(int lockId,
+                                       DataInputStream input,
                                        LockEventListenerIfc eventReceiver)
     throws IOException {
-        final int lockId                    = lockEventBuffer.getInt();
-        final int lockingContextId          = lockEventBuffer.getInt();
-        final int lastTakenLockId           = lockEventBuffer.getInt();
-        final int lastTakenLockingContextId = lockEventBuffer.getInt();
-        final long threadId                 = lockEventBuffer.getLong();
+        final int lockingContextId          = input.readInt();
+        final int lastTakenLockId           = input.readInt();
+        final int lastTakenLockingContextId = input.readInt();
+        final int threadId                  = input.readInt();
         eventReceiver.onLockEvent(lockId,
                                   lockingContextId,
                                   lastTakenLockId,
                                   lastTakenLockingContextId,
                                   threadId);
     }
+
+    private static void parseDuplicates(DataInputStream input,
+                                        LockEventListenerIfc eventReceiver)
+    throws IOException {
+        final int lockId                    = input.readInt();
+        final int lockingContextId          = input.readInt();
+        final int lastTakenLockId           = input.readInt();
+        final int lastTakenLockingContextId = input.readInt();
+        final int threadId                  = input.readInt();
+        final long count                    = input.readLong();
+        eventReceiver.onDuplicateLockEvents(lockId,
+                                            lockingContextId,
+                                            lastTakenLockId,
+                                            lastTakenLockingContextId,
+                                            threadId,
+                                            count);
+    }
 }
@@ -16,7 +16,9 @@
 
 package com.enea.jcarder.common.events;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -26,16 +28,19 @@ import net.jcip.annotations.ThreadSafe;
 import com.enea.jcarder.util.Counter;
 import com.enea.jcarder.util.logging.Logger;
 
+import static com.enea.jcarder.common.events.EventFileReader.DUPLICATES_LENGTH;
+import static com.enea.jcarder.common.events.EventFileReader.DUPLICATES_MARKER;
 import static com.enea.jcarder.common.events.EventFileReader.EVENT_LENGTH;
 
 @ThreadSafe
-public final class EventFileWriter implements LockEventListenerIfc {
+public final class EventFileWriter
+implements LockEventListenerIfc, Closeable, Flushable {
     private final ByteBuffer mBuffer =
         ByteBuffer.allocateDirect(EVENT_LENGTH * 1024);
     private final FileChannel mFileChannel;
     private final Logger mLogger;
     private final Counter mWrittenLockEvents;
-    private boolean mShutdownHookExecuted = false;
+    private boolean mShuttingDown = false;
 
     public EventFileWriter(Logger logger, File file) throws IOException {
         mLogger = logger;
@@ -47,9 +52,6 @@ public final class EventFileWriter implements LockEventListenerIfc {
                                          mLogger,
                                          100000);
         writeHeader();
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() { shutdownHook(); }
-        });
     }
 
     private void writeHeader() throws IOException {
@@ -63,19 +65,46 @@ public final class EventFileWriter implements LockEventListenerIfc {
                                          int lockingContextId,
                                          int lastTakenLockId,
                                          int lastTakenLockingContextId,
-                                         long threadId) throws IOException {
+                                         int threadId) throws IOException {
         mBuffer.putInt(lockId);
         mBuffer.putInt(lockingContextId);
         mBuffer.putInt(lastTakenLockId);
         mBuffer.putInt(lastTakenLockingContextId);
-        mBuffer.putLong(threadId);
+        mBuffer.putInt(threadId);
         mWrittenLockEvents.increment();
-        if (mBuffer.remaining() < EVENT_LENGTH || mShutdownHookExecuted) {
+        if (mBuffer.remaining() < DUPLICATES_LENGTH || mShuttingDown) {
             writeBuffer();
         }
     }
 
+    public synchronized void onDuplicateLockEvents(
+        int lockId,
+        int lockingContextId,
+        int lastTakenLockId,
+        int lastTakenLockingContextId,
+        int threadId,
+        long count) throws IOException {
+        mBuffer.putInt(DUPLICATES_MARKER);
+        mBuffer.putInt(lockId);
+        mBuffer.putInt(lockingContextId);
+        mBuffer.putInt(lastTakenLockId);
+        mBuffer.putInt(lastTakenLockingContextId);
+        mBuffer.putInt(threadId);
+        mBuffer.putLong(count);
+        if (mBuffer.remaining() < DUPLICATES_LENGTH || mShuttingDown) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Events that are written after the file has been closed, by threads that
+     * were about to write when it was closed, are dropped.
+     */
     private void writeBuffer() throws IOException {
+        if (!mFileChannel.isOpen()) {
+            mBuffer.clear();
+            return;
+        }
         mBuffer.flip();
         mFileChannel.write(mBuffer);
         while (mBuffer.hasRemaining()) {
@@ -85,12 +114,25 @@ public final class EventFileWriter implements LockEventListenerIfc {
         mBuffer.clear();
     }
 
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+    }
+
     public synchronized void close() throws IOException {
         writeBuffer();
         mFileChannel.close();
     }
 
-    private synchronized void shutdownHook() {
+    public synchronized int getWrittenLockEvents() {
+        return mWrittenLockEvents.getValue();
+    }
+
+    /**
+     * Write what has been buffered to the file, and write each later record
+     * directly, since the JVM is shutting down and the buffer may never be
+     * written otherwise.
+     */
+    public synchronized void shutdown() {
         try {
             if (mFileChannel.isOpen()) {
                 writeBuffer();
@@ -98,6 +140,6 @@ public final class EventFileWriter implements LockEventListenerIfc {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mShutdownHookExecuted = true;
+        mShuttingDown = true;
     }
 }
@@ -24,5 +24,17 @@ public interface LockEventListenerIfc {
                      int lockingContextId,
                      int lastTakenLockId,
                      int lastTakenLockingContextId,
-                     long threadId)throws IOException;
+                     int threadId)throws IOException;
+
+    /**
+     * Report that a lock event has occurred a number of times more than it
+     * has been reported with onLockEvent. This may be called before or after
+     * the lock event itself is reported.
+     */
+    void onDuplicateLockEvents(int lockId,
+                               int lockingContextId,
+                               int lastTakenLockId,
+                               int lastTakenLockingContextId,
+                               int threadId,
+                               long count) throws IOException;
 }
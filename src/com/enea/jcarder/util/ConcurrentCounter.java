@@ -0,0 +1,73 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.enea.jcarder.util.logging.Logger;
+
+/**
+ * A thread-safe variant of the Counter class.
+ *
+ * The value is spread over a number of cells and each thread increments the
+ * cell selected by its identity hash code. That way threads running in
+ * parallel seldom write to the same cache line.
+ */
+@ThreadSafe
+public final class ConcurrentCounter {
+    // Number of longs between two used cells, to avoid false sharing.
+    private static final int CELL_DISTANCE = 8;
+    final int mLogIntervall;
+    final String mName;
+    final Logger mLogger;
+    private final AtomicLongArray mCells;
+    private final int mCellMask;
+
+    public ConcurrentCounter(String name, Logger logger, int logInterval) {
+        mName = name;
+        mLogger = logger;
+        mLogIntervall = logInterval;
+        final int cells = Striping.getDefaultStripeCount();
+        mCellMask = cells - 1;
+        mCells = new AtomicLongArray(cells * CELL_DISTANCE);
+    }
+
+    public void increment() {
+        final int cell =
+            System.identityHashCode(Thread.currentThread()) & mCellMask;
+        final long cellValue = mCells.incrementAndGet(cell * CELL_DISTANCE);
+        if ((cellValue % mLogIntervall) == 0) {
+            mLogger.fine(mName + ": " + getValue());
+        } else if (mLogger.isLoggable(Logger.Level.FINEST)) {
+            mLogger.finest(mName + ": " + getValue());
+        }
+    }
+
+    /**
+     * Get the current value of the counter. The value is not a snapshot;
+     * increments made while the cells are summed may or may not be included.
+     */
+    public long getValue() {
+        long sum = 0;
+        for (int i = 0; i <= mCellMask; i++) {
+            sum += mCells.get(i * CELL_DISTANCE);
+        }
+        return sum;
+    }
+}
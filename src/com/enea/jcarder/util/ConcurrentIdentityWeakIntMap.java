@@ -0,0 +1,284 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A concurrent map from objects to int values. Keys are compared with the ==
+ * operator, and the map does not prevent them from being garbage collected.
+ *
+ * The map is split into segments by the identity hash code of the keys. Each
+ * segment is an open-addressing table with linear probing and primitive int
+ * values. Lookups do not take any lock, so many threads can look up existing
+ * keys in parallel. Only insertions take the monitor of a segment.
+ *
+ * Slots of garbage collected keys are reclaimed when a segment is rehashed,
+ * which happens when an insertion would make the table too full.
+ *
+ * The map may be bounded to a maximum number of keys. Each segment then holds
+ * at most its share of the keys, and an insertion into a full segment first
+ * evicts another key. The victim is chosen by a hand that moves round the
+ * table, like in the CLOCK algorithm but without reference bits, so it costs
+ * no more than a few slot reads. An evicted key is removed by clearing its
+ * weak reference, exactly as if it had been garbage collected.
+ */
+@ThreadSafe
+public final class ConcurrentIdentityWeakIntMap {
+    /**
+     * The value returned by get for keys that are not in the map. It can not
+     * be stored in the map.
+     */
+    public static final int NOT_FOUND = -1;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private final Segment[] mSegments;
+    private final int mSegmentMask;
+
+    public ConcurrentIdentityWeakIntMap() {
+        this(Striping.getDefaultStripeCount());
+    }
+
+    /**
+     * @param segments
+     *            The number of independently locked segments. It will be
+     *            rounded up to a power of two.
+     */
+    public ConcurrentIdentityWeakIntMap(int segments) {
+        this(segments, 0);
+    }
+
+    /**
+     * @param segments
+     *            The number of independently locked segments. It will be
+     *            rounded up to a power of two.
+     * @param maxSize
+     *            The maximum number of keys, or 0 if the map is unbounded.
+     *            Since each segment is bounded by itself, the map may start
+     *            evicting keys before it holds maxSize keys.
+     */
+    public ConcurrentIdentityWeakIntMap(int segments, int maxSize) {
+        final int segmentCount = Striping.ceilingPowerOfTwo(segments);
+        mSegmentMask = segmentCount - 1;
+        mSegments = new Segment[segmentCount];
+        final int maxSegmentSize =
+            maxSize > 0 ? Math.max(1, maxSize / segmentCount) : 0;
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment(maxSegmentSize);
+        }
+    }
+
+    /**
+     * Get the value for a key without taking any lock.
+     *
+     * @return The value or NOT_FOUND if the key is not in the map.
+     */
+    public int get(Object key) {
+        final int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Add a value for a key unless the key is already in the map.
+     *
+     * @return The value that the key is mapped to after the call.
+     */
+    public int putIfAbsent(Object key, int value) {
+        assert key != null;
+        assert value != NOT_FOUND;
+        final int hash = hash(key);
+        return segmentFor(hash).putIfAbsent(key, hash, value);
+    }
+
+    /**
+     * Get the number of keys in the map, including keys that have been
+     * garbage collected but not yet removed.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.mUsedSlots;
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of keys that have been evicted to keep the map within
+     * its maximum size.
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment segment : mSegments) {
+            evictions += segment.mEvictions;
+        }
+        return evictions;
+    }
+
+    private static int hash(Object key) {
+        return Striping.spread(System.identityHashCode(key));
+    }
+
+    private Segment segmentFor(int hash) {
+        return mSegments[(hash >>> 16) & mSegmentMask];
+    }
+
+    private static final class WeakKey extends WeakReference<Object> {
+        final int mHash;
+        // Whether the key is no longer counted as live. Guarded by the
+        // monitor of the segment.
+        boolean mRemoved = false;
+
+        WeakKey(Object referent, int hash) {
+            super(referent);
+            mHash = hash;
+        }
+    }
+
+    /**
+     * A table is never resized in place. The value of a slot is written
+     * before its key is published with a volatile write, so a reader that
+     * finds a key also sees its value.
+     */
+    private static final class Table {
+        final AtomicReferenceArray<WeakKey> mKeys;
+        final int[] mValues;
+        final int mMask;
+
+        Table(int capacity) {
+            mKeys = new AtomicReferenceArray<WeakKey>(capacity);
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+        }
+
+        int capacity() {
+            return mMask + 1;
+        }
+    }
+
+    private static final class Segment {
+        private final int mMaxKeys;
+        private volatile Table mTable = new Table(INITIAL_SEGMENT_CAPACITY);
+        private volatile int mUsedSlots = 0;
+        private volatile long mEvictions = 0;
+        // The number of keys that are not removed, including keys that have
+        // been garbage collected but not yet noticed. Guarded by this.
+        private int mLiveKeys = 0;
+        private int mEvictionHand = 0;
+
+        Segment(int maxKeys) {
+            mMaxKeys = maxKeys;
+        }
+
+        int get(Object key, int hash) {
+            final Table table = mTable;
+            int i = hash & table.mMask;
+            while (true) {
+                final WeakKey k = table.mKeys.get(i);
+                if (k == null) {
+                    return NOT_FOUND;
+                }
+                if (k.mHash == hash && k.get() == key) {
+                    return table.mValues[i];
+                }
+                i = (i + 1) & table.mMask;
+            }
+        }
+
+        synchronized int putIfAbsent(Object key, int hash, int value) {
+            final int existingValue = get(key, hash);
+            if (existingValue != NOT_FOUND) {
+                return existingValue;
+            }
+            if (mMaxKeys > 0 && mLiveKeys >= mMaxKeys) {
+                evict();
+            }
+            Table table = mTable;
+            if (4 * (mUsedSlots + 1) > 3 * table.capacity()) {
+                table = rehash(table);
+            }
+            int i = hash & table.mMask;
+            while (table.mKeys.get(i) != null) {
+                i = (i + 1) & table.mMask;
+            }
+            table.mValues[i] = value;
+            table.mKeys.set(i, new WeakKey(key, hash));
+            mUsedSlots++;
+            mLiveKeys++;
+            return value;
+        }
+
+        /**
+         * Remove keys, starting at the eviction hand, until there is room
+         * for another key. Keys that the hand finds garbage collected are
+         * removed without counting as evictions.
+         */
+        private void evict() {
+            final Table table = mTable;
+            while (mLiveKeys >= mMaxKeys) {
+                final int i = mEvictionHand & table.mMask;
+                mEvictionHand = i + 1;
+                final WeakKey k = table.mKeys.get(i);
+                if (k == null || k.mRemoved) {
+                    continue;
+                }
+                k.mRemoved = true;
+                mLiveKeys--;
+                if (k.get() != null) {
+                    k.clear();
+                    mEvictions++;
+                }
+            }
+        }
+
+        /**
+         * Copy the keys that have not been garbage collected to a new table
+         * that is at most half full, and publish it.
+         */
+        private Table rehash(Table oldTable) {
+            int liveKeys = 0;
+            for (int j = 0; j < oldTable.capacity(); j++) {
+                final WeakKey k = oldTable.mKeys.get(j);
+                if (k != null && k.get() != null) {
+                    liveKeys++;
+                }
+            }
+            final int capacity =
+                Math.max(INITIAL_SEGMENT_CAPACITY,
+                         Striping.ceilingPowerOfTwo(4 * (liveKeys + 1)));
+            final Table newTable = new Table(capacity);
+            int usedSlots = 0;
+            for (int j = 0; j < oldTable.capacity(); j++) {
+                final WeakKey k = oldTable.mKeys.get(j);
+                if (k != null && k.get() != null) {
+                    int i = k.mHash & newTable.mMask;
+                    while (newTable.mKeys.get(i) != null) {
+                        i = (i + 1) & newTable.mMask;
+                    }
+                    newTable.mValues[i] = oldTable.mValues[j];
+                    newTable.mKeys.set(i, k);
+                    usedSlots++;
+                }
+            }
+            mUsedSlots = usedSlots;
+            mLiveKeys = usedSlots;
+            mTable = newTable;
+            return newTable;
+        }
+    }
+}
@@ -41,4 +41,8 @@ public final class Counter {
             mLogger.finest(mName + ": " + mValue);
         }
     }
+
+    public int getValue() {
+        return mValue;
+    }
 }
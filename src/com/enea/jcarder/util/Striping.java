@@ -0,0 +1,56 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.util;
+
+/**
+ * Helper methods for data structures that are split into a number of
+ * independently locked stripes in order to reduce lock contention.
+ */
+public final class Striping {
+
+    private Striping() { }
+
+    /**
+     * Get a suitable number of stripes for the current machine.
+     *
+     * @return A power of two that is at least four times the number of
+     *         available processors.
+     */
+    public static int getDefaultStripeCount() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        return ceilingPowerOfTwo(4 * processors);
+    }
+
+    /**
+     * Get the smallest power of two that is greater than or equal to n.
+     */
+    public static int ceilingPowerOfTwo(int n) {
+        if (n <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * Spread the bits of a hash code so that hash codes that only differ in
+     * their upper bits are mapped to different stripes.
+     */
+    public static int spread(int hash) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
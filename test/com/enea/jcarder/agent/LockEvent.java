@@ -24,15 +24,22 @@ public final class LockEvent {
     private final LockingContext mLockingContext;
     private final Lock mLastTakenLock;
     private final LockingContext mLastLockingContext;
+    private final String mThreadName;
 
     public LockEvent(final Lock lock,
                      final LockingContext lockingContext,
                      final Lock lastTakenLock,
-                     final LockingContext lastTakenLockingContext) {
+                     final LockingContext lastTakenLockingContext,
+                     final String threadName) {
         mLock = lock;
         mLockingContext = lockingContext;
         mLastTakenLock = lastTakenLock;
         mLastLockingContext = lastTakenLockingContext;
+        mThreadName = threadName;
+    }
+
+    public String getThreadName() {
+        return mThreadName;
     }
 
     public int hashCode() {
@@ -70,6 +77,11 @@ public final class LockEvent {
                 return false;
         } else if (!this.mLockingContext.equals(other.mLockingContext))
             return false;
+        if (this.mThreadName == null) {
+            if (other.mThreadName != null)
+                return false;
+        } else if (!this.mThreadName.equals(other.mThreadName))
+            return false;
         return true;
     }
 
@@ -0,0 +1,174 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.enea.jcarder.agent.RecordingConfig.LockIdentity;
+import com.enea.jcarder.common.contexts.ContextMemory;
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestAggregateLockIds implements LockEventListenerIfc {
+    private static final class Node { }
+
+    private final ArrayList<Integer> mLockIds = new ArrayList<Integer>();
+    private ContextMemory mContextMemory;
+    private int mHolderSite;
+    private int mFieldSite;
+    private int mLocalSite;
+
+    @Before
+    public void setUp() {
+        mContextMemory = new ContextMemory();
+        mHolderSite = CallSiteRegistry.register(
+            new CallSite("this", "a.Holder.run()", 1));
+        mFieldSite = CallSiteRegistry.register(
+            new CallSite("a.Holder.mLock",
+                         "a.Holder.run()",
+                         2,
+                         "a.Holder.mLock"));
+        mLocalSite = CallSiteRegistry.register(
+            new CallSite("<localVariable1>", "a.Holder.run()", 3));
+    }
+
+    public void onLockEvent(int lockId,
+                            int lockingContextId,
+                            int lastTakenLockId,
+                            int lastTakenLockingContextId,
+                            int threadId) {
+        mLockIds.add(lockId);
+    }
+
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContextId,
+                                      int threadId,
+                                      long count) {
+    }
+
+    private EventListener createListener(LockIdentity identity) {
+        RecordingConfig config = new RecordingConfig();
+        config.setLockIdentity(identity);
+        return new EventListener(new Logger(null),
+                                 this,
+                                 mContextMemory,
+                                 config);
+    }
+
+    /**
+     * Enter each lock in turn while holding a holder monitor.
+     */
+    private void enterEach(EventListener listener, Object[] locks, int site)
+    throws Exception {
+        Object holder = new Object();
+        listener.beforeMonitorEnter(holder, mHolderSite);
+        for (Object lock : locks) {
+            listener.beforeMonitorEnter(lock, site);
+            listener.beforeMonitorExit(lock);
+        }
+        listener.beforeMonitorExit(holder);
+    }
+
+    @Test
+    public void testLockedField() {
+        assertEquals("a.Holder.mLock",
+                     CallSiteRegistry.getSite(mFieldSite).getLockedField());
+        // The field is only known from the instrumentation, not from how
+        // the lock reference looks.
+        assertNull(new CallSite("a.Holder.mLock",
+                                "a.B.c()",
+                                1).getLockedField());
+    }
+
+    @Test
+    public void testInstanceIdentity() throws Exception {
+        EventListener listener = createListener(LockIdentity.INSTANCE);
+        enterEach(listener, new Object[] {new Object(), new Object()},
+                  mFieldSite);
+        assertEquals(2, mLockIds.size());
+        assertFalse(mLockIds.get(0).equals(mLockIds.get(1)));
+    }
+
+    @Test
+    public void testFieldIdentity() throws Exception {
+        EventListener listener = createListener(LockIdentity.FIELD);
+        enterEach(listener, new Object[] {new Object(), new Object()},
+                  mFieldSite);
+        enterEach(listener, new Object[] {new Object(), new Object()},
+                  mLocalSite);
+        assertEquals(4, mLockIds.size());
+        assertEquals(mLockIds.get(0), mLockIds.get(1));
+        assertEquals("a.Holder.mLock",
+                     mContextMemory.readLock(mLockIds.get(0)).getClassName());
+        assertEquals(AggregateLockIds.AGGREGATE_OBJECT_ID,
+                     mContextMemory.readLock(mLockIds.get(0)).getObjectId());
+        assertFalse(mLockIds.get(2).equals(mLockIds.get(3)));
+    }
+
+    @Test
+    public void testClassIdentity() throws Exception {
+        EventListener listener = createListener(LockIdentity.CLASS);
+        enterEach(listener, new Object[] {new Node(),
+                                          new Node(),
+                                          String.class,
+                                          Integer.class},
+                  mLocalSite);
+        enterEach(listener, new Object[] {new Node()}, mFieldSite);
+        assertEquals(5, mLockIds.size());
+        assertEquals(mLockIds.get(0), mLockIds.get(1));
+        assertEquals(Node.class.getName(),
+                     mContextMemory.readLock(mLockIds.get(0)).getClassName());
+        assertFalse(mLockIds.get(2).equals(mLockIds.get(3)));
+        assertFalse(mLockIds.get(0).equals(mLockIds.get(4)));
+        assertEquals("a.Holder.mLock",
+                     mContextMemory.readLock(mLockIds.get(4)).getClassName());
+    }
+
+    @Test
+    public void testJdkClassesAreNotAggregated() throws Exception {
+        EventListener listener = createListener(LockIdentity.CLASS);
+        enterEach(listener, new Object[] {new Object(),
+                                          new Object(),
+                                          new StringBuffer(),
+                                          new StringBuffer()},
+                  mLocalSite);
+        assertEquals(4, mLockIds.size());
+        assertFalse(mLockIds.get(0).equals(mLockIds.get(1)));
+        assertFalse(mLockIds.get(2).equals(mLockIds.get(3)));
+    }
+
+    @Test
+    public void testNestingWithinAggregateIsRecorded() throws Exception {
+        EventListener listener = createListener(LockIdentity.CLASS);
+        final Node outer = new Node();
+        final Node inner = new Node();
+        listener.beforeMonitorEnter(outer, mLocalSite);
+        listener.beforeMonitorEnter(inner, mLocalSite);
+        listener.beforeMonitorExit(inner);
+        listener.beforeMonitorExit(outer);
+        assertEquals(1, mLockIds.size());
+    }
+}
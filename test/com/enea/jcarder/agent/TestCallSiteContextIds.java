@@ -0,0 +1,39 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public final class TestCallSiteContextIds {
+
+    @Test
+    public void testClearOnlyForgetsSitesOfTheContext() {
+        CallSiteContextIds contextIds = new CallSiteContextIds();
+        contextIds.set(1, 10);
+        contextIds.set(2, 10);
+        contextIds.set(1000, 20);
+        contextIds.clear(10);
+        assertEquals(CallSiteContextIds.NO_CONTEXT_ID, contextIds.get(1));
+        assertEquals(CallSiteContextIds.NO_CONTEXT_ID, contextIds.get(2));
+        assertEquals(20, contextIds.get(1000));
+        contextIds.set(1, 30);
+        contextIds.clear(10);
+        assertEquals(30, contextIds.get(1));
+    }
+}
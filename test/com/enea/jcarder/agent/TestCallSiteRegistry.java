@@ -0,0 +1,69 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TestCallSiteRegistry {
+    @Test
+    public void testRegisterAndGet() {
+        CallSite site = new CallSite("this", "Foo.testRegisterAndGet()", 17);
+        int id = CallSiteRegistry.register(site);
+        assertSame(site, CallSiteRegistry.getSite(id));
+    }
+
+    @Test
+    public void testEqualSitesGetTheSameId() {
+        int id = CallSiteRegistry.register(new CallSite("Foo.mLock",
+                                                        "Foo.bar()",
+                                                        42));
+        assertEquals(id, CallSiteRegistry.register(new CallSite("Foo.mLock",
+                                                                "Foo.bar()",
+                                                                42)));
+        assertFalse(id == CallSiteRegistry.register(new CallSite("Foo.mLock",
+                                                                 "Foo.bar()",
+                                                                 43)));
+    }
+
+    @Test
+    public void testManySites() {
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = CallSiteRegistry.register(new CallSite("this",
+                                                            "Foo.many()",
+                                                            i));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, CallSiteRegistry.getSite(ids[i]).getLineNumber());
+        }
+    }
+
+    @Test
+    public void testUnknownIds() {
+        final int size = CallSiteRegistry.size();
+        assertSame(CallSiteRegistry.UNKNOWN_SITE,
+                   CallSiteRegistry.getSite(size));
+        assertSame(CallSiteRegistry.UNKNOWN_SITE,
+                   CallSiteRegistry.getSite(Integer.MAX_VALUE));
+        assertSame(CallSiteRegistry.UNKNOWN_SITE,
+                   CallSiteRegistry.getSite(-1));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestDuplicateEventFilter {
+
+    @Test
+    public void testOnlyFirstOccurrenceIsPassedOn() throws Exception {
+        LockEventListenerIfc target = mock(LockEventListenerIfc.class);
+        DuplicateEventFilter filter =
+            new DuplicateEventFilter(new Logger(null), target);
+        for (int i = 0; i < 10; i++) {
+            filter.onLockEvent(1, 2, 3, 4, 5);
+            filter.onLockEvent(1, 2, 3, 4, 6);
+        }
+        filter.onLockEvent(7, 8, 9, 10, 5);
+        verify(target).onLockEvent(1, 2, 3, 4, 5);
+        verify(target).onLockEvent(1, 2, 3, 4, 6);
+        verify(target).onLockEvent(7, 8, 9, 10, 5);
+        verify(target, never()).onDuplicateLockEvents(1, 2, 3, 4, 5, 9);
+
+        filter.close();
+        verify(target).onDuplicateLockEvents(1, 2, 3, 4, 5, 9);
+        verify(target).onDuplicateLockEvents(1, 2, 3, 4, 6, 9);
+        verifyNoMoreInteractions(target);
+    }
+
+    @Test
+    public void testDuplicatesAreCountedAfterClose() throws Exception {
+        LockEventListenerIfc target = mock(LockEventListenerIfc.class);
+        DuplicateEventFilter filter =
+            new DuplicateEventFilter(new Logger(null), target);
+        filter.onLockEvent(1, 2, 3, 4, 5);
+        filter.onLockEvent(1, 2, 3, 4, 5);
+        filter.close();
+        filter.onLockEvent(1, 2, 3, 4, 5);
+        filter.close();
+        verify(target).onLockEvent(1, 2, 3, 4, 5);
+        verify(target, times(2)).onDuplicateLockEvents(1, 2, 3, 4, 5, 1);
+        verifyNoMoreInteractions(target);
+    }
+
+    @Test
+    public void testManyDistinctEvents() throws Exception {
+        LockEventListenerIfc target = mock(LockEventListenerIfc.class);
+        DuplicateEventFilter filter =
+            new DuplicateEventFilter(new Logger(null), target);
+        final int events = 1000;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < events; i++) {
+                filter.onLockEvent(i, i, i, i, 1);
+            }
+        }
+        filter.close();
+        for (int i = 0; i < events; i++) {
+            verify(target).onLockEvent(i, i, i, i, 1);
+            verify(target).onDuplicateLockEvents(i, i, i, i, 1, 2);
+        }
+        verifyNoMoreInteractions(target);
+    }
+
+    @Test
+    public void testFlushWhileCounting() throws Exception {
+        final long[] flushedDuplicates = new long[1];
+        final DuplicateEventFilter filter =
+            new DuplicateEventFilter(new Logger(null),
+                                     new LockEventListenerIfc() {
+                public void onLockEvent(int lockId,
+                                        int lockingContextId,
+                                        int lastTakenLockId,
+                                        int lastTakenLockingContextId,
+                                        int threadId) {
+                }
+
+                public void onDuplicateLockEvents(int lockId,
+                                                  int lockingContextId,
+                                                  int lastTakenLockId,
+                                                  int lastTakenLockingContextId,
+                                                  int threadId,
+                                                  long count) {
+                    flushedDuplicates[0] += count;
+                }
+            });
+        final int events = 100000;
+        final Thread counter = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < events; i++) {
+                        filter.onLockEvent(i % 100, 2, 3, 4, 5);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        counter.start();
+        while (counter.isAlive()) {
+            filter.flush();
+        }
+        filter.close();
+        assertEquals((long) events - 100, flushedDuplicates[0]);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestEnteredMonitorStack {
+    private EnteredMonitorStack mStack;
+
+    @Before
+    public void setUp() {
+        mStack = new EnteredMonitorStack();
+    }
+
+    @Test
+    public void testPushAndRemoveInReverseOrder() {
+        Object a = new Object();
+        Object b = new Object();
+        assertEquals(-1, mStack.getLastTakenIndex());
+        mStack.push(a, 10, 11);
+        mStack.push(b, 20, 21);
+        assertTrue(mStack.contains(a));
+        assertEquals(1, mStack.getLastTakenIndex());
+        assertEquals(20, mStack.getLockId(1));
+        assertEquals(21, mStack.getLockingContextId(1));
+        mStack.remove(b);
+        assertFalse(mStack.contains(b));
+        assertEquals(0, mStack.getLastTakenIndex());
+        mStack.remove(a);
+        assertEquals(0, mStack.size());
+    }
+
+    @Test
+    public void testReentryIsNotLastTaken() {
+        Object a = new Object();
+        Object b = new Object();
+        mStack.push(a, 10, 11);
+        mStack.push(b, 20, 21);
+        mStack.pushReentry(a);
+        assertEquals(1, mStack.getLastTakenIndex());
+        mStack.remove(a);
+        assertTrue(mStack.contains(a));
+        assertEquals(2, mStack.size());
+    }
+
+    @Test
+    public void testRemoveBelowTop() {
+        Object a = new Object();
+        Object b = new Object();
+        mStack.push(a, 10, 11);
+        mStack.push(b, 20, 21);
+        mStack.remove(a);
+        assertEquals(1, mStack.size());
+        assertEquals(20, mStack.getLockId(0));
+        mStack.remove(new Object());
+        assertEquals(1, mStack.size());
+    }
+
+    @Test
+    public void testResolveUnresolved() {
+        Object a = new Object();
+        mStack.pushUnresolved(a, 7);
+        assertTrue(mStack.contains(a));
+        assertEquals(0, mStack.getLastTakenIndex());
+        assertFalse(mStack.isResolved(0));
+        assertEquals(7, mStack.getCallSiteId(0));
+        mStack.resolve(0, 10, 11);
+        assertTrue(mStack.isResolved(0));
+        assertEquals(10, mStack.getLockId(0));
+        assertEquals(11, mStack.getLockingContextId(0));
+    }
+
+    @Test
+    public void testGrow() {
+        for (int i = 0; i < 100; i++) {
+            mStack.push(new Object(), i, i + 1);
+        }
+        assertEquals(100, mStack.size());
+        assertEquals(99, mStack.getLockId(mStack.getLastTakenIndex()));
+        assertEquals(50, mStack.getLockingContextId(49));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.contexts.ContextMemory;
+import com.enea.jcarder.util.Striping;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestLockingContextIdCache {
+
+    private static LockingContext context(int i) {
+        return new LockingContext("lock" + i, "Foo.bar" + i + "()");
+    }
+
+    @Test
+    public void testEqualContextsGetSameId() throws Exception {
+        LockingContextIdCache cache =
+            new LockingContextIdCache(new Logger(null), new ContextMemory());
+        final int id = cache.acquireContextId(context(1));
+        assertEquals(id, cache.acquireContextId(context(1)));
+        assertTrue(id != cache.acquireContextId(context(2)));
+        assertEquals(2, cache.size());
+        assertEquals(0L, cache.getEvictions());
+    }
+
+    @Test
+    public void testBoundedCacheEvicts() throws Exception {
+        final int maxContexts = Striping.getDefaultStripeCount();
+        LockingContextIdCache cache =
+            new LockingContextIdCache(new Logger(null),
+                                      new ContextMemory(),
+                                      maxContexts);
+        final int contexts = 10 * maxContexts;
+        for (int i = 0; i < contexts; i++) {
+            final int id = cache.acquireContextId(context(i));
+            assertEquals(id, cache.acquireContextId(context(i)));
+        }
+        assertTrue(cache.size() <= maxContexts);
+        assertEquals((long) contexts - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    public void testBoundSmallerThanStripeCount() throws Exception {
+        for (int maxContexts = 1; maxContexts <= 3; maxContexts++) {
+            LockingContextIdCache cache =
+                new LockingContextIdCache(new Logger(null),
+                                          new ContextMemory(),
+                                          maxContexts);
+            for (int i = 0; i < 100; i++) {
+                cache.acquireContextId(context(i));
+                assertTrue(cache.size() <= maxContexts);
+            }
+        }
+    }
+
+    @Test
+    public void testEvictionListener() throws Exception {
+        final List<Integer> evicted = new ArrayList<Integer>();
+        LockingContextIdCache cache =
+            new LockingContextIdCache(
+                new Logger(null),
+                new ContextMemory(),
+                1,
+                new LockingContextIdCache.EvictionListener() {
+                    public void contextEvicted(int contextId) {
+                        evicted.add(contextId);
+                    }
+                });
+        final int first = cache.acquireContextId(context(1));
+        cache.acquireContextId(context(2));
+        assertEquals(1, evicted.size());
+        assertEquals(first, evicted.get(0).intValue());
+    }
+}
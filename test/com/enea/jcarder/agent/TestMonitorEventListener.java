@@ -17,6 +17,8 @@
 package com.enea.jcarder.agent;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
@@ -28,9 +30,12 @@ import org.junit.Test;
 import com.enea.jcarder.agent.instrument.ClassTransformer;
 import com.enea.jcarder.agent.instrument.InstrumentConfig;
 import com.enea.jcarder.agent.instrument.TransformClassLoader;
+import com.enea.jcarder.common.Lock;
+import com.enea.jcarder.common.LockingContext;
 import com.enea.jcarder.common.contexts.ContextMemory;
 import com.enea.jcarder.common.events.LockEventListenerIfc;
 import com.enea.jcarder.testclasses.agent.ComparableAlternativeSynchronizationRoutes;
+import com.enea.jcarder.testclasses.agent.ConcurrentLockSynchronization;
 import com.enea.jcarder.testclasses.agent.RepeatMostRecentlySynchronization;
 import com.enea.jcarder.testclasses.agent.RepeatOlderSynchronization;
 import com.enea.jcarder.testclasses.agent.SingleSynchronization;
@@ -41,7 +46,7 @@ import com.enea.jcarder.util.logging.Logger;
 /**
  * The purpose of this junit class is to test the classes:
  *   - MonitorEventListener
- *   - ThreadLocalEnteredMonitors
+ *   - ThreadLocalState
  *
  * But it serves also as an integration test with the MonitorEventListener and
  * the com.enea.jcarder.agent.instrument package. One interesting aspect of the
@@ -92,17 +97,27 @@ public final class TestMonitorEventListener implements LockEventListenerIfc {
                             int lockingContextId,
                             int lastTakenLockId,
                             int lastTakenLockingContextId,
-                            long threadId)
+                            int threadId)
     throws IOException {
         ContextMemory cm = mContextMemory;
         LockEvent event =
             new LockEvent(cm.readLock(lockId),
                           cm.readContext(lockingContextId),
                           cm.readLock(lastTakenLockId),
-                          cm.readContext(lastTakenLockingContextId));
+                          cm.readContext(lastTakenLockingContextId),
+                          cm.readThread(threadId).getName());
         mEvents.add(event);
     }
 
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContextId,
+                                      int threadId,
+                                      long count) {
+        fail("Unexpected duplicate lock events");
+    }
+
     @Test
     public void testRepeatMostRecentlySynchronization() throws Exception {
         testClass(RepeatMostRecentlySynchronization.class);
@@ -119,6 +134,11 @@ public final class TestMonitorEventListener implements LockEventListenerIfc {
         testClass(ComparableAlternativeSynchronizationRoutes.class);
     }
 
+    @Test
+    public void testConcurrentLockSynchronization() throws Exception {
+        testClass(ConcurrentLockSynchronization.class);
+    }
+
     @Test
     public void testSingleSynchronization() throws Exception {
         testClass(SingleSynchronization.class);
@@ -128,4 +148,109 @@ public final class TestMonitorEventListener implements LockEventListenerIfc {
     public void testTwoThreadSynchronization() throws Exception {
         testClass(TwoThreadSynchronization.class);
     }
+
+    @Test
+    public void testThreadRecordsAreBounded() throws Exception {
+        RecordingConfig config = new RecordingConfig();
+        config.setMaxThreadRecords(1);
+        final EventListener listener =
+            new EventListener(new Logger(null), this, mContextMemory, config);
+        final int site = CallSiteRegistry.register(
+            new CallSite("lock", "TestMonitorEventListener.run()", 1));
+        final String[] names = {"first", "second", ""};
+        for (String name : names) {
+            Thread thread = new Thread(name) {
+                public void run() {
+                    try {
+                        Object a = new Object();
+                        Object b = new Object();
+                        listener.beforeMonitorExit(a);
+                        listener.beforeMonitorEnter(a, site);
+                        listener.beforeMonitorEnter(b, site);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertEquals(3, mEvents.size());
+        assertEquals("first", mEvents.get(0).getThreadName());
+        assertEquals(EventListener.OVERFLOW_POOL_NAME,
+                     mEvents.get(1).getThreadName());
+        assertEquals(EventListener.UNNAMED_POOL_NAME,
+                     mEvents.get(2).getThreadName());
+    }
+
+    @Test
+    public void testOutermostMonitorIsResolvedLazily() throws Exception {
+        EventListener listener =
+            new EventListener(new Logger(null), this, mContextMemory);
+        final int site = CallSiteRegistry.register(
+            new CallSite("lock", "TestMonitorEventListener.outer()", 1));
+        Object a = new Object();
+        Object b = new Object();
+        listener.beforeMonitorEnter(a, site);
+        listener.beforeMonitorExit(a);
+        assertEquals(0, listener.getNumberOfKnownLocks());
+        assertEquals(0, listener.getNumberOfKnownContexts());
+        listener.beforeMonitorEnter(a, site);
+        listener.beforeMonitorEnter(b, site);
+        listener.beforeMonitorExit(b);
+        listener.beforeMonitorExit(a);
+        assertEquals(2, listener.getNumberOfKnownLocks());
+        assertEquals(1, mEvents.size());
+        final LockingContext context =
+            new LockingContext("lock", "TestMonitorEventListener.outer()");
+        assertEquals(new LockEvent(new Lock(b),
+                                   context,
+                                   new Lock(a),
+                                   context,
+                                   Thread.currentThread().getName()),
+                     mEvents.get(0));
+    }
+
+    @Test
+    public void testCachedLockId() throws Exception {
+        EventListener listener =
+            new EventListener(new Logger(null), this, mContextMemory);
+        final int site = CallSiteRegistry.register(
+            new CallSite("this", "TestMonitorEventListener.cached()", 1));
+        Object a = new Object();
+        Object b = new Object();
+        listener.beforeMonitorEnter(a, site);
+        final long cachedLockId = listener.beforeMonitorEnter(
+            b, EventListenerIfc.NO_CACHED_LOCK_ID, site);
+        listener.beforeMonitorExit(b);
+        assertTrue(cachedLockId != EventListenerIfc.NO_CACHED_LOCK_ID);
+        assertEquals(cachedLockId,
+                     listener.beforeMonitorEnter(b, cachedLockId, site));
+        listener.beforeMonitorExit(b);
+        listener.beforeMonitorExit(a);
+        assertEquals(2, mEvents.size());
+        assertEquals(mEvents.get(0), mEvents.get(1));
+
+        // A cached lock ID of another listener is not used.
+        EventListener otherListener =
+            new EventListener(new Logger(null), this, mContextMemory);
+        otherListener.beforeMonitorEnter(a, site);
+        assertTrue(cachedLockId
+                   != otherListener.beforeMonitorEnter(b, cachedLockId, site));
+    }
+
+    @Test
+    public void testNoCachedLockIdWhenLocksAreBounded() throws Exception {
+        RecordingConfig config = new RecordingConfig();
+        config.setMaxCachedLocks(10);
+        EventListener listener =
+            new EventListener(new Logger(null), this, mContextMemory, config);
+        final int site = CallSiteRegistry.register(
+            new CallSite("this", "TestMonitorEventListener.bounded()", 1));
+        listener.beforeMonitorEnter(new Object(), site);
+        assertEquals(EventListenerIfc.NO_CACHED_LOCK_ID,
+                     listener.beforeMonitorEnter(
+                         new Object(), EventListenerIfc.NO_CACHED_LOCK_ID,
+                         site));
+    }
 }
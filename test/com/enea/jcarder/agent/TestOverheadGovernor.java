@@ -0,0 +1,113 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestOverheadGovernor {
+    private static final long INTERVAL_NANOS = 10000000;
+    private final Logger mLogger = new Logger(null);
+
+    private static int admitted(OverheadGovernor governor,
+                                ThreadState state,
+                                int callSiteId,
+                                int enters) {
+        int admitted = 0;
+        for (int i = 0; i < enters; i++) {
+            if (governor.admit(state, callSiteId)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Let a thread spend nearly all of an interval recording at a call site.
+     */
+    private static void spendInterval(OverheadGovernor governor,
+                                      ThreadState state,
+                                      int callSiteId) {
+        final long start = System.nanoTime();
+        while (System.nanoTime() - start < 2 * INTERVAL_NANOS) {
+            // Busy wait.
+        }
+        governor.recorded(state, callSiteId, start);
+    }
+
+    @Test
+    public void testAdmitsAllWithinBudget() {
+        OverheadGovernor governor =
+            new OverheadGovernor(mLogger, 0.5, INTERVAL_NANOS);
+        ThreadState state = new ThreadState();
+        assertEquals(100, admitted(governor, state, 0, 100));
+    }
+
+    @Test
+    public void testDisablesHottestSite() {
+        OverheadGovernor governor =
+            new OverheadGovernor(mLogger, 0.01, INTERVAL_NANOS);
+        ThreadState state = new ThreadState();
+        assertTrue(governor.admit(state, 3));
+        spendInterval(governor, state, 3);
+        assertTrue(governor.isDisabled(3));
+        assertFalse(governor.isDisabled(2));
+        assertFalse(governor.admit(state, 3));
+        assertFalse(governor.admit(new ThreadState(), 3));
+    }
+
+    @Test
+    public void testLowersRateWithoutHotSite() throws Exception {
+        OverheadGovernor governor =
+            new OverheadGovernor(mLogger, 0.01, INTERVAL_NANOS);
+        ThreadState state = new ThreadState();
+        assertTrue(governor.admit(state, 1));
+        // Three sites that take about the same time.
+        governor.recorded(state, 1, System.nanoTime() - INTERVAL_NANOS);
+        governor.recorded(state, 2, System.nanoTime() - INTERVAL_NANOS);
+        Thread.sleep(4 * INTERVAL_NANOS / 1000000);
+        governor.recorded(state, 3, System.nanoTime() - INTERVAL_NANOS);
+        assertFalse(governor.isDisabled(1));
+        assertFalse(governor.isDisabled(2));
+        assertFalse(governor.isDisabled(3));
+        assertEquals(50, admitted(governor, state, 1, 100));
+        assertTrue(admitted(governor, new ThreadState(), 1, 100) == 100);
+    }
+
+    @Test
+    public void testBudgetFindsHotSiteAmongMany() {
+        OverheadGovernor.ThreadBudget budget =
+            new OverheadGovernor.ThreadBudget(0);
+        assertEquals(OverheadGovernor.ThreadBudget.NO_SITE,
+                     budget.getHottestSite());
+        for (int i = 0; i < 10000; i++) {
+            budget.add(i, 1);
+            budget.add(42, 2);
+        }
+        assertEquals(42, budget.getHottestSite());
+        assertTrue(2 * budget.getSpentNanos(42) > budget.getSpentNanos());
+        budget.reset(0);
+        assertEquals(OverheadGovernor.ThreadBudget.NO_SITE,
+                     budget.getHottestSite());
+        assertEquals(0L, budget.getSpentNanos(42));
+    }
+}
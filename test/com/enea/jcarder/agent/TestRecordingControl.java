@@ -0,0 +1,153 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static com.enea.jcarder.common.contexts.ContextFileReader.EVENT_DB_FILENAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.enea.jcarder.common.events.EventFileReader;
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestRecordingControl {
+    private final Logger mLogger = new Logger(null);
+    private File mFirstDir;
+    private File mSecondDir;
+    private RecordingControl mControl;
+    private int mCallSiteId;
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile(TestRecordingControl.class.getName(),
+                                       null);
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mFirstDir = createTempDir();
+        mSecondDir = createTempDir();
+        RecordingConfig config = new RecordingConfig();
+        Recording recording = new Recording(mLogger, mFirstDir, config);
+        StaticEventListener.setListener(recording.getEventListener());
+        mControl = new RecordingControl(mLogger, config, recording);
+        mCallSiteId = CallSiteRegistry.register(
+            new CallSite("lock", "TestRecordingControl.enterTwo()", 1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StaticEventListener.setPaused(false);
+        StaticEventListener.setListener(null);
+        delete(mFirstDir);
+        delete(mSecondDir);
+    }
+
+    private void enterTwoMonitors() {
+        Object a = new Object();
+        Object b = new Object();
+        StaticEventListener.beforeMonitorEnter(a, mCallSiteId);
+        StaticEventListener.beforeMonitorEnter(b, mCallSiteId);
+        StaticEventListener.beforeMonitorExit(b);
+        StaticEventListener.beforeMonitorExit(a);
+    }
+
+    private LockEventListenerIfc parseEvents(File dir) throws IOException {
+        LockEventListenerIfc listenerMock = mock(LockEventListenerIfc.class);
+        new EventFileReader(mLogger).parseFile(new File(dir,
+                                                        EVENT_DB_FILENAME),
+                                               listenerMock);
+        return listenerMock;
+    }
+
+    @Test
+    public void testPauseAndResume() {
+        assertFalse(mControl.isPaused());
+        mControl.pause();
+        assertTrue(mControl.isPaused());
+        assertFalse(StaticEventListener.smEnabled);
+        mControl.resume();
+        assertFalse(mControl.isPaused());
+        assertTrue(StaticEventListener.smEnabled);
+    }
+
+    @Test
+    public void testCountersAndFlush() throws Exception {
+        enterTwoMonitors();
+        assertEquals(2L, mControl.getEnteredMonitors());
+        assertEquals(1L, mControl.getWrittenLockEvents());
+        assertEquals(2, mControl.getKnownLocks());
+        assertEquals(1, mControl.getKnownContexts());
+        mControl.flush();
+        LockEventListenerIfc events = parseEvents(mFirstDir);
+        verify(events).onLockEvent(anyInt(), anyInt(), anyInt(), anyInt(),
+                                   anyInt());
+    }
+
+    @Test
+    public void testRotate() throws Exception {
+        enterTwoMonitors();
+        mControl.rotate(mSecondDir.getPath());
+        assertEquals(mSecondDir.getCanonicalPath(),
+                     mControl.getOutputDirectory());
+        assertEquals(0L, mControl.getWrittenLockEvents());
+        verifyZeroInteractions(parseEvents(mSecondDir));
+        enterTwoMonitors();
+        mControl.flush();
+        assertEquals(1L, mControl.getWrittenLockEvents());
+        parseEvents(mFirstDir);
+    }
+
+    @Test
+    public void testCloseAfterRotateClosesCurrentRecording()
+    throws Exception {
+        mControl.rotate(mSecondDir.getPath());
+        enterTwoMonitors();
+        StaticEventListener.setListener(null);
+        mControl.close();
+        verify(parseEvents(mSecondDir)).onLockEvent(anyInt(), anyInt(),
+                                                    anyInt(), anyInt(),
+                                                    anyInt());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRotateAfterCloseFails() throws Exception {
+        mControl.close();
+        mControl.rotate(mSecondDir.getPath());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import org.junit.Test;
+
+import com.enea.jcarder.common.contexts.ContextMemory;
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestRecordingFilter {
+
+    private static int registerSite(String methodWithClass) {
+        return CallSiteRegistry.register(new CallSite("lock",
+                                                      methodWithClass,
+                                                      1));
+    }
+
+    @Test
+    public void testAcceptAll() {
+        RecordingFilter filter = RecordingFilter.ACCEPT_ALL;
+        assertTrue(filter.acceptsThread(Thread.currentThread()));
+        assertFalse(filter.filtersMonitors());
+        assertTrue(filter.acceptsMonitor(new Object(),
+                                         registerSite("a.B.c()")));
+    }
+
+    @Test
+    public void testInvalidFilters() {
+        final String[] invalid = {"thread", "color=red", "class=("};
+        for (String description : invalid) {
+            try {
+                new RecordingFilter(description);
+                fail("Expected IllegalArgumentException: " + description);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testThreadRules() {
+        Thread thread = new Thread(new ThreadGroup("workers"), "worker-1");
+        assertTrue(new RecordingFilter("thread=worker-\\d+")
+                   .acceptsThread(thread));
+        assertTrue(new RecordingFilter("thread=main;thread=worker-.*")
+                   .acceptsThread(thread));
+        assertFalse(new RecordingFilter("thread=main").acceptsThread(thread));
+        assertTrue(new RecordingFilter("group=workers").acceptsThread(thread));
+        assertFalse(new RecordingFilter("thread=worker-1;group=main")
+                    .acceptsThread(thread));
+    }
+
+    @Test
+    public void testClassAndSiteRules() {
+        final int fooSite = registerSite("com.foo.Foo.run()");
+        final int barSite = registerSite("com.bar.Bar.run()");
+        RecordingFilter filter =
+            new RecordingFilter("site=com\\.foo\\..*;class=java\\.lang\\..*");
+        assertTrue(filter.filtersMonitors());
+        for (int i = 0; i < 2; i++) {
+            assertTrue(filter.acceptsMonitor(new Object(), fooSite));
+            assertFalse(filter.acceptsMonitor(new Object(), barSite));
+            assertFalse(filter.acceptsMonitor(new java.util.ArrayList<Object>(),
+                                              fooSite));
+        }
+    }
+
+    @Test
+    public void testFilteredMonitorIsNotLastTaken() throws Exception {
+        LockEventListenerIfc events = mock(LockEventListenerIfc.class);
+        RecordingConfig config = new RecordingConfig();
+        config.setRecordingFilter(
+            new RecordingFilter("class=java\\.lang\\.Object"));
+        EventListener listener = new EventListener(new Logger(null),
+                                                   events,
+                                                   new ContextMemory(),
+                                                   config);
+        final int site = registerSite("com.foo.Foo.run()");
+        Object a = new Object();
+        Object b = new java.util.ArrayList<Object>();
+        Object c = new Object();
+        listener.beforeMonitorEnter(a, site);
+        listener.beforeMonitorEnter(b, site);
+        listener.beforeMonitorEnter(c, site);
+        // The lock IDs are the indices of the locks in the ContextMemory, so
+        // if b had been the last taken monitor it would have got ID 1.
+        final int lockIdOfA = 0;
+        final int lockIdOfC = 1;
+        verify(events).onLockEvent(eq(lockIdOfC),
+                                   anyInt(),
+                                   eq(lockIdOfA),
+                                   anyInt(),
+                                   anyInt());
+        listener.beforeMonitorExit(c);
+        listener.beforeMonitorExit(b);
+        listener.beforeMonitorExit(a);
+
+        LockEventListenerIfc noEvents = mock(LockEventListenerIfc.class);
+        listener = new EventListener(new Logger(null),
+                                     noEvents,
+                                     new ContextMemory(),
+                                     config);
+        listener.setFilter(new RecordingFilter("thread=no such thread"));
+        listener.beforeMonitorEnter(a, site);
+        listener.beforeMonitorEnter(c, site);
+        verifyZeroInteractions(noEvents);
+    }
+}
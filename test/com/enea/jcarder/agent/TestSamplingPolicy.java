@@ -0,0 +1,100 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public final class TestSamplingPolicy {
+
+    private static String sample(SamplingPolicy policy,
+                                 ThreadState state,
+                                 int callSiteId,
+                                 int enters) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < enters; i++) {
+            sb.append(policy.isSampled(state, callSiteId) ? 'x' : '-');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testParse() {
+        assertTrue(SamplingPolicy.parse("all") == SamplingPolicy.RECORD_ALL);
+        assertEquals("fixed:10", SamplingPolicy.parse("fixed:10").toString());
+        assertEquals("adaptive:5:100",
+                     SamplingPolicy.parse("adaptive:5:100").toString());
+        assertEquals("window:100:900",
+                     SamplingPolicy.parse("window:100:900").toString());
+        final String[] invalid =
+            {"", "none", "fixed", "fixed:0", "fixed:x", "adaptive:5",
+             "window:1:2:3"};
+        for (String description : invalid) {
+            try {
+                SamplingPolicy.parse(description);
+                fail("Expected IllegalArgumentException: " + description);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testFixedRate() {
+        SamplingPolicy policy = SamplingPolicy.parse("fixed:3");
+        assertEquals("x--x--x--x", sample(policy, new ThreadState(), 0, 10));
+    }
+
+    @Test
+    public void testAdaptiveRatePerCallSite() {
+        SamplingPolicy policy = SamplingPolicy.parse("adaptive:2:3");
+        ThreadState state = new ThreadState();
+        assertEquals("xx--x--x--x", sample(policy, state, 0, 11));
+        assertEquals("xx--x", sample(policy, state, 100, 5));
+        assertEquals("--x", sample(policy, state, 0, 3));
+    }
+
+    @Test
+    public void testAdaptiveRateWithManySites() {
+        SamplingPolicy policy = SamplingPolicy.parse("adaptive:1:2");
+        ThreadState state = new ThreadState();
+        for (int site = 0; site < 1000; site++) {
+            assertEquals("x", sample(policy, state, 1000000 * site, 1));
+        }
+        for (int site = 0; site < 1000; site++) {
+            assertEquals("-x", sample(policy, state, 1000000 * site, 2));
+        }
+    }
+
+    @Test
+    public void testTimeWindows() {
+        SamplingPolicy alwaysOn =
+            SamplingPolicy.parse("window:" + Integer.MAX_VALUE + ":1");
+        assertTrue(alwaysOn.isSampled(new ThreadState(), 0));
+        SamplingPolicy policy = SamplingPolicy.parse("window:1:1000000");
+        boolean sampled = true;
+        final long end = System.currentTimeMillis() + 10000;
+        while (sampled && System.currentTimeMillis() < end) {
+            sampled = policy.isSampled(new ThreadState(), 0);
+        }
+        assertFalse(sampled);
+    }
+}
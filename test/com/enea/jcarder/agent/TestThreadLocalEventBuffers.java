@@ -0,0 +1,112 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.enea.jcarder.common.events.LockEventListenerIfc;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestThreadLocalEventBuffers
+implements LockEventListenerIfc {
+    private final List<Integer> mReceivedEvents = new ArrayList<Integer>();
+
+    public synchronized void onLockEvent(int lockId,
+                                         int lockingContextId,
+                                         int lastTakenLockId,
+                                         int lastTakenLockingContextId,
+                                         int threadId) {
+        assertEquals(lockId + 1, lockingContextId);
+        assertEquals(lockId + 2, lastTakenLockId);
+        assertEquals(lockId + 3, lastTakenLockingContextId);
+        mReceivedEvents.add(threadId);
+    }
+
+    public void onDuplicateLockEvents(int lockId,
+                                      int lockingContextId,
+                                      int lastTakenLockId,
+                                      int lastTakenLockingContextId,
+                                      int threadId,
+                                      long count) {
+        fail("Unexpected duplicate lock events");
+    }
+
+    @Test
+    public void testAllEventsAreDrainedFromSeveralThreads() throws Exception {
+        final ThreadLocalEventBuffers buffers =
+            new ThreadLocalEventBuffers(new Logger(null), this);
+        final int eventsPerThread = 5000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int threadId = 1000 * i + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < eventsPerThread; j++) {
+                            buffers.onLockEvent(j, j + 1, j + 2, j + 3,
+                                                threadId);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        buffers.close();
+        synchronized (this) {
+            assertEquals(threads.length * eventsPerThread,
+                         mReceivedEvents.size());
+            for (int i = 0; i < threads.length; i++) {
+                int eventsFromThread = 0;
+                for (Integer threadId : mReceivedEvents) {
+                    if (threadId == 1000 * i + i) {
+                        eventsFromThread++;
+                    }
+                }
+                assertEquals(eventsPerThread, eventsFromThread);
+            }
+        }
+    }
+
+    @Test
+    public void testEventsKeepTheirOrderWhenTheBufferGrows()
+    throws Exception {
+        final ThreadLocalEventBuffers buffers =
+            new ThreadLocalEventBuffers(new Logger(null), this);
+        final int events = 1000;
+        for (int i = 0; i < events; i++) {
+            buffers.onLockEvent(0, 1, 2, 3, i);
+        }
+        buffers.close();
+        synchronized (this) {
+            assertEquals(events, mReceivedEvents.size());
+            for (int i = 0; i < events; i++) {
+                assertEquals(i, mReceivedEvents.get(i).intValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestThreadNameNormalizer {
+    @Test
+    public void testPoolRules() {
+        ThreadNameNormalizer normalizer =
+            new ThreadNameNormalizer(ThreadNameNormalizer.POOL_RULES_NAME);
+        assertEquals("pool-7-thread-*",
+                     normalizer.normalize("pool-7-thread-312"));
+        assertNull(normalizer.normalize("main"));
+        assertNull(normalizer.normalize("my-pool-7-thread-312"));
+    }
+
+    @Test
+    public void testFirstMatchingRuleIsUsed() {
+        ThreadNameNormalizer normalizer =
+            new ThreadNameNormalizer("grpc-worker-ELG-(\\d+)-\\d+=grpc-$1;"
+                                     + "(.*)-\\d+=$1-*");
+        assertEquals("grpc-1",
+                     normalizer.normalize("grpc-worker-ELG-1-17"));
+        assertEquals("Thread-*", normalizer.normalize("Thread-3"));
+        assertNull(normalizer.normalize("main"));
+    }
+
+    @Test
+    public void testPoolRulesWithOtherRules() {
+        ThreadNameNormalizer normalizer =
+            new ThreadNameNormalizer("worker-\\d+=worker-*;pools");
+        assertEquals("worker-*", normalizer.normalize("worker-3"));
+        assertEquals("pool-1-thread-*",
+                     normalizer.normalize("pool-1-thread-2"));
+    }
+
+    @Test
+    public void testNoNamesAreRewrittenByDefault() {
+        assertNull(new RecordingConfig().getThreadNameNormalizer()
+                   .normalize("pool-1-thread-1"));
+    }
+
+    @Test
+    public void testNoRules() {
+        assertNull(new ThreadNameNormalizer().normalize("pool-1-thread-1"));
+        assertNull(new ThreadNameNormalizer("").normalize("pool-1-thread-1"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMissingReplacement() {
+        new ThreadNameNormalizer("pool-\\d+");
+    }
+}
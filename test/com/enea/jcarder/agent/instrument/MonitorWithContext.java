@@ -21,19 +21,23 @@ import com.enea.jcarder.common.LockingContext;
 public final class MonitorWithContext {
     private final Object mMonitor;
     private final LockingContext mContext;
+    private final Thread mThread;
 
     public MonitorWithContext(Object monitor,
-                       LockingContext context) {
-        mMonitor = monitor;
-        mContext = context;
+                              String method,
+                              String lockReference,
+                              Thread thread) {
+        this(monitor, method, lockReference, false, thread);
     }
 
     public MonitorWithContext(Object monitor,
                               String method,
                               String lockReference,
+                              boolean shared,
                               Thread thread) {
         mMonitor = monitor;
-        mContext = new LockingContext(thread, lockReference, method);
+        mContext = new LockingContext(lockReference, method, shared);
+        mThread = thread;
     }
 
     public static MonitorWithContext[] create(Object monitor,
@@ -82,12 +86,15 @@ public final class MonitorWithContext {
                 return false;
         } else if (!this.mMonitor.equals(other.mMonitor))
             return false;
+        if (this.mThread != other.mThread)
+            return false;
         return true;
     }
 
     public String toString() {
         return "Monitor: " + System.identityHashCode(mMonitor)
-                + " " + mContext.toString();
+                + " " + mContext.toString()
+                + " Thread: " + mThread.getName();
     }
 
     public LockingContext getContext() {
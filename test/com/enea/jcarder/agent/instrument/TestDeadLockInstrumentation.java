@@ -18,17 +18,24 @@ package com.enea.jcarder.agent.instrument;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.CallSiteRegistry;
 import com.enea.jcarder.agent.EventListenerIfc;
 import com.enea.jcarder.agent.StaticEventListener;
-import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.testclasses.instrumentation.LockedReadWriteLock;
+import com.enea.jcarder.testclasses.instrumentation.LockedReentrantLock;
 import com.enea.jcarder.testclasses.instrumentation.SynchronizationTestIfc;
 import com.enea.jcarder.testclasses.instrumentation.SynchronizedArray;
 import com.enea.jcarder.testclasses.instrumentation.SynchronizedClass;
@@ -65,6 +72,10 @@ import com.enea.jcarder.util.logging.Logger;
  */
 public final class TestDeadLockInstrumentation implements EventListenerIfc {
     private final ArrayList<MonitorWithContext> mEnteredMonitors;
+    private int mNumberOfExitedMonitors;
+    private final ArrayList<Long> mCachedLockIds = new ArrayList<Long>();
+    private final ArrayList<String> mLockedFields = new ArrayList<String>();
+    private boolean mMonitorsMayBeHeld;
 
     private final TransformClassLoader mClassLoader;
 
@@ -78,20 +89,21 @@ public final class TestDeadLockInstrumentation implements EventListenerIfc {
         mEnteredMonitors = new ArrayList<MonitorWithContext>();
     }
 
-    private SynchronizationTestIfc transformAsSynchronizationTest(Class clazz)
-    throws Exception {
-        Class c = mClassLoader.transform(clazz);
+    private SynchronizationTestIfc transformAsSynchronizationTest(
+        Class<?> clazz) throws Exception {
+        Class<?> c = mClassLoader.transform(clazz);
         return (SynchronizationTestIfc) c.newInstance();
     }
 
-    private void testClass(Class clazz) throws Exception {
+    private void testClass(Class<?> clazz) throws Exception {
         SynchronizationTestIfc test = transformAsSynchronizationTest(clazz);
         test.go();
         assertEquals(test.getExpectedMonitorEnterings(),
                      mEnteredMonitors.toArray());
+        assertEquals(mEnteredMonitors.size(), mNumberOfExitedMonitors);
     }
 
-    public void beforeMonitorEnter(Object monitor, LockingContext context) {
+    public void beforeMonitorEnter(Object monitor, int callSiteId) {
         // onMonitorEnter shall be invoked BEFORE the look is taken
         // in order to be able to generate the event even if the
         // lock can never be taken and the thread is blocked forever.
@@ -99,20 +111,181 @@ public final class TestDeadLockInstrumentation implements EventListenerIfc {
         // for possible deadlocks and not for deadlocks that acctually
         // occured.
         if (monitor != null) {
-            assertFalse(Thread.holdsLock(monitor));
-            mEnteredMonitors.add(new MonitorWithContext(monitor, context));
+            if (!mMonitorsMayBeHeld) {
+                assertFalse(Thread.holdsLock(monitor));
+            }
+            final CallSite site = CallSiteRegistry.getSite(callSiteId);
+            mLockedFields.add(site.getLockedField());
+            mEnteredMonitors.add(
+                new MonitorWithContext(monitor,
+                                       site.getMethodWithClass(),
+                                       site.getLockReference(),
+                                       Thread.currentThread()));
+        }
+    }
+
+    public long beforeMonitorEnter(Object monitor,
+                                   long cachedLockId,
+                                   int callSiteId) {
+        beforeMonitorEnter(monitor, callSiteId);
+        mCachedLockIds.add(cachedLockId);
+        return cachedLockId + 1;
+    }
+
+    public void beforeMonitorExit(Object monitor) {
+        // beforeMonitorExit shall be invoked BEFORE the lock is released.
+        if (monitor != null) {
+            assertTrue(Thread.holdsLock(monitor));
+            mNumberOfExitedMonitors++;
+        }
+    }
+
+    public void beforeLockAcquire(Object lock,
+                                  boolean shared,
+                                  int callSiteId) {
+        if (lock instanceof ReentrantLock) {
+            assertFalse(((ReentrantLock) lock).isHeldByCurrentThread());
+        }
+        addEnteredLock(lock, shared, callSiteId);
+    }
+
+    public void afterLockAcquired(Object lock,
+                                  boolean shared,
+                                  int callSiteId) {
+        if (lock instanceof ReentrantLock) {
+            assertTrue(((ReentrantLock) lock).isHeldByCurrentThread());
         }
+        addEnteredLock(lock, shared, callSiteId);
+    }
+
+    private void addEnteredLock(Object lock, boolean shared, int callSiteId) {
+        final CallSite site = CallSiteRegistry.getSite(callSiteId);
+        mEnteredMonitors.add(new MonitorWithContext(lock,
+                                                    site.getMethodWithClass(),
+                                                    site.getLockReference(),
+                                                    shared,
+                                                    Thread.currentThread()));
+    }
+
+    public void beforeLockRelease(Object lock) {
+        if (lock instanceof ReentrantLock) {
+            assertTrue(((ReentrantLock) lock).isHeldByCurrentThread());
+        }
+        mNumberOfExitedMonitors++;
     }
 
     @Before
     public void setUp() throws Exception {
         mEnteredMonitors.clear();
+        mNumberOfExitedMonitors = 0;
+        mCachedLockIds.clear();
+        mLockedFields.clear();
+        mMonitorsMayBeHeld = false;
     }
 
     @After
     public void tearDown() throws Exception {
     }
 
+    @Test
+    public void testNoCallbacksWhilePaused() throws Exception {
+        SynchronizationTestIfc test =
+            transformAsSynchronizationTest(SynchronizedMethod.class);
+        StaticEventListener.setPaused(true);
+        try {
+            assertFalse(StaticEventListener.smEnabled);
+            test.go();
+        } finally {
+            StaticEventListener.setPaused(false);
+        }
+        assertTrue(StaticEventListener.smEnabled);
+        assertEquals(0, mEnteredMonitors.size());
+        assertEquals(0, mNumberOfExitedMonitors);
+    }
+
+    @Test
+    public void testExcludedMethodIsNotInstrumented() throws Exception {
+        InstrumentConfig config = new InstrumentConfig();
+        config.setInstrumentFilter(new InstrumentFilter(
+            "exclude=" + SynchronizedMethod.class.getName() + ".help()"));
+        TransformClassLoader classLoader = new TransformClassLoader(
+            new ClassTransformer(new Logger(null), new File("."), config));
+        Class<?> c = classLoader.transform(SynchronizedMethod.class);
+        ((SynchronizationTestIfc) c.newInstance()).go();
+        assertEquals(0, mEnteredMonitors.size());
+        assertEquals(0, mNumberOfExitedMonitors);
+    }
+
+    @Test
+    public void testRetransformableClassKeepsFieldsAndModifiers()
+    throws Exception {
+        InstrumentConfig config = new InstrumentConfig();
+        config.setRetransformable(true);
+        TransformClassLoader classLoader = new TransformClassLoader(
+            new ClassTransformer(new Logger(null), new File("."), config));
+        Class<?> c = classLoader.transform(SynchronizedMethod.class);
+        assertTrue(Modifier.isSynchronized(
+            c.getMethod("help").getModifiers()));
+        assertEquals(SynchronizedMethod.class.getDeclaredFields().length,
+                     c.getDeclaredFields().length);
+
+        // The synchronized method has taken the monitor before the
+        // simulated monitor enter reports it.
+        mMonitorsMayBeHeld = true;
+        SynchronizationTestIfc test = (SynchronizationTestIfc) c.newInstance();
+        test.go();
+        assertEquals(test.getExpectedMonitorEnterings(),
+                     mEnteredMonitors.toArray());
+        assertEquals(1, mNumberOfExitedMonitors);
+        assertEquals(0, mCachedLockIds.size());
+    }
+
+    private void testCachedLockIds(Class<?> clazz, Long[] expected)
+    throws Exception {
+        SynchronizationTestIfc test = transformAsSynchronizationTest(clazz);
+        test.go();
+        test.go();
+        assertEquals(expected, mCachedLockIds.toArray());
+        assertEquals(2, mNumberOfExitedMonitors);
+    }
+
+    @Test
+    public void testThisCachesLockId() throws Exception {
+        testCachedLockIds(SynchronizedThis.class, new Long[] {0L, 1L});
+    }
+
+    @Test
+    public void testSynchronizedMethodCachesLockId() throws Exception {
+        testCachedLockIds(SynchronizedMethod.class, new Long[] {0L, 1L});
+    }
+
+    @Test
+    public void testSynchronizedStaticMethodCachesLockId() throws Exception {
+        testCachedLockIds(SynchronizedStaticMethod.class,
+                          new Long[] {0L, 1L});
+    }
+
+    @Test
+    public void testFieldDoesNotCacheLockId() throws Exception {
+        testCachedLockIds(SynchronizedField.class, new Long[0]);
+    }
+
+    private String getLockedField(Class<?> clazz) throws Exception {
+        setUp();
+        testClass(clazz);
+        assertEquals(1, mLockedFields.size());
+        return mLockedFields.get(0);
+    }
+
+    @Test
+    public void testLockedFieldIsRecorded() throws Exception {
+        assertEquals(SynchronizedField.class.getName() + ".mSync",
+                     getLockedField(SynchronizedField.class));
+        assertEquals(SynchronizedStaticField.class.getName() + ".mSync",
+                     getLockedField(SynchronizedStaticField.class));
+        assertNull(getLockedField(SynchronizedFromMethod.class));
+    }
+
     @Test
     public void testSynchronizedField() throws Exception {
         testClass(SynchronizedField.class);
@@ -234,6 +407,16 @@ public final class TestDeadLockInstrumentation implements EventListenerIfc {
         testClass(SynchronizedMethodWithException.class);
     }
 
+    @Test
+    public void testLockedReentrantLock() throws Exception {
+        testClass(LockedReentrantLock.class);
+    }
+
+    @Test
+    public void testLockedReadWriteLock() throws Exception {
+        testClass(LockedReadWriteLock.class);
+    }
+
     @Test
     public void testSynchronizedNewObject() throws Exception {
         SynchronizationTestIfc test =
@@ -250,8 +433,8 @@ public final class TestDeadLockInstrumentation implements EventListenerIfc {
         // TODO Auto-generated method stub
     }
 
-    public void accessStaticField(Class owner, int fieldId, boolean isVolatile,
-                                  boolean writeAccess) {
+    public void accessStaticField(Class<?> owner, int fieldId,
+                                  boolean isVolatile, boolean writeAccess) {
         // TODO Auto-generated method stub
     }
 
@@ -264,7 +447,7 @@ public final class TestDeadLockInstrumentation implements EventListenerIfc {
         // TODO Auto-generated method stub
     }
 
-    public void classInitialized(Class clazz) {
+    public void classInitialized(Class<?> clazz) {
         // TODO Auto-generated method stub
     }
 
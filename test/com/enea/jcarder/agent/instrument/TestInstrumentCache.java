@@ -0,0 +1,105 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.CallSiteRegistry;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestInstrumentCache {
+    private static final byte[] ORIGINAL = {1, 2, 3};
+    private static final byte[] INSTRUMENTED = {4, 5, 6, 7};
+    private final Logger mLogger = new Logger(null);
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile(TestInstrumentCache.class.getName(), null);
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        InstrumentCache cache = new InstrumentCache(mLogger, mDir, "1");
+        assertNull(cache.get("a.B", ORIGINAL));
+        cache.put("a.B", ORIGINAL, INSTRUMENTED);
+        assertTrue(Arrays.equals(INSTRUMENTED, cache.get("a.B", ORIGINAL)));
+        assertNull(cache.get("a.C", ORIGINAL));
+        assertNull(cache.get("a.B", new byte[] {1, 2}));
+        assertNull(new InstrumentCache(mLogger, mDir, "2").get("a.B",
+                                                               ORIGINAL));
+    }
+
+    @Test
+    public void testCallSitesAreShared() throws IOException {
+        InstrumentCache cache = new InstrumentCache(mLogger, mDir, "1");
+        final CallSite site = new CallSite("a.B.mLock",
+                                           "TestInstrumentCache.shared()",
+                                           1,
+                                           "a.B.mLock");
+        final int id = CallSiteRegistry.register(site);
+        cache.put("a.B", ORIGINAL, INSTRUMENTED);
+        assertTrue(new File(mDir, InstrumentCache.SITE_TABLE_FILENAME).length()
+                   > 0);
+
+        // A cache that is opened later registers the same call sites, with
+        // the same IDs, and finds the class.
+        cache = new InstrumentCache(mLogger, mDir, "1");
+        assertEquals(id, CallSiteRegistry.register(site));
+        assertTrue(Arrays.equals(INSTRUMENTED, cache.get("a.B", ORIGINAL)));
+    }
+
+    @Test
+    public void testDivergedCallSites() throws IOException {
+        CallSiteRegistry.register(
+            new CallSite("this", "TestInstrumentCache.registered()", 1));
+        File tableFile = new File(mDir, InstrumentCache.SITE_TABLE_FILENAME);
+        DataOutputStream table =
+            new DataOutputStream(new FileOutputStream(tableFile));
+        table.writeUTF("this");
+        table.writeUTF("TestInstrumentCache.diverged()");
+        table.writeInt(1);
+        table.writeUTF("");
+        table.close();
+        InstrumentCache cache = new InstrumentCache(mLogger, mDir, "1");
+        cache.put("a.B", ORIGINAL, INSTRUMENTED);
+        assertNull(cache.get("a.B", ORIGINAL));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public final class TestInstrumentFilter {
+
+    @Test
+    public void testDefaultRules() {
+        InstrumentFilter filter = InstrumentFilter.DEFAULT;
+        assertNotNull(filter.getExclusionReason("java.lang.Object"));
+        assertNotNull(filter.getExclusionReason("javax.naming.Context"));
+        assertNotNull(filter.getExclusionReason("sun.misc.Unsafe"));
+        assertNull(filter.getExclusionReason("java.awt.Component"));
+        assertNull(filter.getExclusionReason("javax.swing.JFrame"));
+        assertNull(filter.getExclusionReason("com.enea.Foo"));
+        assertTrue(filter.isMethodIncluded("com.enea.Foo", "bar"));
+    }
+
+    @Test
+    public void testInvalidRules() {
+        final String[] invalid = {"com.enea.*",
+                                  "color=com.enea.*",
+                                  "include=",
+                                  "exclude=bar()"};
+        for (String description : invalid) {
+            try {
+                new InstrumentFilter(description);
+                fail("Expected IllegalArgumentException: " + description);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testMostSpecificRuleWins() {
+        InstrumentFilter filter =
+            new InstrumentFilter("exclude=org.*;"
+                                 + "include=org.foo.*;"
+                                 + "exclude=org.foo.Bar;"
+                                 + "include=org.foo.Ba*;"
+                                 + "include=java.util.*");
+        assertNotNull(filter.getExclusionReason("org.Top"));
+        assertNull(filter.getExclusionReason("org.foo.Baz"));
+        assertNull(filter.getExclusionReason("org.foo.sub.Baz"));
+        assertNotNull(filter.getExclusionReason("org.foo.Bar"));
+        assertNotNull(filter.getExclusionReason("org.foo.Bar$Inner"));
+        assertNull(filter.getExclusionReason("org.foo.BarBaz"));
+        assertNull(filter.getExclusionReason("java.util.HashMap"));
+        assertNotNull(filter.getExclusionReason("java.lang.Object"));
+    }
+
+    @Test
+    public void testLaterRuleWins() {
+        InstrumentFilter filter =
+            new InstrumentFilter("exclude=org.*;include=org.*");
+        assertNull(filter.getExclusionReason("org.Foo"));
+    }
+
+    @Test
+    public void testMethodRules() {
+        InstrumentFilter filter =
+            new InstrumentFilter("exclude=org.foo.Bar.run();"
+                                 + "exclude=org.*;"
+                                 + "include=org.foo.Baz.run()");
+        assertNotNull(filter.getExclusionReason("org.foo.Bar"));
+        assertFalse(filter.isMethodIncluded("org.foo.Bar", "run"));
+        assertNull(filter.getExclusionReason("org.foo.Baz"));
+        assertTrue(filter.isMethodIncluded("org.foo.Baz", "run"));
+        assertFalse(filter.isMethodIncluded("org.foo.Baz", "stop"));
+
+        filter = new InstrumentFilter("exclude=com.enea.Foo.bar()");
+        assertNull(filter.getExclusionReason("com.enea.Foo"));
+        assertFalse(filter.isMethodIncluded("com.enea.Foo", "bar"));
+        assertTrue(filter.isMethodIncluded("com.enea.Foo", "baz"));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import com.enea.jcarder.testclasses.instrumentation.LockedReadWriteLock;
+import com.enea.jcarder.testclasses.instrumentation.LockedReentrantLock;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedClass;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedField;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethod;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethodWithDoubleReturn;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethodWithException;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethodWithLongReturn;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedStaticMethod;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedThis;
+import com.enea.jcarder.util.logging.Logger;
+
+/*
+ * The purpose of this junit class is to test that the instrumenting adapters
+ * declare large enough maximum stack sizes, since they are not recomputed.
+ */
+public final class TestMaxStack {
+    private final ClassTransformer mTransformer =
+        new ClassTransformer(new Logger(null),
+                             new File("."),
+                             new InstrumentConfig());
+
+    private static byte[] getClassBytes(Class<?> clazz) throws IOException {
+        final String resource = clazz.getName().replace('.', '/') + ".class";
+        final InputStream in =
+            clazz.getClassLoader().getResourceAsStream(resource);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static ArrayList<Integer> getMaxStacks(byte[] classBuffer) {
+        final ArrayList<Integer> maxStacks = new ArrayList<Integer>();
+        new ClassReader(classBuffer).accept(new EmptyVisitor() {
+            public MethodVisitor visitMethod(int access,
+                                             String name,
+                                             String desc,
+                                             String signature,
+                                             String[] exceptions) {
+                return this;
+            }
+
+            public void visitMaxs(int maxStack, int maxLocals) {
+                maxStacks.add(maxStack);
+            }
+        }, false);
+        return maxStacks;
+    }
+
+    private static byte[] recomputeMaxs(byte[] classBuffer) {
+        final ClassWriter writer = new ClassWriter(true);
+        new ClassReader(classBuffer).accept(writer, false);
+        return writer.toByteArray();
+    }
+
+    private void testClass(Class<?> clazz) throws Exception {
+        final byte[] instrumented =
+            mTransformer.transform(clazz.getClassLoader(),
+                                   clazz.getName().replace('.', '/'),
+                                   null,
+                                   null,
+                                   getClassBytes(clazz));
+        final ArrayList<Integer> declared = getMaxStacks(instrumented);
+        final ArrayList<Integer> needed =
+            getMaxStacks(recomputeMaxs(instrumented));
+        for (int i = 0; i < declared.size(); i++) {
+            assertTrue(clazz.getName() + " method " + i + ": "
+                       + declared.get(i) + " < " + needed.get(i),
+                       declared.get(i) >= needed.get(i));
+        }
+    }
+
+    @Test
+    public void testMaxStacks() throws Exception {
+        final Class<?>[] classes = {LockedReadWriteLock.class,
+                                 LockedReentrantLock.class,
+                                 SynchronizedClass.class,
+                                 SynchronizedField.class,
+                                 SynchronizedMethod.class,
+                                 SynchronizedMethodWithDoubleReturn.class,
+                                 SynchronizedMethodWithException.class,
+                                 SynchronizedMethodWithLongReturn.class,
+                                 SynchronizedStaticMethod.class,
+                                 SynchronizedThis.class};
+        for (Class<?> clazz : classes) {
+            testClass(clazz);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import com.enea.jcarder.testclasses.instrumentation.LockedReentrantLock;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethod;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedThis;
+
+public final class TestMonitorScanner {
+
+    static final class NoMonitors {
+        private long mValue;
+        private static final String NAME = "NoMonitors";
+        private static final double RATIO = 0.5;
+
+        long add(long value) {
+            mValue += value;
+            return mValue;
+        }
+
+        String describe() {
+            return NAME + RATIO + mValue;
+        }
+
+        static native synchronized void nativeMethod();
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws IOException {
+        final String resource = clazz.getName().replace('.', '/') + ".class";
+        return readFully(
+            clazz.getClassLoader().getResourceAsStream(resource));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testClassWithoutMonitors() throws IOException {
+        assertFalse(MonitorScanner.mayHaveMonitors(
+            getClassBytes(NoMonitors.class)));
+    }
+
+    @Test
+    public void testSynchronizedBlock() throws IOException {
+        assertTrue(MonitorScanner.mayHaveMonitors(
+            getClassBytes(SynchronizedThis.class)));
+    }
+
+    @Test
+    public void testSynchronizedMethod() throws IOException {
+        assertTrue(MonitorScanner.mayHaveMonitors(
+            getClassBytes(SynchronizedMethod.class)));
+    }
+
+    @Test
+    public void testConcurrentLock() throws IOException {
+        assertTrue(MonitorScanner.mayHaveMonitors(
+            getClassBytes(LockedReentrantLock.class)));
+    }
+
+    @Test
+    public void testTruncatedClass() throws IOException {
+        final byte[] bytes = getClassBytes(NoMonitors.class);
+        final byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertTrue(MonitorScanner.mayHaveMonitors(truncated));
+    }
+
+    /**
+     * @return Whether ASM finds something to instrument in a class: a
+     *         synchronized method that is not native, a MONITORENTER
+     *         instruction or a call to a java.util.concurrent lock class.
+     */
+    private static boolean asmFindsMonitors(byte[] classBuffer) {
+        final boolean[] found = {false};
+        new ClassReader(classBuffer).accept(new EmptyVisitor() {
+            public MethodVisitor visitMethod(int access,
+                                             String name,
+                                             String desc,
+                                             String signature,
+                                             String[] exceptions) {
+                if ((access & Opcodes.ACC_SYNCHRONIZED) != 0
+                    && (access & Opcodes.ACC_NATIVE) == 0) {
+                    found[0] = true;
+                }
+                return this;
+            }
+
+            public void visitInsn(int opCode) {
+                if (opCode == Opcodes.MONITORENTER) {
+                    found[0] = true;
+                }
+            }
+
+            public void visitMethodInsn(int opCode,
+                                        String owner,
+                                        String name,
+                                        String desc) {
+                if (owner.startsWith("java/util/concurrent/locks/")) {
+                    found[0] = true;
+                }
+            }
+        }, true);
+        return found[0];
+    }
+
+    /**
+     * Add the classes of the class path, from both directories and jar
+     * files, to a map from their file names.
+     */
+    private static void addClassPathClasses(Map<String, byte[]> classes)
+    throws IOException {
+        final String classPath = System.getProperty("java.class.path");
+        for (String entry : classPath.split(File.pathSeparator)) {
+            final File file = new File(entry);
+            if (file.isDirectory()) {
+                addDirectoryClasses(file, classes);
+            } else if (file.getName().endsWith(".jar") && file.isFile()) {
+                final JarFile jar = new JarFile(file);
+                try {
+                    final Enumeration<JarEntry> entries = jar.entries();
+                    while (entries.hasMoreElements()) {
+                        final JarEntry jarEntry = entries.nextElement();
+                        if (jarEntry.getName().endsWith(".class")) {
+                            classes.put(
+                                jarEntry.getName(),
+                                readFully(jar.getInputStream(jarEntry)));
+                        }
+                    }
+                } finally {
+                    jar.close();
+                }
+            }
+        }
+    }
+
+    private static void addDirectoryClasses(File directory,
+                                            Map<String, byte[]> classes)
+    throws IOException {
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                addDirectoryClasses(file, classes);
+            } else if (file.getName().endsWith(".class")) {
+                classes.put(file.getPath(),
+                            readFully(new FileInputStream(file)));
+            }
+        }
+    }
+
+    /**
+     * The scanner may report monitors in a class that has none, but it must
+     * never miss a class in which ASM finds something to instrument.
+     */
+    @Test
+    public void testAgreesWithAsm() throws IOException {
+        final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        addClassPathClasses(classes);
+        int compared = 0;
+        int skipped = 0;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            final byte[] classBuffer = entry.getValue();
+            final boolean asmFound;
+            try {
+                asmFound = asmFindsMonitors(classBuffer);
+            } catch (RuntimeException e) {
+                // A class file that ASM 2 can't read.
+                continue;
+            }
+            final boolean scannerFound =
+                MonitorScanner.mayHaveMonitors(classBuffer);
+            if (asmFound) {
+                assertTrue(entry.getKey(), scannerFound);
+            } else if (!scannerFound) {
+                skipped++;
+            }
+            compared++;
+        }
+        assertTrue("Compared " + compared + " classes", compared > 100);
+        assertTrue("Skipped " + skipped + " classes", skipped > 0);
+    }
+
+    @Test
+    public void testFindClassAttribute() throws IOException {
+        final byte[] classBytes = getClassBytes(SynchronizedThis.class);
+        assertTrue(MonitorScanner.findClassAttribute(
+            classBytes, "SourceFile".getBytes()) > 0);
+        assertEquals(-1, MonitorScanner.findClassAttribute(
+            classBytes, "com.enea.jcarder".getBytes()));
+    }
+}
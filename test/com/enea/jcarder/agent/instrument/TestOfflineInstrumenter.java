@@ -0,0 +1,279 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.agent.instrument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.enea.jcarder.agent.CallSite;
+import com.enea.jcarder.agent.EventListenerIfc;
+import com.enea.jcarder.agent.StaticEventListener;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizationTestIfc;
+import com.enea.jcarder.testclasses.instrumentation.SynchronizedMethod;
+import com.enea.jcarder.util.logging.Logger;
+
+public final class TestOfflineInstrumenter {
+    private static final String CLASS_PATH =
+        SynchronizedMethod.class.getName().replace('.', '/') + ".class";
+    private static final byte[] RESOURCE = {1, 2, 3};
+    private final Logger mLogger = new Logger(null);
+    private File mDir;
+    private byte[] mOriginalClass;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile(TestOfflineInstrumenter.class.getName(),
+                                   null);
+        mDir.delete();
+        mDir.mkdir();
+        mOriginalClass = readFully(
+            getClass().getClassLoader().getResourceAsStream(CLASS_PATH));
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    private OfflineInstrumenter createInstrumenter() throws IOException {
+        return new OfflineInstrumenter(mLogger,
+                                       new InstrumentConfig(),
+                                       new File(mDir, "cache"),
+                                       2);
+    }
+
+    private void assertInstrumented(byte[] instrumentedClass)
+    throws Exception {
+        final int attributePos = InstrumentedAttribute.find(instrumentedClass);
+        assertTrue(attributePos >= 0);
+        assertTrue(InstrumentedAttribute.hasRegisteredCallSites(
+            instrumentedClass, attributePos));
+
+        // The agent loads the instrumented class as it is.
+        final ClassTransformer transformer =
+            new ClassTransformer(mLogger, mDir, new InstrumentConfig());
+        final ClassLoader loader = getClass().getClassLoader();
+        assertNull(transformer.transform(loader, CLASS_PATH, null, null,
+                                         instrumentedClass));
+        assertNotNull(transformer.transform(loader, CLASS_PATH, null, null,
+                                            mOriginalClass));
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        final File input = new File(mDir, "classes");
+        write(new File(input, CLASS_PATH), mOriginalClass);
+        write(new File(input, "resource.bin"), RESOURCE);
+        final File output = new File(mDir, "instrumented");
+        final OfflineInstrumenter instrumenter = createInstrumenter();
+        instrumenter.instrument(input, output);
+        instrumenter.close();
+
+        assertEquals(1, instrumenter.getClasses());
+        assertEquals(1, instrumenter.getInstrumentedClasses());
+        assertEquals(0, instrumenter.getFailedClasses());
+        assertTrue(Arrays.equals(RESOURCE, readFully(new FileInputStream(
+            new File(output, "resource.bin")))));
+        assertInstrumented(readFully(new FileInputStream(
+            new File(output, CLASS_PATH))));
+    }
+
+    @Test
+    public void testJar() throws Exception {
+        final File input = new File(mDir, "classes.jar");
+        final ZipOutputStream out =
+            new ZipOutputStream(new FileOutputStream(input));
+        out.putNextEntry(new ZipEntry("META-INF/SIGNER.SF"));
+        out.write(RESOURCE);
+        out.putNextEntry(new ZipEntry(CLASS_PATH));
+        out.write(mOriginalClass);
+        out.putNextEntry(new ZipEntry("resource.bin"));
+        out.write(RESOURCE);
+        out.close();
+        final File output = new File(mDir, "instrumented.jar");
+        final OfflineInstrumenter instrumenter = createInstrumenter();
+        instrumenter.instrument(input, output);
+        instrumenter.close();
+
+        assertEquals(1, instrumenter.getInstrumentedClasses());
+        final ZipFile jar = new ZipFile(output);
+        try {
+            assertNull(jar.getEntry("META-INF/SIGNER.SF"));
+            assertTrue(Arrays.equals(RESOURCE, readFully(
+                jar.getInputStream(jar.getEntry("resource.bin")))));
+            assertInstrumented(readFully(
+                jar.getInputStream(jar.getEntry(CLASS_PATH))));
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Test
+    public void testInstrumentedClassIsNotInstrumentedAgain()
+    throws Exception {
+        final File input = new File(mDir, "classes");
+        write(new File(input, CLASS_PATH), mOriginalClass);
+        final File once = new File(mDir, "once");
+        final File twice = new File(mDir, "twice");
+        final OfflineInstrumenter instrumenter = createInstrumenter();
+        instrumenter.instrument(input, once);
+        instrumenter.instrument(once, twice);
+        instrumenter.close();
+
+        assertEquals(1, instrumenter.getInstrumentedClasses());
+        final byte[] instrumentedClass = readFully(
+            new FileInputStream(new File(once, CLASS_PATH)));
+        assertFalse(Arrays.equals(mOriginalClass, instrumentedClass));
+        assertTrue(Arrays.equals(instrumentedClass, readFully(
+            new FileInputStream(new File(twice, CLASS_PATH)))));
+    }
+
+    /**
+     * Make an instrumented class look as if it was instrumented by a JVM
+     * where its call sites have other IDs, by moving the line number of each
+     * call site that its attribute lists.
+     */
+    private static byte[] moveCallSites(byte[] instrumentedClass) {
+        final byte[] foreignClass = instrumentedClass.clone();
+        int pos = InstrumentedAttribute.find(foreignClass);
+        final int count = readInt(foreignClass, pos);
+        pos += 4;
+        for (int i = 0; i < count; i++) {
+            pos += 4;
+            pos += 2 + readUnsignedShort(foreignClass, pos);
+            pos += 2 + readUnsignedShort(foreignClass, pos);
+            writeInt(foreignClass, pos, readInt(foreignClass, pos) + 1000);
+            pos += 4;
+            pos += 2 + readUnsignedShort(foreignClass, pos);
+        }
+        return foreignClass;
+    }
+
+    private static int readUnsignedShort(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (readUnsignedShort(b, pos) << 16)
+               | readUnsignedShort(b, pos + 2);
+    }
+
+    private static void writeInt(byte[] b, int pos, int value) {
+        for (int i = 0; i < 4; i++) {
+            b[pos + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    @Test
+    public void testMismatchedCallSitesAreRemapped() throws Exception {
+        final byte[] foreignClass = moveCallSites(
+            ClassTransformer.instrument(mLogger,
+                                        new InstrumentConfig(),
+                                        mOriginalClass,
+                                        SynchronizedMethod.class.getName()));
+        final int foreignPos = InstrumentedAttribute.find(foreignClass);
+        assertFalse(InstrumentedAttribute.hasRegisteredCallSites(
+            foreignClass, foreignPos));
+
+        final ClassTransformer transformer =
+            new ClassTransformer(mLogger, mDir, new InstrumentConfig());
+        final byte[] remappedClass =
+            transformer.transform(getClass().getClassLoader(), CLASS_PATH,
+                                  null, null, foreignClass);
+        assertNotNull(remappedClass);
+        final int remappedPos = InstrumentedAttribute.find(remappedClass);
+        assertTrue(InstrumentedAttribute.hasRegisteredCallSites(
+            remappedClass, remappedPos));
+        final Map<Integer, CallSite> foreignSites =
+            InstrumentedAttribute.readCallSites(foreignClass, foreignPos);
+        final Map<Integer, CallSite> remappedSites =
+            InstrumentedAttribute.readCallSites(remappedClass, remappedPos);
+        assertEquals(1, remappedSites.size());
+        assertEquals(foreignSites.values().iterator().next(),
+                     remappedSites.values().iterator().next());
+        final int id = remappedSites.keySet().iterator().next();
+        assertFalse(foreignSites.containsKey(id));
+
+        // The remapped class passes the ID that its call site has here.
+        final Class<?> c = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define(byte[] b) {
+                return defineClass(SynchronizedMethod.class.getName(),
+                                   b, 0, b.length);
+            }
+        }.define(remappedClass);
+        final EventListenerIfc listener = mock(EventListenerIfc.class);
+        StaticEventListener.setListener(listener);
+        try {
+            ((SynchronizationTestIfc) c.newInstance()).go();
+        } finally {
+            StaticEventListener.setListener(null);
+        }
+        verify(listener).beforeMonitorEnter(anyObject(), anyLong(), eq(id));
+    }
+}
@@ -69,7 +69,7 @@ public final class TransformClassLoader extends ClassLoader {
      * configured
      * with.
      */
-    public Class<?> transform(Class clazz)
+    public Class<?> transform(Class<?> clazz)
     throws ClassNotFoundException,
            IllegalClassFormatException,
            ClassNotTransformedException {
@@ -81,7 +81,7 @@ public final class TransformClassLoader extends ClassLoader {
     /**
      * Load a new non-instrumented class with this class loader.
      */
-    public Class<?> loadNew(Class clazz) throws ClassNotFoundException {
+    public Class<?> loadNew(Class<?> clazz) throws ClassNotFoundException {
         byte[] classBuffer = getClassBytes(clazz);
         return defineClass(clazz.getName(),
                            classBuffer,
@@ -92,7 +92,7 @@ public final class TransformClassLoader extends ClassLoader {
 
     protected synchronized Class<?> loadClass(String className, boolean resolve)
     throws ClassNotFoundException {
-        Class c = findLoadedClass(className);
+        Class<?> c = findLoadedClass(className);
         if (c == null) {
             if (isClassNameToBeTransformed(className)) {
                 c = findClass(className);
@@ -188,7 +188,7 @@ public final class TransformClassLoader extends ClassLoader {
 
    }
 
-   public static byte[] getClassBytes(Class clazz)
+   public static byte[] getClassBytes(Class<?> clazz)
    throws ClassNotFoundException {
        return getClassBytes(clazz.getName(), clazz.getClassLoader());
    }
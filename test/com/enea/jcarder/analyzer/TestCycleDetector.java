@@ -72,6 +72,28 @@ public final class TestCycleDetector {
         return edge;
     }
 
+    private LockEdge addSharedEdge(int from,
+                                   int to,
+                                   int threadId,
+                                   boolean sharedSource,
+                                   boolean sharedTarget) {
+        final LockNode sourceLock = mBuilder.getLockNode(from);
+        final LockNode targetLock = mBuilder.getLockNode(to);
+        final LockEdge edge = new LockEdge(sourceLock,
+                                           targetLock,
+                                           threadId,
+                                           false,
+                                           threadId,
+                                           threadId,
+                                           sharedSource,
+                                           sharedTarget);
+        sourceLock.addOutgoingEdge(edge);
+        if (!mNodes.contains(sourceLock)) {
+            mNodes.add(sourceLock);
+        }
+        return edge;
+    }
+
     private void addExpectedCycle(LockEdge[] edges) {
         Cycle cycle = new Cycle(Arrays.asList(edges));
         mExpectedCycles.add(cycle);
@@ -91,6 +113,30 @@ public final class TestCycleDetector {
         assertExpectedCycles();
     }
 
+    @Test
+    public void testSingleThreadedCycles() throws Exception {
+        LockNode node1 = mBuilder.getLockNode(1);
+        LockNode node2 = mBuilder.getLockNode(2);
+        LockEdge e1 = new LockEdge(node1, node2, 7, false, -1, -1);
+        LockEdge e2 = new LockEdge(node2, node1, 7, false, -1, -1);
+        LockEdge e3 = new LockEdge(node2, node1, 8, false, -1, -1);
+        LockEdge p1 = new LockEdge(node1, node2, 9, true, -1, -1);
+        LockEdge p2 = new LockEdge(node2, node1, 9, true, -1, -1);
+        Assert.assertTrue(new Cycle(Arrays.asList(e1, e2)).isSingleThreaded());
+        Assert.assertFalse(new Cycle(Arrays.asList(e1, e3)).isSingleThreaded());
+        Assert.assertFalse(new Cycle(Arrays.asList(p1, p2)).isSingleThreaded());
+    }
+
+    @Test
+    public void testCycleWithSharedLockIsIgnored() throws Exception {
+        LockEdge r1 = addSharedEdge(1, 2, 1, true, true);
+        addSharedEdge(2, 1, 2, true, true);
+        LockEdge w3 = addSharedEdge(2, 1, 3, false, false);
+        mCycleDetector.analyzeLockNodes(mNodes);
+        addExpectedCycle(new LockEdge[] {r1, w3});
+        assertExpectedCycles();
+    }
+
     @Test
     public void testSmallCycle() throws Exception {
         LockEdge e1 = addEdge(1, 2);
@@ -100,6 +146,19 @@ public final class TestCycleDetector {
         assertExpectedCycles();
     }
 
+    @Test
+    public void testNestedAggregateIsNoCycle() throws Exception {
+        LockEdge nested = addEdge(1, 1);
+        LockEdge e1 = addEdge(1, 2);
+        LockEdge e2 = addEdge(2, 1);
+        mCycleDetector.analyzeLockNodes(mNodes);
+        addExpectedCycle(new LockEdge[] {e1, e2});
+        assertExpectedCycles();
+        Assert.assertEquals(1, mCycleDetector.getNestedAggregateEdges().size());
+        Assert.assertTrue(
+            mCycleDetector.getNestedAggregateEdges().contains(nested));
+    }
+
     @Test
     public void testCycle() throws Exception {
         addEdge(1, 2);
@@ -23,6 +23,7 @@ import org.junit.Test;
 
 import com.enea.jcarder.common.Lock;
 import com.enea.jcarder.common.LockingContext;
+import com.enea.jcarder.common.LockingThread;
 import com.enea.jcarder.common.contexts.ContextFileReader;
 import com.enea.jcarder.common.contexts.ContextFileWriter;
 import com.enea.jcarder.util.logging.Logger;
@@ -37,15 +38,32 @@ public final class TestContextFile {
         ContextFileWriter writer =
             new ContextFileWriter(new Logger(null), file);
         Lock lock = new Lock("myClassName", 5);
-        LockingContext context = new LockingContext("myThreadName",
-                                                    "myLockReference",
+        LockingContext context = new LockingContext("myLockReference",
                                                     "myMethod");
+        LockingContext sharedContext = new LockingContext("myLockReference",
+                                                          "myMethod",
+                                                          true);
+        LockingThread thread = new LockingThread("myThreadName",
+                                                 "myThreadGroup",
+                                                 1234567890123L,
+                                                 false);
+        LockingThread pool = new LockingThread("myPoolName",
+                                               "myThreadGroup",
+                                               LockingThread.NO_JAVA_THREAD_ID,
+                                               true);
         int lockId = writer.writeLock(lock);
         int contextId = writer.writeContext(context);
+        int sharedContextId = writer.writeContext(sharedContext);
+        int threadId = writer.writeThread(thread);
+        int poolId = writer.writeThread(pool);
         writer.close();
         ContextFileReader reader = new ContextFileReader(new Logger(null), file);
         Assert.assertEquals(lock, reader.readLock(lockId));
         Assert.assertEquals(context, reader.readContext(contextId));
+        Assert.assertEquals(sharedContext,
+                            reader.readContext(sharedContextId));
+        Assert.assertEquals(thread, reader.readThread(threadId));
+        Assert.assertEquals(pool, reader.readThread(poolId));
         file.delete();
     }
 }
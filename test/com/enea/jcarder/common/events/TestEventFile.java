@@ -38,7 +38,7 @@ public final class TestEventFile {
         final int lockingContextId = 523;
         final int lastTakenLockId = 21;
         final int lastTakenLockingContextId = 541;
-        final long threadId = 3121258129311216611L;
+        final int threadId = 1311216611;
         final int nrOfLogEvents = 3;
         for (int i = 0; i < nrOfLogEvents; i++) {
             writer.onLockEvent(lockId,
@@ -61,4 +61,25 @@ public final class TestEventFile {
 
         file.delete();
     }
+
+    @Test
+    public void writeReadDuplicatesTest() throws IOException {
+        File file = File.createTempFile(TestEventFile.class.getName(),
+                                        null);
+        EventFileWriter writer = new EventFileWriter(new Logger(null), file);
+        final long count = 1L << 40;
+        writer.onLockEvent(1, 2, 3, 4, 5);
+        writer.onDuplicateLockEvents(1, 2, 3, 4, 5, count);
+        writer.onLockEvent(6, 7, 8, 9, 10);
+        writer.close();
+
+        LockEventListenerIfc listenerMock = mock(LockEventListenerIfc.class);
+        new EventFileReader(new Logger(null)).parseFile(file, listenerMock);
+
+        verify(listenerMock).onLockEvent(1, 2, 3, 4, 5);
+        verify(listenerMock).onDuplicateLockEvents(1, 2, 3, 4, 5, count);
+        verify(listenerMock).onLockEvent(6, 7, 8, 9, 10);
+
+        file.delete();
+    }
 }
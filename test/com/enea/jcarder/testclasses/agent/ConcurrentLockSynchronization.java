@@ -0,0 +1,73 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.testclasses.agent;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.enea.jcarder.agent.LockEvent;
+import com.enea.jcarder.common.Lock;
+import com.enea.jcarder.common.LockingContext;
+
+public final class ConcurrentLockSynchronization
+implements SynchronizationTestIfc {
+    private final ReentrantReadWriteLock mLock0 =
+        new ReentrantReadWriteLock();
+    private final ReentrantLock mLock1 = new ReentrantLock();
+    private final ReentrantLock mLock2 = new ReentrantLock();
+
+    public void go() {
+        mLock0.readLock().lock();
+        mLock1.lock();
+        mLock1.unlock();
+        // Taking the write lock while holding the read lock would deadlock,
+        // so the read lock is released first.
+        mLock0.readLock().unlock();
+        mLock0.writeLock().lock();
+        mLock0.readLock().lock(); // Downgrading is a reentry.
+        mLock0.writeLock().unlock();
+        mLock0.readLock().unlock();
+        // A lock acquired by tryLock gives rise to no lock event of its own.
+        assertTrue(mLock2.tryLock());
+        mLock1.lock();
+        mLock1.unlock();
+        mLock2.unlock();
+    }
+
+    public LockEvent[] getExpectedLockEvents() {
+        final Lock lock0 = new Lock(mLock0);
+        final Lock lock1 = new Lock(mLock1);
+        final Lock lock2 = new Lock(mLock2);
+        final String threadName = Thread.currentThread().getName();
+        final String method = getClass().getName() + ".go()";
+        final LockingContext readContext0 =
+            new LockingContext(ReentrantReadWriteLock.class.getName()
+                               + ".readLock()",
+                               method,
+                               true);
+        final LockingContext context1 =
+            new LockingContext(getClass().getName() + ".mLock1", method);
+        final LockingContext context2 =
+            new LockingContext(getClass().getName() + ".mLock2", method);
+        return new LockEvent[] {
+            new LockEvent(lock1, context1, lock0, readContext0, threadName),
+            new LockEvent(lock1, context1, lock2, context2, threadName)
+        };
+    }
+}
@@ -49,15 +49,12 @@ implements SynchronizationTestIfc {
         final String threadName = Thread.currentThread().getName();
         final String method = getClass().getName() + ".go()";
         LockingContext contextSync0 =
-            new LockingContext(threadName,
-                               getClass().getName() + ".mSync0",
-                               method);
+            new LockingContext(getClass().getName() + ".mSync0", method);
         LockingContext contextSync1 =
-            new LockingContext(threadName,
-                               getClass().getName() + ".mSync1",
-                               method);
+            new LockingContext(getClass().getName() + ".mSync1", method);
         return new LockEvent[] {
-            new LockEvent(lockSync1, contextSync1, lockSync0, contextSync0)
+            new LockEvent(lockSync1, contextSync1, lockSync0, contextSync0,
+                          threadName)
         };
     }
 }
@@ -68,26 +68,21 @@ implements SynchronizationTestIfc {
         final String threadName = Thread.currentThread().getName();
         final String method = getClass().getName() + ".go()";
         LockingContext contextSync0 =
-            new LockingContext(threadName,
-                               getClass().getName() + ".mSync0",
-                               method);
+            new LockingContext(getClass().getName() + ".mSync0", method);
         LockingContext contextSync1 =
-            new LockingContext(threadName,
-                               getClass().getName() + ".mSync1",
-                               method);
+            new LockingContext(getClass().getName() + ".mSync1", method);
         LockingContext contextSync1Thread =
-            new LockingContext(getName(),
-                               getClass().getName() + ".mSync1",
+            new LockingContext(getClass().getName() + ".mSync1",
                                getClass().getName() + ".run()");
 
         LockingContext contextSync2Thread =
-            new LockingContext(getName(),
-                               getClass().getName() + ".mSync2",
+            new LockingContext(getClass().getName() + ".mSync2",
                                getClass().getName() + ".run()");
         return new LockEvent[] {
-             new LockEvent(lockSync1, contextSync1, lockSync0, contextSync0),
+             new LockEvent(lockSync1, contextSync1, lockSync0, contextSync0,
+                           threadName),
              new LockEvent(lockSync1, contextSync1Thread, lockSync2,
-                           contextSync2Thread),
+                           contextSync2Thread, getName()),
         };
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.testclasses.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.enea.jcarder.agent.instrument.MonitorWithContext;
+
+public final class LockedReadWriteLock implements SynchronizationTestIfc {
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Lock mReadLock = mLock.readLock();
+
+    public void go() {
+        mReadLock.lock();
+        assertEquals(1, mLock.getReadHoldCount());
+        mReadLock.unlock();
+        mLock.writeLock().lock();
+        assertEquals(1, mLock.getWriteHoldCount());
+        mLock.writeLock().unlock();
+        assertEquals(0, mLock.getWriteHoldCount());
+    }
+
+    public MonitorWithContext[] getExpectedMonitorEnterings() {
+        final String method = getClass().getName() + ".go()";
+        final Thread thread = Thread.currentThread();
+        return new MonitorWithContext[] {
+            new MonitorWithContext(mLock,
+                                   method,
+                                   getClass().getName() + ".mReadLock",
+                                   true,
+                                   thread),
+            new MonitorWithContext(mLock,
+                                   method,
+                                   ReentrantReadWriteLock.class.getName()
+                                   + ".writeLock()",
+                                   false,
+                                   thread)
+        };
+    }
+}
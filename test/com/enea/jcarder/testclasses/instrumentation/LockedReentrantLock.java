@@ -0,0 +1,59 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.testclasses.instrumentation;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.enea.jcarder.agent.instrument.MonitorWithContext;
+
+public final class LockedReentrantLock implements SynchronizationTestIfc {
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    public void go() {
+        assertFalse(mLock.isHeldByCurrentThread());
+        mLock.lock();
+        try {
+            assertTrue(mLock.isHeldByCurrentThread());
+        } finally {
+            mLock.unlock();
+        }
+        assertTrue(mLock.tryLock());
+        mLock.unlock();
+        try {
+            assertTrue(mLock.tryLock(1, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        mLock.unlock();
+        assertFalse(mLock.isHeldByCurrentThread());
+    }
+
+    public MonitorWithContext[] getExpectedMonitorEnterings() {
+        final String method = getClass().getName() + ".go()";
+        final String field = getClass().getName() + ".mLock";
+        final Thread thread = Thread.currentThread();
+        return new MonitorWithContext[] {
+            new MonitorWithContext(mLock, method, field, thread),
+            new MonitorWithContext(mLock, method, field, thread),
+            new MonitorWithContext(mLock, method, "???", thread)
+        };
+    }
+}
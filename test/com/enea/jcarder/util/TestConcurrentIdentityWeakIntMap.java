@@ -0,0 +1,125 @@
+/*
+ * JCarder -- cards Java programs to keep threads disentangled
+ *
+ * Copyright (C) 2006-2007 Enea AB
+ * Copyright (C) 2007 Ulrik Svensson
+ * Copyright (C) 2007 Joel Rosdahl
+ *
+ * This program is made available under the GNU GPL version 2, with a special
+ * exception for linking with JUnit. See the accompanying file LICENSE.txt for
+ * details.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.enea.jcarder.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestConcurrentIdentityWeakIntMap {
+    @Test
+    public void testMissingKey() {
+        ConcurrentIdentityWeakIntMap map = new ConcurrentIdentityWeakIntMap();
+        assertEquals(ConcurrentIdentityWeakIntMap.NOT_FOUND,
+                     map.get(new Object()));
+    }
+
+    @Test
+    public void testKeysAreComparedByIdentity() {
+        ConcurrentIdentityWeakIntMap map = new ConcurrentIdentityWeakIntMap();
+        String a = new String("lock");
+        String b = new String("lock");
+        assertEquals(1, map.putIfAbsent(a, 1));
+        assertEquals(1, map.get(a));
+        assertEquals(ConcurrentIdentityWeakIntMap.NOT_FOUND, map.get(b));
+        assertEquals(2, map.putIfAbsent(b, 2));
+        assertEquals(1, map.putIfAbsent(a, 3));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testManyKeysInOneSegment() {
+        ConcurrentIdentityWeakIntMap map = new ConcurrentIdentityWeakIntMap(1);
+        Object[] keys = new Object[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+            map.putIfAbsent(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, map.get(keys[i]));
+        }
+    }
+
+    @Test
+    public void testConcurrentInsertions() throws InterruptedException {
+        final ConcurrentIdentityWeakIntMap map =
+            new ConcurrentIdentityWeakIntMap(2);
+        final Object[] keys = new Object[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+        final int threadCount = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final int[][] results = new int[threadCount][keys.length];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int[] result = results[t];
+            final int offset = t * keys.length;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < keys.length; i++) {
+                        result[i] = map.putIfAbsent(keys[i], offset + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < keys.length; i++) {
+            int value = map.get(keys[i]);
+            assertEquals(i, value % keys.length);
+            for (int t = 0; t < threadCount; t++) {
+                assertEquals(value, results[t][i]);
+            }
+        }
+        assertEquals(keys.length, map.size());
+    }
+
+    @Test
+    public void testBoundedMapEvicts() {
+        ConcurrentIdentityWeakIntMap map =
+            new ConcurrentIdentityWeakIntMap(1, 4);
+        Object[] keys = new Object[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+            map.putIfAbsent(keys[i], i);
+            assertEquals(i, map.get(keys[i]));
+        }
+        int found = 0;
+        for (int i = 0; i < keys.length; i++) {
+            final int value = map.get(keys[i]);
+            if (value != ConcurrentIdentityWeakIntMap.NOT_FOUND) {
+                assertEquals(i, value);
+                found++;
+            }
+        }
+        assertEquals(4, found);
+        assertEquals(6L, map.getEvictions());
+        map.putIfAbsent(keys[0], 0);
+        assertEquals(0, map.get(keys[0]));
+    }
+}